@@ -19,6 +19,8 @@ package com.googlecode.jcimd;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Provides static methods that write {@link String strings} and
@@ -61,10 +63,67 @@ public final class AsciiUtils {
 		}
 	}
 
+	/**
+	 * Writes the given {@link String string} as ASCII bytes to the given
+	 * byte array, starting at the given offset. Like
+	 * {@link #writeStringAsAsciiBytes(String, OutputStream)}, only the
+	 * eight low-order bits of each character are written. The characters
+	 * are copied in bulk, without a temporary byte array.
+	 *
+	 * @param in the given string
+	 * @param bytes the byte array
+	 * @param offset the index of the first byte
+	 * @return the index after the last byte (i.e. offset + in.length())
+	 */
+	@SuppressWarnings("deprecation")
+	public static int writeStringAsAsciiBytes(String in, byte[] bytes, int offset) {
+		final int length = in.length();
+		// Copies the eight low-order bits of each character
+		in.getBytes(0, length, bytes, offset);
+		return offset + length;
+	}
+
+	/**
+	 * Writes the given {@link String string} as ASCII bytes to the given
+	 * buffer, at its position.
+	 *
+	 * @param in the given string
+	 * @param buffer the buffer
+	 * @see #writeStringAsAsciiBytes(String, byte[], int)
+	 */
+	public static void writeStringAsAsciiBytes(String in, ByteBuffer buffer) {
+		final int length = in.length();
+		if (buffer.hasArray()) {
+			if (buffer.remaining() < length) {
+				throw new BufferOverflowException();
+			}
+			int position = buffer.position();
+			writeStringAsAsciiBytes(in, buffer.array(), buffer.arrayOffset() + position);
+			buffer.position(position + length);
+			return;
+		}
+		for (int i = 0; i < length; i++) {
+			buffer.put((byte) in.charAt(i));
+		}
+	}
+
 	private static final byte[] HEX_DIGITS = new byte[] {
 		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
 	};
 
+	/**
+	 * The two (2) hexadecimal ASCII digits of each byte value (0x00 to
+	 * 0xff), in order.
+	 */
+	private static final byte[] HEX_DIGIT_PAIRS = new byte[256 * 2];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			HEX_DIGIT_PAIRS[i * 2] = HEX_DIGITS[i >> 4];
+			HEX_DIGIT_PAIRS[i * 2 + 1] = HEX_DIGITS[i & 0x0f];
+		}
+	}
+
 	/**
 	 * Writes the given byte array as hexadecimal ASCII bytes
 	 * ('0'-'9', 'a'-'f') to the output stream.
@@ -81,6 +140,54 @@ public final class AsciiUtils {
 		}
 	}
 
+	/**
+	 * Writes the given range of bytes as hexadecimal ASCII bytes
+	 * ('0'-'9', 'a'-'f') to the given byte array, starting at the given
+	 * offset.
+	 *
+	 * @param in the bytes to write
+	 * @param from the index of the first byte to write
+	 * @param length the number of bytes to write
+	 * @param bytes the byte array written to
+	 * @param offset the index of the first hexadecimal digit
+	 * @return the index after the last digit (i.e. offset + 2 * length)
+	 */
+	public static int writeByteArrayAsHexAsciiBytes(
+			byte[] in, int from, int length, byte[] bytes, int offset) {
+		if (offset < 0 || offset + 2 * length > bytes.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		for (int i = from; i < from + length; i++) {
+			int pair = (in[i] & 0xff) << 1;
+			bytes[offset++] = HEX_DIGIT_PAIRS[pair];
+			bytes[offset++] = HEX_DIGIT_PAIRS[pair + 1];
+		}
+		return offset;
+	}
+
+	/**
+	 * Writes the given byte array as hexadecimal ASCII bytes
+	 * ('0'-'9', 'a'-'f') to the given buffer, at its position.
+	 *
+	 * @param in the bytes to write
+	 * @param buffer the buffer
+	 */
+	public static void writeByteArrayAsHexAsciiBytes(byte[] in, ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			if (buffer.remaining() < in.length * 2) {
+				throw new BufferOverflowException();
+			}
+			int position = buffer.position();
+			writeByteArrayAsHexAsciiBytes(in, 0, in.length,
+					buffer.array(), buffer.arrayOffset() + position);
+			buffer.position(position + in.length * 2);
+			return;
+		}
+		for (byte b : in) {
+			buffer.put(HEX_DIGIT_PAIRS, (b & 0xff) << 1, 2);
+		}
+	}
+
 	public static String byteArrayToHexString(byte[] bytes) {
 		StringBuilder s = new StringBuilder(bytes.length * 2);
 		for (byte b : bytes) {
@@ -98,6 +205,31 @@ public final class AsciiUtils {
 		0x01, 0x010, 0x0100, 0x01000, 0x010000, 0x0100000, 0x01000000, 0x010000000 
 	};
 
+	/**
+	 * The three (3) ASCII digits of 000 to 999, in order. The two (2)
+	 * digits of 00 to 99 are the last two of each entry.
+	 */
+	private static final byte[] DIGITS = new byte[1000 * 3];
+
+	static {
+		for (int i = 0; i < 1000; i++) {
+			DIGITS[i * 3] = (byte) (ZERO_ASCII_BYTE_VALUE + i / 100);
+			DIGITS[i * 3 + 1] = (byte) (ZERO_ASCII_BYTE_VALUE + i / 10 % 10);
+			DIGITS[i * 3 + 2] = (byte) (ZERO_ASCII_BYTE_VALUE + i % 10);
+		}
+	}
+
+	/**
+	 * Returns the index in {@link #DIGITS} of the last <em>width</em>
+	 * digits of x, or -1 if they are not in the table.
+	 */
+	private static int indexOfDigits(int x, int width) {
+		if (x < 0 || width < 1 || width > 3) {
+			return -1;
+		}
+		return (x % 1000) * 3 + 3 - width;
+	}
+
 	/**
 	 * Writes the given integer as ASCII characters ('0'-'9') to the
 	 * given output stream. Left pads with '0' (zeroes) to achieve the
@@ -121,6 +253,11 @@ public final class AsciiUtils {
 	 */
 	public static void writeIntAsAsciiBytes(
 			int x, OutputStream out, int width) throws IOException {
+		int index = indexOfDigits(x, width);
+		if (index >= 0) {
+			out.write(DIGITS, index, width);
+			return;
+		}
 		int size;
 		while (width > 0) {
 			size = SIZE_TABLE[width - 1];
@@ -132,6 +269,122 @@ public final class AsciiUtils {
 		}
 	}
 
+	/**
+	 * Writes the given integer as ASCII characters ('0'-'9') to the
+	 * given byte array, starting at the given offset. Left pads with
+	 * '0' (zeroes) to achieve the given width, like
+	 * {@link #writeIntAsAsciiBytes(int, OutputStream, int)}.
+	 *
+	 * @param x the given integer
+	 * @param bytes the byte array
+	 * @param offset the index of the first digit
+	 * @param width the given width
+	 * @return the index after the last digit (i.e. offset + width)
+	 */
+	public static int writeIntAsAsciiBytes(
+			int x, byte[] bytes, int offset, int width) {
+		int index = indexOfDigits(x, width);
+		if (index >= 0) {
+			System.arraycopy(DIGITS, index, bytes, offset, width);
+			return offset + width;
+		}
+		for (int i = offset + width - 1; i >= offset; i--) {
+			bytes[i] = (byte) (ZERO_ASCII_BYTE_VALUE + x % 10);
+			x /= 10;
+		}
+		return offset + width;
+	}
+
+	/**
+	 * Writes the given integer as ASCII characters ('0'-'9') to the
+	 * given buffer, at its position. Left pads with '0' (zeroes) to
+	 * achieve the given width, like
+	 * {@link #writeIntAsAsciiBytes(int, OutputStream, int)}.
+	 *
+	 * @param x the given integer
+	 * @param buffer the buffer
+	 * @param width the given width
+	 */
+	public static void writeIntAsAsciiBytes(
+			int x, ByteBuffer buffer, int width) {
+		int index = indexOfDigits(x, width);
+		if (index >= 0) {
+			buffer.put(DIGITS, index, width);
+			return;
+		}
+		int position = buffer.position();
+		for (int i = position + width - 1; i >= position; i--) {
+			buffer.put(i, (byte) (ZERO_ASCII_BYTE_VALUE + x % 10));
+			x /= 10;
+		}
+		buffer.position(position + width);
+	}
+
+	/**
+	 * Parses the given range of ASCII digits ('0'-'9') as a non-negative
+	 * integer, without creating a {@link String string}. For example,
+	 * <code>"007"</code> is parsed as 7.
+	 *
+	 * @param bytes the byte array
+	 * @param offset the index of the first digit
+	 * @param length the number of digits (1 - 9)
+	 * @return the integer
+	 * @throws NumberFormatException if the range is empty, too long, or
+	 *     has a byte other than a digit
+	 */
+	public static int parseIntFromAsciiBytes(byte[] bytes, int offset, int length) {
+		if (length < 1 || length > 9) {
+			throw new NumberFormatException(
+					"Expecting 1 to 9 digits, but got " + length);
+		}
+		int value = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int digit = bytes[i] - ZERO_ASCII_BYTE_VALUE;
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(
+						"Expecting a digit, but got 0x" + Integer.toHexString(bytes[i] & 0xFF));
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses the given number of ASCII digits ('0'-'9'), from the
+	 * buffer's position, as a non-negative integer. The position is
+	 * advanced past the digits.
+	 *
+	 * @param buffer the buffer
+	 * @param length the number of digits (1 - 9)
+	 * @return the integer
+	 * @throws NumberFormatException if the length is out of range, or the
+	 *     buffer has a byte other than a digit
+	 * @see #parseIntFromAsciiBytes(byte[], int, int)
+	 */
+	public static int parseIntFromAsciiBytes(ByteBuffer buffer, int length) {
+		if (buffer.hasArray()) {
+			int value = parseIntFromAsciiBytes(buffer.array(),
+					buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.position() + length);
+			return value;
+		}
+		if (length < 1 || length > 9) {
+			throw new NumberFormatException(
+					"Expecting 1 to 9 digits, but got " + length);
+		}
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			byte b = buffer.get();
+			int digit = b - ZERO_ASCII_BYTE_VALUE;
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(
+						"Expecting a digit, but got 0x" + Integer.toHexString(b & 0xFF));
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
 	public static void writeIntAsHexAsciiBytes(
 			int x, OutputStream out, int width) throws IOException {
 		int size;
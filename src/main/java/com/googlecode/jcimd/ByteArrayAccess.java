@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Reads eight (8) bytes of an array at once, as a <code>long</code>, to
+ * process frames a word at a time (SWAR, SIMD within a register).
+ * <p>
+ * This version assembles the word from single bytes. On Java 11 or
+ * later, it is replaced by a version that reads the word with a single
+ * (unaligned) load.
+ *
+ * @author Lorenzo Dee
+ */
+final class ByteArrayAccess {
+
+	private ByteArrayAccess() {
+	}
+
+	/**
+	 * Returns the eight (8) bytes at the given index, in little-endian
+	 * order (i.e. the byte at the index is the least significant).
+	 */
+	static long getLongLittleEndian(byte[] bytes, int index) {
+		return (bytes[index] & 0xFFL)
+				| (bytes[index + 1] & 0xFFL) << 8
+				| (bytes[index + 2] & 0xFFL) << 16
+				| (bytes[index + 3] & 0xFFL) << 24
+				| (bytes[index + 4] & 0xFFL) << 32
+				| (bytes[index + 5] & 0xFFL) << 40
+				| (bytes[index + 6] & 0xFFL) << 48
+				| (bytes[index + 7] & 0xFFL) << 56;
+	}
+
+}
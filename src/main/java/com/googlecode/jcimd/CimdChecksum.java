@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CIMD checksum: the sum of all bytes of a frame, from the STX up to
+ * (and including) the TAB before the checksum, modulo 256.
+ * <p>
+ * The serializer calls {@link #update(byte[], int, int)} on each segment
+ * as it is copied into the frame, so that no second pass over the frame
+ * is needed.
+ * <p>
+ * Byte arrays are summed eight (8) bytes at a time, in 16-bit lanes
+ * that are reduced modulo 256 only every 255 words, and once at the end.
+ *
+ * @author Lorenzo Dee
+ */
+final class CimdChecksum implements Checksum {
+
+	private static final long EVEN_BYTES = 0x00FF00FF00FF00FFL;
+	// lanes hold at most 255 * 255 before reducing
+	private static final int WORDS_PER_REDUCTION = 255;
+
+	private int sum;
+
+	@Override
+	public void update(int b) {
+		this.sum += b;
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		this.sum += sum(b, off, off + len);
+	}
+
+	/**
+	 * Returns the checksum (0 - 255) of the bytes so far.
+	 */
+	@Override
+	public long getValue() {
+		return this.sum & 0xFF;
+	}
+
+	@Override
+	public void reset() {
+		this.sum = 0;
+	}
+
+	/**
+	 * Returns the checksum (0 - 255) of the given range of bytes.
+	 */
+	static int sum(byte[] bytes, int from, int to) {
+		long evenLanes = 0;
+		long oddLanes = 0;
+		int words = 0;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = ByteArrayAccess.getLongLittleEndian(bytes, i);
+			evenLanes += word & EVEN_BYTES;
+			oddLanes += (word >>> 8) & EVEN_BYTES;
+			if (++words == WORDS_PER_REDUCTION) {
+				// keeps each lane modulo 256
+				evenLanes &= EVEN_BYTES;
+				oddLanes &= EVEN_BYTES;
+				words = 0;
+			}
+		}
+		long lanes = (evenLanes & EVEN_BYTES) + (oddLanes & EVEN_BYTES);
+		// adds the four lanes into the top lane
+		int sum = (int) ((lanes * 0x0001000100010001L) >>> 48);
+		for (; i < to; i++) {
+			sum += bytes[i];
+		}
+		return sum & 0xFF;
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Emits diagnostic events for CIMD operations.
+ * <p>
+ * This is the version used on runtimes without the JDK Flight Recorder.
+ * All methods do nothing, and the <code>begin*</code> methods return
+ * <code>null</code>. On Java 11 and later, the multi-release JAR provides
+ * a version of this class (see <code>src/main/java11</code>) that
+ * commits JDK Flight Recorder events.
+ * <p>
+ * Timed events are started with a <code>begin*</code> method and the
+ * returned token is passed to the matching <code>end*</code> method.
+ * The token may be <code>null</code>.
+ *
+ * @author Lorenzo Dee
+ */
+final class CimdEvents {
+
+	private CimdEvents() {}
+
+	static Object beginRequest() {
+		return null;
+	}
+
+	static void endRequest(Object event, Packet request, Packet response) {
+	}
+
+	static void replyTimeout(Packet request, long timeoutMillis) {
+	}
+
+	static void nack(Packet request, Packet nack) {
+	}
+
+	static Object beginLogin() {
+		return null;
+	}
+
+	static void endLogin(Object event, String username, boolean success) {
+	}
+
+	static Object beginReconnect() {
+		return null;
+	}
+
+	static void endReconnect(Object event, boolean success) {
+	}
+
+	static Object beginPacketWrite() {
+		return null;
+	}
+
+	static void endPacketWrite(Object event,
+			int operationCode, int sequenceNumber, int size) {
+	}
+
+	static void packetRead(int operationCode, int sequenceNumber, int size) {
+	}
+
+	static void frameDecodeError(int size, String message) {
+	}
+
+}
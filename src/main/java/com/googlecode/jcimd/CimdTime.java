@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the absolute times of CIMD parameters (e.g.
+ * {@link Parameter#VALIDITY_PERIOD_ABSOLUTE},
+ * {@link Parameter#MC_TIMESTAMP}, {@link Parameter#DISCHARGE_TIME}),
+ * which are twelve (12) digits in <code>yyMMddHHmmss</code> form.
+ * <p>
+ * Unlike {@link java.text.SimpleDateFormat}, this is thread-safe, and
+ * does not use {@link java.util.Calendar calendars}. Formatting into a
+ * byte array, and parsing, do not allocate any objects.
+ * <p>
+ * Like <code>SimpleDateFormat</code>, two-digit years are parsed to be
+ * within 80 years before and 20 years after the current year. Unlike
+ * it, parsing is not lenient (e.g. month 13 is rejected). Unless given,
+ * the time zone is the default time zone when this class is loaded.
+ *
+ * @author Lorenzo Dee
+ */
+public final class CimdTime {
+
+	/** The number of characters of a formatted time. */
+	public static final int LENGTH = 12;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private static final TimeZone defaultZone = TimeZone.getDefault();
+	private static final int defaultCenturyStart =
+			year(System.currentTimeMillis()) - 80;
+
+	private CimdTime() {
+	}
+
+	public static String format(long timeMillis) {
+		return format(timeMillis, defaultZone);
+	}
+
+	public static String format(long timeMillis, TimeZone zone) {
+		byte[] bytes = new byte[LENGTH];
+		format(timeMillis, zone, bytes, 0);
+		char[] chars = new char[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			chars[i] = (char) bytes[i];
+		}
+		return new String(chars);
+	}
+
+	public static int format(long timeMillis, byte[] bytes, int offset) {
+		return format(timeMillis, defaultZone, bytes, offset);
+	}
+
+	/**
+	 * Writes the given time as twelve (12) ASCII digits.
+	 * @param timeMillis the time (in milliseconds since the epoch)
+	 * @param zone the time zone
+	 * @param bytes the array to write to
+	 * @param offset the index of the first digit in the array
+	 * @return the index after the last digit
+	 */
+	public static int format(long timeMillis, TimeZone zone, byte[] bytes, int offset) {
+		if (offset < 0 || offset + LENGTH > bytes.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		long localMillis = timeMillis + zone.getOffset(timeMillis);
+		long days = floorDiv(localMillis, MILLIS_PER_DAY);
+		int millisOfDay = (int) (localMillis - days * MILLIS_PER_DAY);
+
+		long date = civilFromDays(days);
+		long year = date / 10000;
+		int month = (int) (date / 100 % 100);
+		int day = (int) (date % 100);
+
+		offset = writeTwoDigits((int) (year - floorDiv(year, 100) * 100), bytes, offset);
+		offset = writeTwoDigits(month, bytes, offset);
+		offset = writeTwoDigits(day, bytes, offset);
+		offset = writeTwoDigits(millisOfDay / 3600000, bytes, offset);
+		offset = writeTwoDigits(millisOfDay / 60000 % 60, bytes, offset);
+		return writeTwoDigits(millisOfDay / 1000 % 60, bytes, offset);
+	}
+
+	public static long parse(CharSequence text) throws ParseException {
+		return parse(text, defaultZone);
+	}
+
+	/**
+	 * Parses the given twelve (12) digits.
+	 * @param text the digits in <code>yyMMddHHmmss</code> form
+	 * @param zone the time zone
+	 * @return the time (in milliseconds since the epoch)
+	 * @throws ParseException if the text is not a valid time
+	 */
+	public static long parse(CharSequence text, TimeZone zone) throws ParseException {
+		if (text.length() != LENGTH) {
+			throw new ParseException("Expecting " + LENGTH + " digits, but got ["
+					+ text + "]", 0);
+		}
+		return toMillis(
+				twoDigits(text.charAt(0), text.charAt(1), 0),
+				twoDigits(text.charAt(2), text.charAt(3), 2),
+				twoDigits(text.charAt(4), text.charAt(5), 4),
+				twoDigits(text.charAt(6), text.charAt(7), 6),
+				twoDigits(text.charAt(8), text.charAt(9), 8),
+				twoDigits(text.charAt(10), text.charAt(11), 10),
+				zone);
+	}
+
+	/**
+	 * Parses the twelve (12) ASCII digits at the given offset.
+	 * @param bytes the digits in <code>yyMMddHHmmss</code> form
+	 * @param offset the index of the first digit
+	 * @param zone the time zone
+	 * @return the time (in milliseconds since the epoch)
+	 * @throws ParseException if the digits are not a valid time
+	 */
+	public static long parse(byte[] bytes, int offset, TimeZone zone) throws ParseException {
+		if (offset < 0 || offset + LENGTH > bytes.length) {
+			throw new ParseException("Expecting " + LENGTH + " digits", 0);
+		}
+		return toMillis(
+				twoDigits(bytes[offset], bytes[offset + 1], 0),
+				twoDigits(bytes[offset + 2], bytes[offset + 3], 2),
+				twoDigits(bytes[offset + 4], bytes[offset + 5], 4),
+				twoDigits(bytes[offset + 6], bytes[offset + 7], 6),
+				twoDigits(bytes[offset + 8], bytes[offset + 9], 8),
+				twoDigits(bytes[offset + 10], bytes[offset + 11], 10),
+				zone);
+	}
+
+	private static long toMillis(int yy, int month, int day,
+			int hour, int minute, int second, TimeZone zone) throws ParseException {
+		int year = defaultCenturyStart / 100 * 100 + yy;
+		if (year < defaultCenturyStart) {
+			year += 100;
+		}
+		if (month < 1 || month > 12) {
+			throw new ParseException("Invalid month " + month, 2);
+		}
+		if (day < 1 || day > daysInMonth(year, month)) {
+			throw new ParseException("Invalid day " + day, 4);
+		}
+		if (hour > 23) {
+			throw new ParseException("Invalid hour " + hour, 6);
+		}
+		if (minute > 59) {
+			throw new ParseException("Invalid minute " + minute, 8);
+		}
+		if (second > 59) {
+			throw new ParseException("Invalid second " + second, 10);
+		}
+		long localMillis = daysFromCivil(year, month, day) * MILLIS_PER_DAY
+				+ hour * 3600000L + minute * 60000L + second * 1000L;
+		// the offset at the (approximate) UTC time of the local time
+		return localMillis - zone.getOffset(localMillis - zone.getRawOffset());
+	}
+
+	private static long daysFromCivil(long year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = floorDiv(year, 400);
+		int yearOfEra = (int) (year - era * 400);
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+			return leap ? 29 : 28;
+		case 4: case 6: case 9: case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Returns the date of the given day since the epoch, as
+	 * <code>year * 10000 + month * 100 + day</code> (see
+	 * http://howardhinnant.github.io/date_algorithms.html).
+	 */
+	private static long civilFromDays(long days) {
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		int dayOfEra = (int) (z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year * 10000 + month * 100 + day;
+	}
+
+	private static int year(long timeMillis) {
+		return (int) (civilFromDays(floorDiv(timeMillis, MILLIS_PER_DAY)) / 10000);
+	}
+
+	private static int twoDigits(int high, int low, int position) throws ParseException {
+		if (high < '0' || high > '9') {
+			throw new ParseException("Expecting a digit, but got [" + (char) high + "]", position);
+		}
+		if (low < '0' || low > '9') {
+			throw new ParseException("Expecting a digit, but got [" + (char) low + "]", position + 1);
+		}
+		return (high - '0') * 10 + (low - '0');
+	}
+
+	private static int writeTwoDigits(int value, byte[] bytes, int offset) {
+		bytes[offset] = (byte) ('0' + value / 10);
+		bytes[offset + 1] = (byte) ('0' + value % 10);
+		return offset + 2;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0)) {
+			q--;
+		}
+		return q;
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Thrown when the connection to the SMS Center was lost (or could not
+ * be re-established in time) and the request was not replayed. The
+ * request may, or may not, have been processed by the SMS Center.
+ * The condition is usually transient, and the request can be retried.
+ *
+ * @author Lorenzo Dee
+ * @see ReconnectingConnectionFactory
+ */
+public class ConnectionLostException extends SessionException {
+
+	private static final long serialVersionUID = -2215467807652185069L;
+
+	public ConnectionLostException(String message) {
+		super(message);
+	}
+
+	public ConnectionLostException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
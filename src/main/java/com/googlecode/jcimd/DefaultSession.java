@@ -17,20 +17,22 @@
 package com.googlecode.jcimd;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Default {@link Session CIMD session} implementation.
  *
  */
-public class DefaultSession implements Session {
+public class DefaultSession implements QueryingSession {
 
 	private ConnectionFactory connectionFactory;
 	private Connection connection;
+	private boolean connectedBefore;
+	private boolean recyclePackets;
 
 	public DefaultSession(ConnectionFactory connectionFactory) {
 		if (connectionFactory == null) {
@@ -39,33 +41,55 @@ public class DefaultSession implements Session {
 		this.connectionFactory = connectionFactory;
 	}
 
-	private Packet send(Packet packet) throws SessionException {
+	public boolean isRecyclePackets() {
+		return recyclePackets;
+	}
+
+	/**
+	 * Sets whether to reuse submit message requests (and their parameter
+	 * storage), instead of allocating new ones for each message. Requests
+	 * come from a per-thread pool, and are returned to it once sent.
+	 * Defaults to <code>false</code>.
+	 * <p>
+	 * Only enable this when the {@link ConnectionFactory connections}
+	 * do not keep requests after {@link Connection#send(Packet)} returns,
+	 * which is the case for the connections of this package.
+	 * @param recyclePackets <code>true</code> to reuse requests
+	 */
+	public void setRecyclePackets(boolean recyclePackets) {
+		this.recyclePackets = recyclePackets;
+	}
+
+	private Connection getConnection() throws SessionException {
 		if (this.connection == null || this.connection.isClosed()) {
+			Object event = this.connectedBefore ? CimdEvents.beginReconnect() : null;
+			boolean connected = false;
 			try {
 				this.connection = this.connectionFactory.getConnection();
+				this.connectedBefore = connected = true;
 			} catch (Exception e) {
 				throw new SessionException("Failed to get a connection", e);
+			} finally {
+				CimdEvents.endReconnect(event, connected);
 			}
 		}
+		return this.connection;
+	}
+
+	private Packet send(Packet packet) throws SessionException {
+		Connection connection = getConnection();
 		try {
-			Packet response = this.connection.send(packet);
+			Packet response = connection.send(packet);
 			if (!response.isPositiveResponse()) {
-				if (response.isNack()) {
-					throw new NackException(response.getSequenceNumber());
-				} else {
-					Parameter errorCodeParameter = response.getParameter(900);
-					String errorCode = errorCodeParameter != null ? errorCodeParameter.getValue() : null;
-					Parameter errorTextParameter = response.getParameter(901);
-					String errorText = errorTextParameter != null ? errorTextParameter.getValue() : null;
-					if (errorText == null) {
-						throw new NegativeResponseException(Integer.valueOf(errorCode));
-					} else {
-						throw new NegativeResponseException(
-								Integer.valueOf(errorCode), errorText);
-					}
-				}
+				throw toException(response);
 			}
 			return response;
+		} catch (RateLimitExceededException e) {
+			// Request was not sent, the connection is still usable
+			throw e;
+		} catch (ConnectionLostException e) {
+			// The connection is reconnecting by itself
+			throw e;
 		} catch (Exception e) {
 			try {
 				closeConnection();
@@ -74,6 +98,25 @@ public class DefaultSession implements Session {
 		}
 	}
 
+	/**
+	 * Returns the exception for the given NACK or negative response.
+	 */
+	static SessionException toException(Packet response) {
+		if (response.isNack()) {
+			return new NackException(response.getSequenceNumber());
+		}
+		Parameter errorCodeParameter = response.getParameter(Parameter.ERROR_CODE);
+		int errorCode = errorCodeParameter != null
+				? Integer.valueOf(errorCodeParameter.getValue()) : 0;
+		Parameter errorTextParameter = response.getParameter(Parameter.ERROR_TEXT);
+		if (errorTextParameter == null) {
+			return new NegativeResponseException(errorCode);
+		} else {
+			return new NegativeResponseException(
+					errorCode, errorTextParameter.getValue());
+		}
+	}
+
 	private void closeConnection() throws IOException {
 		if (this.connection != null && this.connection.isOpen()) {
 			this.connection.close();
@@ -105,113 +148,375 @@ public class DefaultSession implements Session {
 			Integer serviceDescription,
 			Integer priority)
 	throws IOException, SessionException {
-		List<Parameter> parameters = new LinkedList<Parameter>();
-		parameters.add(new Parameter(Parameter.DESTINATION_ADDRESS, destinationAddress));
-		addParameterIfNotNull(Parameter.ORIGINATING_ADDRESS, originatingAddress, parameters);
-		addParameterIfNotNull(Parameter.ALPHANUMERIC_ORIGINATING_ADDRESS, alphanumericOriginatingAddress, parameters);
+		Packet request = this.recyclePackets
+				? PacketPool.get().acquire(Packet.OP_SUBMIT_MESSAGE)
+				: Packet.withCapacity(Packet.OP_SUBMIT_MESSAGE, 8);
+		Packet response;
+		try {
+			addSubmitMessageParameters(request, destinationAddress,
+					originatingAddress, alphanumericOriginatingAddress, userData,
+					moreMessagesToSend, validityPeriod, protocolIdentifier,
+					firstDeliveryTime, replyPathEnabled, statusReportRequest,
+					cancelEnabled, tariffClass, serviceDescription, priority);
+			response = send(request);
+		} finally {
+			if (this.recyclePackets) {
+				PacketPool.get().release(request);
+			}
+		}
+		Parameter serviceCenterTimeStampParameter = response.getParameter(Parameter.MC_TIMESTAMP);
+		if (serviceCenterTimeStampParameter == null) {
+			throw new IOException("Missing response parameter " +
+					"(Message Center Timestamp - 060)");
+		}
+		// Returned as is, since it identifies the message
+		// (e.g. to enquire its status), use CimdTime to parse it
+		return serviceCenterTimeStampParameter.getValue();
+	}
+
+	/**
+	 * Creates the submit message ({@link Packet#OP_SUBMIT_MESSAGE})
+	 * request. Shared with {@link StoreAndForwardSubmitter}, which
+	 * journals the request before it is sent.
+	 */
+	static Packet createSubmitMessage(String destinationAddress,
+			String originatingAddress, String alphanumericOriginatingAddress,
+			UserData userData,
+			Boolean moreMessagesToSend,
+			TimePeriod validityPeriod,
+			Integer protocolIdentifier,
+			TimePeriod firstDeliveryTime,
+			Boolean replyPathEnabled,
+			Integer statusReportRequest,
+			Boolean cancelEnabled,
+			Integer tariffClass,
+			Integer serviceDescription,
+			Integer priority) {
+		Packet packet = Packet.withCapacity(Packet.OP_SUBMIT_MESSAGE, 8);
+		addSubmitMessageParameters(packet, destinationAddress,
+				originatingAddress, alphanumericOriginatingAddress, userData,
+				moreMessagesToSend, validityPeriod, protocolIdentifier,
+				firstDeliveryTime, replyPathEnabled, statusReportRequest,
+				cancelEnabled, tariffClass, serviceDescription, priority);
+		return packet;
+	}
+
+	private static void addSubmitMessageParameters(Packet packet,
+			String destinationAddress,
+			String originatingAddress, String alphanumericOriginatingAddress,
+			UserData userData,
+			Boolean moreMessagesToSend,
+			TimePeriod validityPeriod,
+			Integer protocolIdentifier,
+			TimePeriod firstDeliveryTime,
+			Boolean replyPathEnabled,
+			Integer statusReportRequest,
+			Boolean cancelEnabled,
+			Integer tariffClass,
+			Integer serviceDescription,
+			Integer priority) {
+		packet.addParameter(new Parameter(Parameter.DESTINATION_ADDRESS, destinationAddress));
+		addParameterIfNotNull(Parameter.ORIGINATING_ADDRESS, originatingAddress, packet);
+		addParameterIfNotNull(Parameter.ALPHANUMERIC_ORIGINATING_ADDRESS, alphanumericOriginatingAddress, packet);
 
 		if (userData != null) {
-			addParameterIfNotNull(Parameter.DATA_CODING_SCHEME, userData.getDataCodingScheme(), parameters);
-			addParameterIfNotNull(Parameter.USER_DATA_HEADER, userData.getHeader(), parameters);
+			addParameterIfNotNull(Parameter.DATA_CODING_SCHEME, userData.getDataCodingScheme(), packet);
+			addParameterIfNotNull(Parameter.USER_DATA_HEADER, userData.getHeader(), packet);
 			if (!userData.isBodyBinary()) {
-				addParameterIfNotNull(Parameter.USER_DATA, userData.getBody(), parameters);
+				addParameterIfNotNull(Parameter.USER_DATA, userData.getBody(), packet);
 			} else {
-				addParameterIfNotNull(Parameter.USER_DATA_BINARY, userData.getBinaryBody(), parameters);
+				addParameterIfNotNull(Parameter.USER_DATA_BINARY, userData.getBinaryBody(), packet);
 			}
 		}
 
-		addParameterIfNotNull(Parameter.MORE_MESSAGES_TO_SEND, moreMessagesToSend, parameters);
+		addParameterIfNotNull(Parameter.MORE_MESSAGES_TO_SEND, moreMessagesToSend, packet);
 
 		if (validityPeriod != null) {
 			if (validityPeriod.isRelative()) {
 				addParameterIfNotNull(Parameter.VALIDITY_PERIOD_RELATIVE,
-						validityPeriod.getRelativeTime(), parameters);
+						validityPeriod.getRelativeTime(), packet);
 			} else {
 				addParameterIfNotNull(Parameter.VALIDITY_PERIOD_ABSOLUTE,
-						validityPeriod.getAbsoluteTime(), parameters);
+						validityPeriod.getAbsoluteTime(), packet);
 			}
 		}
 
-		addParameterIfNotNull(52, protocolIdentifier, parameters);
+		addParameterIfNotNull(52, protocolIdentifier, packet);
 
 		if (firstDeliveryTime != null) {
 			if (firstDeliveryTime.isRelative()) {
 				addParameterIfNotNull(Parameter.FIRST_DELIVERY_TIME_RELATIVE,
-						firstDeliveryTime.getRelativeTime(), parameters);
+						firstDeliveryTime.getRelativeTime(), packet);
 			} else {
 				addParameterIfNotNull(Parameter.FIRST_DELIVERY_TIME_ABSOLUTE,
-						firstDeliveryTime.getAbsoluteTime(), parameters);
+						firstDeliveryTime.getAbsoluteTime(), packet);
 			}
 		}
 
-		addParameterIfNotNull(Parameter.REPLY_PATH, replyPathEnabled, parameters);
-		addParameterIfNotNull(Parameter.STATUS_REPORT_REQUEST, statusReportRequest, parameters);
-		addParameterIfNotNull(Parameter.CANCEL_ENABLED, cancelEnabled, parameters);
-		addParameterIfNotNull(Parameter.TARIFF_CLASS, tariffClass, parameters);
-		addParameterIfNotNull(Parameter.SERVICE_DESCRIPTION, serviceDescription, parameters);
-		addParameterIfNotNull(Parameter.PRIORITY, priority, parameters);
-
-		Packet response = send(new Packet(Packet.OP_SUBMIT_MESSAGE,
-				parameters.toArray(new Parameter[0])));
-		Parameter serviceCenterTimeStampParameter = response.getParameter(Parameter.MC_TIMESTAMP);
-		if (serviceCenterTimeStampParameter == null) {
-			throw new IOException("Missing response parameter " +
-					"(Message Center Timestamp - 060)");
-		}
-		return serviceCenterTimeStampParameter.getValue();
-		/*
-		try {
-			return dateFormat.parse(serviceCenterTimeStampParameter.getValue());
-		} catch (java.text.ParseException e) {
-			throw new IOException("Invalid response parameter " +
-					"(Message Center Timestamp - 060). " +
-					"Expecting yyMMddHHmmss format. But got [" +
-					serviceCenterTimeStampParameter.getValue() + "]");
-		}
-		*/
+		addParameterIfNotNull(Parameter.REPLY_PATH, replyPathEnabled, packet);
+		addParameterIfNotNull(Parameter.STATUS_REPORT_REQUEST, statusReportRequest, packet);
+		addParameterIfNotNull(Parameter.CANCEL_ENABLED, cancelEnabled, packet);
+		addParameterIfNotNull(Parameter.TARIFF_CLASS, tariffClass, packet);
+		addParameterIfNotNull(Parameter.SERVICE_DESCRIPTION, serviceDescription, packet);
+		addParameterIfNotNull(Parameter.PRIORITY, priority, packet);
 	}
 
-	private void addParameterIfNotNull(
-			int number, String value, List<Parameter> parameters) {
+	private static void addParameterIfNotNull(
+			int number, String value, Packet packet) {
 		if (value != null) {
-			parameters.add(new Parameter(number, value));
+			packet.addParameter(new Parameter(number, value));
 		}
 	}
 
-	private void addParameterIfNotNull(
-			int number, Integer value, List<Parameter> parameters) {
+	private static void addParameterIfNotNull(
+			int number, Integer value, Packet packet) {
 		if (value != null) {
-			parameters.add(new Parameter(number, value));
+			packet.addParameter(new Parameter(number, value));
 		}
 	}
 
-	private void addParameterIfNotNull(
-			int number, Boolean value, List<Parameter> parameters) {
+	private static void addParameterIfNotNull(
+			int number, Boolean value, Packet packet) {
 		if (value != null) {
-			parameters.add(new Parameter(number, value));
+			packet.addParameter(new Parameter(number, value));
 		}
 	}
 
-	private void addParameterIfNotNull(
-			int number, byte[] value, List<Parameter> parameters) {
+	private static void addParameterIfNotNull(
+			int number, byte[] value, Packet packet) {
 		if (value != null) {
-			parameters.add(new Parameter(number, value));
+			packet.addParameter(new Parameter(number, value));
 		}
 	}
 
-	private final DateFormat dateFormat = new SimpleDateFormat("yyMMddHHmmss");
-	private void addParameterIfNotNull(
-			int number, Date value, List<Parameter> parameters) {
+	private static void addParameterIfNotNull(
+			int number, Date value, Packet packet) {
 		if (value != null) {
-			parameters.add(new Parameter(number, dateFormat.format(value)));
+			packet.addParameter(new Parameter(number, CimdTime.format(value.getTime())));
 		}
 	}
 
 	@Override
 	public MessageStatus enquireMessageStatus(String destinationAddress,
 			String messageCenterTimestamp) throws IOException, SessionException {
-		// TODO Auto-generated method stub
-		return null;
+		Packet response = send(createEnquireMessageStatus(
+				destinationAddress, messageCenterTimestamp));
+		return toMessageStatus(response);
+	}
+
+	@Override
+	public void enquireMessageStatus(Iterable<MessageReference> messages,
+			final MessageStatusListener listener)
+	throws IOException, SessionException {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener cannot be null");
+		}
+		Connection connection = getConnection();
+		if (!(connection instanceof PipelinedConnection)) {
+			try {
+				for (MessageReference message : messages) {
+					// a negative response fails this message only
+					Packet reply = connection.send(createEnquireMessageStatus(
+							message.getDestinationAddress(),
+							message.getMessageCenterTimeStamp()));
+					if (reply == null) {
+						listener.enquiryFailed(message, new SocketTimeoutException(
+								"No reply to enquiry of " + message));
+						continue;
+					}
+					if (!reply.isPositiveResponse()) {
+						listener.enquiryFailed(message, toException(reply));
+						continue;
+					}
+					MessageStatus status;
+					try {
+						status = toMessageStatus(reply);
+					} catch (IOException e) {
+						listener.enquiryFailed(message, e);
+						continue;
+					} catch (RuntimeException e) {
+						listener.enquiryFailed(message, e);
+						continue;
+					}
+					listener.statusReceived(message, status);
+				}
+			} catch (RateLimitExceededException e) {
+				// Request was not sent, the connection is still usable
+				throw e;
+			} catch (ConnectionLostException e) {
+				// The connection is reconnecting by itself
+				throw e;
+			} catch (Exception e) {
+				try {
+					closeConnection();
+				} catch (IOException ignored) {}
+				throw new SessionException(e);
+			}
+			return;
+		}
+		PipelinedConnection pipelinedConnection = (PipelinedConnection) connection;
+		final Outstanding outstanding = new Outstanding();
+		try {
+			for (final MessageReference message : messages) {
+				// waits for the window before building the request
+				PipelinedConnection.Credit credit = pipelinedConnection.acquireCredit();
+				outstanding.increment();
+				try {
+					pipelinedConnection.send(credit, createEnquireMessageStatus(
+							message.getDestinationAddress(),
+							message.getMessageCenterTimeStamp()),
+							new PipelinedConnection.ReplyCallback() {
+						@Override
+						public void replied(Packet request, Packet reply) {
+							try {
+								if (reply.isPositiveResponse()) {
+									listener.statusReceived(message, toMessageStatus(reply));
+								} else {
+									listener.enquiryFailed(message, toException(reply));
+								}
+							} catch (IOException e) {
+								listener.enquiryFailed(message, e);
+							} catch (RuntimeException e) {
+								// e.g. a malformed status code
+								listener.enquiryFailed(message, e);
+							} finally {
+								outstanding.decrement();
+							}
+						}
+
+						@Override
+						public void failed(Packet request, Exception e) {
+							try {
+								listener.enquiryFailed(message, e);
+							} finally {
+								outstanding.decrement();
+							}
+						}
+					});
+				} catch (Exception e) {
+					// The callback is not called when sending fails
+					credit.release();
+					outstanding.decrement();
+					throw e;
+				}
+			}
+		} catch (Exception e) {
+			try {
+				closeConnection();
+			} catch (IOException ignored) {}
+			outstanding.await();
+			if (e instanceof InterruptedException) {
+				// restored only now, so that the replies are still awaited
+				Thread.currentThread().interrupt();
+			}
+			throw new SessionException(e);
+		}
+		outstanding.await();
+	}
+
+	@Override
+	public int deliveryRequestNumberOfMessagesWaiting()
+	throws IOException, SessionException {
+		Packet response = send(createDeliveryRequest(0));
+		Parameter messageCountParameter = response.getParameter(Parameter.MESSAGE_COUNT);
+		if (messageCountParameter == null) {
+			throw new IOException("Missing response parameter " +
+					"(Number of Messages - 066)");
+		}
+		return Integer.valueOf(messageCountParameter.getValue());
+	}
+
+	@Override
+	public void deliveryRequestOneMessage() throws IOException, SessionException {
+		send(createDeliveryRequest(1));
+	}
+
+	@Override
+	public void deliveryRequestAllMessages() throws IOException, SessionException {
+		send(createDeliveryRequest(2));
+	}
+
+	private static Packet createDeliveryRequest(int mode) {
+		return new Packet(Packet.OP_DELIVERY_REQUEST,
+				new Parameter(Parameter.DELIVERY_REQUEST_MODE, mode));
+	}
+
+	static Packet createEnquireMessageStatus(
+			String destinationAddress, String messageCenterTimestamp) {
+		return new Packet(Packet.OP_ENQUIRE_MESSAGE_STATUS,
+				new Parameter(Parameter.DESTINATION_ADDRESS, destinationAddress),
+				new Parameter(Parameter.MC_TIMESTAMP, messageCenterTimestamp));
+	}
+
+	static MessageStatus toMessageStatus(Packet response) throws IOException {
+		Parameter statusCodeParameter = response.getParameter(Parameter.STATUS_CODE);
+		if (statusCodeParameter == null) {
+			throw new IOException("Missing response parameter " +
+					"(Status Code - 061)");
+		}
+		Parameter statusErrorCodeParameter = response.getParameter(Parameter.STATUS_ERROR_CODE);
+		Parameter dischargeTimeParameter = response.getParameter(Parameter.DISCHARGE_TIME);
+		Date dischargeTime = null;
+		if (dischargeTimeParameter != null) {
+			try {
+				dischargeTime = new Date(CimdTime.parse(dischargeTimeParameter.getValue()));
+			} catch (ParseException e) {
+				throw new IOException("Invalid response parameter " +
+						"(Discharge Time - 063). " +
+						"Expecting yyMMddHHmmss format. But got [" +
+						dischargeTimeParameter.getValue() + "]");
+			}
+		}
+		return new MessageStatus(
+				Integer.valueOf(statusCodeParameter.getValue()),
+				statusErrorCodeParameter != null
+						? Integer.valueOf(statusErrorCodeParameter.getValue()) : 0,
+				dischargeTime);
+	}
+
+	/**
+	 * Counts the pipelined enquiries still waiting for a reply.
+	 */
+	private static class Outstanding {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition done = this.lock.newCondition();
+		private int count;
+
+		public void increment() {
+			this.lock.lock();
+			try {
+				this.count++;
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		public void decrement() {
+			this.lock.lock();
+			try {
+				this.count--;
+				if (this.count == 0) {
+					this.done.signalAll();
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		public void await() throws SessionException {
+			this.lock.lock();
+			try {
+				while (this.count > 0) {
+					this.done.await();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SessionException(
+						"Interrupted while waiting for replies", e);
+			} finally {
+				this.lock.unlock();
+			}
+		}
 	}
 
 }
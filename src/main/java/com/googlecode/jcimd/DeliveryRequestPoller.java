@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Polls the SMS Center for waiting messages, for querying type of
+ * applications.
+ * <p>
+ * Each poll asks for the number of messages waiting. When there are
+ * none, the interval to the next poll doubles, up to the
+ * {@link #setMaxInterval(long) maximum interval}. When there are
+ * messages waiting, they are requested (all at once, when more than
+ * one is waiting), and the next poll follows after the
+ * {@link #setMinInterval(long) minimum interval}. This keeps latency
+ * low while messages arrive, without wasting requests while none do.
+ * <p>
+ * The delivered messages are passed to the {@link MessageReceiver} of
+ * the session's connections (e.g. see
+ * {@link TcpNetConnectionFactory#setMessageReceiver(MessageReceiver)}).
+ * <p>
+ * The poller uses the session from its own thread, so the session
+ * should not be used by other threads at the same time.
+ *
+ * @author Lorenzo Dee
+ */
+public class DeliveryRequestPoller {
+
+	private static final Log logger = LogFactory.getLog(DeliveryRequestPoller.class);
+
+	private final QueryingSession session;
+
+	private long minInterval = 100;
+	private long maxInterval = 30000;
+	private ScheduledExecutorService scheduler;
+	private boolean ownScheduler;
+
+	private volatile long interval;
+	private boolean running;
+	private ScheduledFuture<?> future;
+
+	public DeliveryRequestPoller(QueryingSession session) {
+		if (session == null) {
+			throw new IllegalArgumentException("session cannot be null");
+		}
+		this.session = session;
+	}
+
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) between polls while messages
+	 * are waiting. Defaults to 100.
+	 */
+	public void setMinInterval(long minInterval) {
+		if (minInterval <= 0) {
+			throw new IllegalArgumentException("minInterval must be greater than zero");
+		}
+		this.minInterval = minInterval;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	/**
+	 * Sets the longest interval (in milliseconds) between polls when
+	 * no messages are waiting. Defaults to 30000.
+	 */
+	public void setMaxInterval(long maxInterval) {
+		if (maxInterval <= 0) {
+			throw new IllegalArgumentException("maxInterval must be greater than zero");
+		}
+		this.maxInterval = maxInterval;
+	}
+
+	/**
+	 * Sets the scheduler that runs the polls (which block while waiting
+	 * for the SMS Center). Defaults to a single thread from
+	 * {@link Threads#newThreadFactory(String)} (a daemon thread, or a
+	 * virtual thread on Java 21), created when started.
+	 * @param scheduler the scheduler
+	 */
+	public void setScheduler(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Returns the current interval (in milliseconds) to the next poll.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	public synchronized void start() {
+		if (this.running) {
+			return;
+		}
+		if (this.scheduler == null) {
+			this.ownScheduler = true;
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(
+					Threads.newThreadFactory("jcimd-poller"));
+		}
+		this.interval = this.minInterval;
+		this.running = true;
+		schedule(0);
+	}
+
+	public synchronized void stop() {
+		this.running = false;
+		if (this.future != null) {
+			this.future.cancel(false);
+			this.future = null;
+		}
+		if (this.ownScheduler) {
+			this.scheduler.shutdown();
+			this.scheduler = null;
+			this.ownScheduler = false;
+		}
+	}
+
+	private synchronized void schedule(long delay) {
+		if (!this.running) {
+			return;
+		}
+		this.future = this.scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void poll() {
+		try {
+			int waiting = this.session.deliveryRequestNumberOfMessagesWaiting();
+			if (waiting > 0) {
+				if (waiting == 1) {
+					this.session.deliveryRequestOneMessage();
+				} else {
+					this.session.deliveryRequestAllMessages();
+				}
+				this.interval = this.minInterval;
+			} else {
+				backOff();
+			}
+		} catch (Exception e) {
+			if (logger.isWarnEnabled()) {
+				logger.warn("Failed to poll for messages: " + e.getMessage());
+			}
+			backOff();
+		}
+		schedule(this.interval);
+	}
+
+	private void backOff() {
+		this.interval = Math.min(this.interval * 2, this.maxInterval);
+	}
+
+}
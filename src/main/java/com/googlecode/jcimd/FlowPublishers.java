@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Adapts a {@link MessagePublisher} to
+ * <code>java.util.concurrent.Flow.Publisher</code>.
+ * <p>
+ * This is the version used on runtimes without the Flow API, and it
+ * fails. On Java 11 and later, the multi-release JAR provides a version
+ * of this class (see <code>src/main/java11</code>) that adapts the
+ * publisher. Both versions have the same API, as the JAR requires.
+ *
+ * @author Lorenzo Dee
+ */
+final class FlowPublishers {
+
+	private FlowPublishers() {}
+
+	static Object adapt(MessagePublisher publisher) {
+		throw new UnsupportedOperationException(
+				"Flow.Publisher is only available on Java 11 or later");
+	}
+
+}
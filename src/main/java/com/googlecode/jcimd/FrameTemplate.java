@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A precomputed frame, where only the sequence number and the checksum
+ * differ between packets. Used for packets without parameters, like
+ * alive and logout operations, and the responses to alive operations
+ * and delivered messages, which are a large share of the traffic.
+ * <p>
+ * The frame is encoded once, with sequence number 000. When written,
+ * the actual sequence number is patched in, and the checksum is
+ * adjusted by the sum of its digits. Templates are immutable, and are
+ * shared by all connections.
+ *
+ * @author Lorenzo Dee
+ */
+final class FrameTemplate {
+
+	// STX, operation code (two bytes), and colon
+	private static final int SEQUENCE_NUMBER_OFFSET = 4;
+	private static final int SEQUENCE_NUMBER_LENGTH = 3;
+
+	private static final FrameTemplate[] WITHOUT_PARAMETERS = new FrameTemplate[100];
+
+	static {
+		for (int operationCode = 1; operationCode < WITHOUT_PARAMETERS.length; operationCode++) {
+			WITHOUT_PARAMETERS[operationCode] = new FrameTemplate(operationCode, new byte[0]);
+		}
+	}
+
+	/**
+	 * Returns the template for the given packet, or <code>null</code> if
+	 * it has parameters (and needs to be serialized).
+	 */
+	static FrameTemplate forPacket(Packet packet) {
+		int operationCode = packet.getOperationCode();
+		if (packet.hasParameters()
+				|| operationCode <= 0 || operationCode >= WITHOUT_PARAMETERS.length) {
+			return null;
+		}
+		return WITHOUT_PARAMETERS[operationCode];
+	}
+
+	// from the STX up to the last TAB
+	private final byte[] frame;
+	private final int baseChecksum;
+
+	/**
+	 * @param operationCode the operation code (1 - 99)
+	 * @param encodedParameters the parameters as written on the wire
+	 */
+	FrameTemplate(int operationCode, byte[] encodedParameters) {
+		try {
+			this.frame = PacketSerializer.serializeToByteArray(
+					Packet.withEncodedParameters(operationCode, encodedParameters), 0);
+			this.baseChecksum = CimdChecksum.sum(this.frame, 0, this.frame.length);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot encode frame", e);
+		}
+	}
+
+	/**
+	 * Writes the frame with the given sequence number.
+	 * @param sequenceNumber the sequence number (0 - 999)
+	 * @param useChecksum whether to write the checksum
+	 * @param out the output stream
+	 * @return the number of bytes written
+	 * @throws IOException if an I/O error occurs
+	 */
+	int writeTo(int sequenceNumber, boolean useChecksum, OutputStream out) throws IOException {
+		out.write(this.frame, 0, SEQUENCE_NUMBER_OFFSET);
+		AsciiUtils.writeIntAsAsciiBytes(sequenceNumber, out, SEQUENCE_NUMBER_LENGTH);
+		int afterSequenceNumber = SEQUENCE_NUMBER_OFFSET + SEQUENCE_NUMBER_LENGTH;
+		out.write(this.frame, afterSequenceNumber, this.frame.length - afterSequenceNumber);
+		if (useChecksum) {
+			// the base checksum was taken with '0' digits
+			int checksum = this.baseChecksum + sequenceNumber / 100 % 10
+					+ sequenceNumber / 10 % 10 + sequenceNumber % 10;
+			AsciiUtils.writeIntAsHexAsciiBytes(checksum & 0xFF, out, 2);
+		}
+		out.write(PacketSerializer.ETX);
+		return this.frame.length + (useChecksum ? 3 : 1);
+	}
+
+}
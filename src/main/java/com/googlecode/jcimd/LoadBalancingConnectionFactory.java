@@ -0,0 +1,478 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link ConnectionFactory} that spreads connections across several
+ * SMSC endpoints (each represented by its own connection factory).
+ * <p>
+ * Endpoints are chosen using a {@link Strategy strategy}. An endpoint
+ * whose connection factory fails (e.g. connect or login failure) is
+ * marked as unhealthy, and is not chosen again until its back-off
+ * period has passed. The back-off period starts at
+ * {@link #setInitialBackoff(long) initial back-off} and doubles on each
+ * consecutive failure, up to the {@link #setMaxBackoff(long) maximum
+ * back-off}. A successful connection re-admits the endpoint.
+ * <p>
+ * When the chosen endpoint fails, the next candidate is tried, so a
+ * call to {@link #getConnection()} only fails when no endpoint could
+ * provide a connection. Connections from endpoints that are
+ * {@link PipelinedConnection pipelined} remain pipelined.
+ * <pre>
+ * LoadBalancingConnectionFactory connectionFactory = new LoadBalancingConnectionFactory();
+ * connectionFactory.addEndpoint(new TcpNetConnectionFactory(host1, port, username, password), 2);
+ * connectionFactory.addEndpoint(new TcpNetConnectionFactory(host2, port, username, password), 1);
+ * Session session = new DefaultSession(connectionFactory);
+ * </pre>
+ *
+ * @author Lorenzo Dee
+ */
+public class LoadBalancingConnectionFactory implements ConnectionFactory {
+
+	private static final Log logger = LogFactory.getLog(LoadBalancingConnectionFactory.class);
+
+	/**
+	 * Strategies to choose an endpoint for a new connection.
+	 */
+	public enum Strategy {
+		/**
+		 * Chooses endpoints in proportion to their weights
+		 * (smooth weighted round-robin).
+		 */
+		WEIGHTED_ROUND_ROBIN,
+		/**
+		 * Chooses the endpoint with the least outstanding requests
+		 * (relative to its weight) over the connections it has
+		 * provided. Ties go to the endpoint with the fewest open
+		 * connections (relative to its weight).
+		 */
+		LEAST_OUTSTANDING_REQUESTS
+	}
+
+	private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+	private Strategy strategy = Strategy.WEIGHTED_ROUND_ROBIN;
+	private long initialBackoff = 1000;
+	private long maxBackoff = 60000;
+
+	public LoadBalancingConnectionFactory() {
+		super();
+	}
+
+	public LoadBalancingConnectionFactory(List<? extends ConnectionFactory> connectionFactories) {
+		for (ConnectionFactory connectionFactory : connectionFactories) {
+			addEndpoint(connectionFactory, 1);
+		}
+	}
+
+	/**
+	 * Adds an endpoint with the given weight.
+	 * @param connectionFactory the connection factory of the endpoint
+	 * @param weight the (positive) weight of the endpoint
+	 */
+	public synchronized void addEndpoint(ConnectionFactory connectionFactory, int weight) {
+		if (connectionFactory == null) {
+			throw new IllegalArgumentException("connectionFactory cannot be null");
+		}
+		if (weight <= 0) {
+			throw new IllegalArgumentException("weight must be greater than zero");
+		}
+		this.endpoints.add(new Endpoint(connectionFactory, weight));
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public void setStrategy(Strategy strategy) {
+		if (strategy == null) {
+			throw new IllegalArgumentException("strategy cannot be null");
+		}
+		this.strategy = strategy;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) an endpoint is considered
+	 * unhealthy after its first failure. Defaults to 1000.
+	 * @param initialBackoff the initial back-off in milliseconds
+	 */
+	public void setInitialBackoff(long initialBackoff) {
+		if (initialBackoff <= 0) {
+			throw new IllegalArgumentException(
+					"initialBackoff must be greater than zero");
+		}
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) an endpoint is considered
+	 * unhealthy after consecutive failures. Defaults to 60000.
+	 * @param maxBackoff the maximum back-off in milliseconds
+	 */
+	public void setMaxBackoff(long maxBackoff) {
+		if (maxBackoff <= 0) {
+			throw new IllegalArgumentException(
+					"maxBackoff must be greater than zero");
+		}
+		this.maxBackoff = maxBackoff;
+	}
+
+	@Override
+	public Connection getConnection() throws Exception {
+		List<Endpoint> candidates = candidates(System.currentTimeMillis());
+		if (candidates.isEmpty()) {
+			throw new IllegalStateException("No endpoints were added");
+		}
+		Exception lastException = null;
+		for (Endpoint endpoint : candidates) {
+			try {
+				Connection connection = endpoint.connectionFactory.getConnection();
+				markHealthy(endpoint);
+				return opened(connection instanceof PipelinedConnection
+						? new PipelinedEndpointConnection(
+								(PipelinedConnection) connection, endpoint)
+						: new EndpointConnection(connection, endpoint));
+			} catch (Exception e) {
+				markUnhealthy(endpoint, e);
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+
+	/**
+	 * Returns the endpoints to try, in order of preference. Healthy
+	 * endpoints (and those whose back-off period has passed) come first.
+	 * Endpoints that are still backing off are only included as a last
+	 * resort, in order of their earliest re-admission.
+	 */
+	private synchronized List<Endpoint> candidates(long now) {
+		List<Endpoint> available = new ArrayList<Endpoint>(this.endpoints.size());
+		List<Endpoint> backingOff = new ArrayList<Endpoint>();
+		for (Endpoint endpoint : this.endpoints) {
+			if (endpoint.retryAt <= now) {
+				available.add(endpoint);
+			} else {
+				int i = 0;
+				while (i < backingOff.size() && backingOff.get(i).retryAt <= endpoint.retryAt) {
+					i++;
+				}
+				backingOff.add(i, endpoint);
+			}
+		}
+		List<Endpoint> candidates = new ArrayList<Endpoint>(this.endpoints.size());
+		if (!available.isEmpty()) {
+			// Only the first choice goes through the strategy. The rest
+			// are fall-backs, and should not skew the round-robin.
+			Endpoint first = (this.strategy == Strategy.LEAST_OUTSTANDING_REQUESTS)
+					? leastOutstanding(available)
+					: weightedRoundRobin(available);
+			available.remove(first);
+			candidates.add(first);
+			candidates.addAll(available);
+		}
+		candidates.addAll(backingOff);
+		return candidates;
+	}
+
+	/**
+	 * Smooth weighted round-robin. Each endpoint's current weight is
+	 * increased by its weight, the endpoint with the highest current
+	 * weight is chosen, and its current weight is reduced by the total.
+	 */
+	private Endpoint weightedRoundRobin(List<Endpoint> available) {
+		int totalWeight = 0;
+		Endpoint best = null;
+		for (Endpoint endpoint : available) {
+			endpoint.currentWeight += endpoint.weight;
+			totalWeight += endpoint.weight;
+			if (best == null || endpoint.currentWeight > best.currentWeight) {
+				best = endpoint;
+			}
+		}
+		best.currentWeight -= totalWeight;
+		return best;
+	}
+
+	private Endpoint leastOutstanding(List<Endpoint> available) {
+		Endpoint best = null;
+		int bestOpenConnections = 0;
+		for (Endpoint endpoint : available) {
+			int openConnections = endpoint.openConnections();
+			if (best == null) {
+				best = endpoint;
+				bestOpenConnections = openConnections;
+				continue;
+			}
+			// compare outstanding/weight without division
+			long outstanding = (long) endpoint.outstanding.get() * best.weight;
+			long bestOutstanding = (long) best.outstanding.get() * endpoint.weight;
+			if (outstanding < bestOutstanding || (outstanding == bestOutstanding
+					&& (long) openConnections * best.weight
+					< (long) bestOpenConnections * endpoint.weight)) {
+				best = endpoint;
+				bestOpenConnections = openConnections;
+			}
+		}
+		return best;
+	}
+
+	private synchronized EndpointConnection opened(EndpointConnection connection) {
+		// forgets closed connections, whatever the strategy
+		connection.endpoint.openConnections();
+		connection.endpoint.connections.add(connection);
+		return connection;
+	}
+
+	private synchronized void markHealthy(Endpoint endpoint) {
+		if (endpoint.failures > 0 && logger.isInfoEnabled()) {
+			logger.info("Endpoint [" + endpoint + "] re-admitted after "
+					+ endpoint.failures + " failure(s)");
+		}
+		endpoint.failures = 0;
+		endpoint.retryAt = 0;
+	}
+
+	private synchronized void markUnhealthy(Endpoint endpoint, Exception e) {
+		long backoff = this.initialBackoff;
+		for (int i = 0; i < endpoint.failures && backoff < this.maxBackoff; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, this.maxBackoff);
+		endpoint.failures++;
+		endpoint.retryAt = System.currentTimeMillis() + backoff;
+		if (logger.isWarnEnabled()) {
+			logger.warn("Endpoint [" + endpoint + "] marked unhealthy for "
+					+ backoff + " ms: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of requests sent, but not yet replied to,
+	 * over all connections provided by the given endpoint's connection
+	 * factory.
+	 * @param connectionFactory the connection factory of the endpoint
+	 * @return the number of outstanding requests
+	 */
+	public synchronized int getOutstandingRequests(ConnectionFactory connectionFactory) {
+		for (Endpoint endpoint : this.endpoints) {
+			if (endpoint.connectionFactory == connectionFactory) {
+				return endpoint.outstanding.get();
+			}
+		}
+		throw new IllegalArgumentException("Unknown endpoint: " + connectionFactory);
+	}
+
+	/**
+	 * Returns the number of connections provided by the given
+	 * endpoint's connection factory that are not yet closed.
+	 * @param connectionFactory the connection factory of the endpoint
+	 * @return the number of open connections
+	 */
+	public synchronized int getOpenConnections(ConnectionFactory connectionFactory) {
+		for (Endpoint endpoint : this.endpoints) {
+			if (endpoint.connectionFactory == connectionFactory) {
+				return endpoint.openConnections();
+			}
+		}
+		throw new IllegalArgumentException("Unknown endpoint: " + connectionFactory);
+	}
+
+	/**
+	 * Returns <code>true</code> if the endpoint of the given connection
+	 * factory is not backing off after a failure.
+	 * @param connectionFactory the connection factory of the endpoint
+	 * @return <code>true</code> if the endpoint is healthy
+	 */
+	public synchronized boolean isHealthy(ConnectionFactory connectionFactory) {
+		for (Endpoint endpoint : this.endpoints) {
+			if (endpoint.connectionFactory == connectionFactory) {
+				return endpoint.retryAt <= System.currentTimeMillis();
+			}
+		}
+		throw new IllegalArgumentException("Unknown endpoint: " + connectionFactory);
+	}
+
+	private static class Endpoint {
+		private final ConnectionFactory connectionFactory;
+		private final int weight;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final List<Connection> connections = new ArrayList<Connection>();
+		private int currentWeight;
+		private int failures;
+		private long retryAt;
+
+		public Endpoint(ConnectionFactory connectionFactory, int weight) {
+			this.connectionFactory = connectionFactory;
+			this.weight = weight;
+		}
+
+		/**
+		 * Returns the number of connections provided by this endpoint
+		 * that are not yet closed, forgetting those that are.
+		 */
+		public int openConnections() {
+			for (Iterator<Connection> i = this.connections.iterator(); i.hasNext();) {
+				if (i.next().isClosed()) {
+					i.remove();
+				}
+			}
+			return this.connections.size();
+		}
+
+		@Override
+		public String toString() {
+			if (this.connectionFactory instanceof TcpNetConnectionFactory) {
+				TcpNetConnectionFactory tcpNetConnectionFactory =
+						(TcpNetConnectionFactory) this.connectionFactory;
+				return tcpNetConnectionFactory.getHost() + ":"
+						+ tcpNetConnectionFactory.getPort();
+			}
+			return this.connectionFactory.toString();
+		}
+	}
+
+	/**
+	 * Counts the outstanding requests of its endpoint.
+	 */
+	private static class EndpointConnection implements Connection {
+		private final Connection connection;
+		final Endpoint endpoint;
+
+		public EndpointConnection(Connection connection, Endpoint endpoint) {
+			this.connection = connection;
+			this.endpoint = endpoint;
+		}
+
+		@Override
+		public Packet send(Packet request) throws Exception {
+			this.endpoint.outstanding.incrementAndGet();
+			try {
+				return this.connection.send(request);
+			} finally {
+				this.endpoint.outstanding.decrementAndGet();
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.connection.isOpen();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return this.connection.isClosed();
+		}
+
+		@Override
+		public void close() {
+			this.connection.close();
+		}
+	}
+
+	/**
+	 * Keeps a {@link PipelinedConnection} pipelined. A pipelined request
+	 * is outstanding until its callback is called.
+	 */
+	private static class PipelinedEndpointConnection extends EndpointConnection
+			implements PipelinedConnection {
+		private final PipelinedConnection pipelinedConnection;
+
+		public PipelinedEndpointConnection(PipelinedConnection connection, Endpoint endpoint) {
+			super(connection, endpoint);
+			this.pipelinedConnection = connection;
+		}
+
+		@Override
+		public int getAvailableCredits() {
+			return this.pipelinedConnection.getAvailableCredits();
+		}
+
+		@Override
+		public Credit acquireCredit() throws InterruptedException {
+			return this.pipelinedConnection.acquireCredit();
+		}
+
+		@Override
+		public Credit tryAcquireCredit(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			return this.pipelinedConnection.tryAcquireCredit(timeout, unit);
+		}
+
+		@Override
+		public Credit tryAcquireCredit() {
+			return this.pipelinedConnection.tryAcquireCredit();
+		}
+
+		@Override
+		public void send(Packet request, ReplyCallback callback) throws Exception {
+			this.endpoint.outstanding.incrementAndGet();
+			try {
+				this.pipelinedConnection.send(request, outstanding(callback));
+			} catch (Exception e) {
+				this.endpoint.outstanding.decrementAndGet();
+				throw e;
+			}
+		}
+
+		@Override
+		public void send(Credit credit, Packet request, ReplyCallback callback)
+				throws Exception {
+			this.endpoint.outstanding.incrementAndGet();
+			try {
+				this.pipelinedConnection.send(credit, request, outstanding(callback));
+			} catch (Exception e) {
+				this.endpoint.outstanding.decrementAndGet();
+				throw e;
+			}
+		}
+
+		private ReplyCallback outstanding(final ReplyCallback callback) {
+			return new ReplyCallback() {
+				@Override
+				public void replied(Packet request, Packet reply) {
+					endpoint.outstanding.decrementAndGet();
+					callback.replied(request, reply);
+				}
+
+				@Override
+				public void failed(Packet request, Exception e) {
+					endpoint.outstanding.decrementAndGet();
+					callback.failed(request, e);
+				}
+			};
+		}
+	}
+
+}
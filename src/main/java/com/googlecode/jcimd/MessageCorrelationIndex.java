@@ -0,0 +1,374 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact in-memory index that maps submitted messages, identified by
+ * destination address and message center timestamp (parameter 060),
+ * to application message ids. Used to correlate incoming
+ * {@link Packet#OP_DELIVER_STATUS_REPORT status reports} with the
+ * messages they report on, without a database lookup.
+ * <p>
+ * Entries are kept in open-addressing hash tables of primitive arrays
+ * (no objects per entry), split into segments that are locked
+ * independently. Numeric addresses (up to 18 digits, with an optional
+ * leading <code>+</code>) and timestamps are encoded as <code>long</code>
+ * values without loss. Other addresses are reduced to a 64-bit hash,
+ * which may (very rarely) collide.
+ * <p>
+ * Entries expire after the time-to-live given at construction (with a
+ * granularity of one second). Expired entries are never returned, and
+ * their slots are reclaimed as the tables fill up, or by calling
+ * {@link #evictExpired()}. Since the SMS Center may send more than one
+ * status report per message, entries are not removed on lookup.
+ *
+ * @author Lorenzo Dee
+ */
+public class MessageCorrelationIndex {
+
+	/**
+	 * Returned when no (unexpired) entry is found.
+	 */
+	public static final long NOT_FOUND = -1;
+
+	private static final int SEGMENTS = 16;
+	private static final int SEGMENT_SHIFT = 60;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final long timeToLiveSeconds;
+	private final long baseMillis;
+
+	public MessageCorrelationIndex(long timeToLive, TimeUnit unit) {
+		this(timeToLive, unit, 1024);
+	}
+
+	/**
+	 * @param timeToLive how long entries are kept
+	 * @param unit the unit of <code>timeToLive</code>
+	 * @param initialCapacity the number of entries to size the tables for
+	 */
+	public MessageCorrelationIndex(long timeToLive, TimeUnit unit, int initialCapacity) {
+		this.timeToLiveSeconds = Math.max(1, unit.toSeconds(timeToLive));
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("initialCapacity cannot be negative");
+		}
+		int segmentCapacity = 16;
+		while (segmentCapacity * SEGMENTS * 3 / 4 < initialCapacity) {
+			segmentCapacity <<= 1;
+		}
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment(segmentCapacity);
+		}
+		this.baseMillis = currentTimeMillis();
+	}
+
+	/**
+	 * Adds (or replaces) the message id of a submitted message.
+	 * @param destinationAddress the destination address (parameter 021)
+	 * @param messageCenterTimestamp the message center timestamp
+	 *     returned by the SMS Center (parameter 060)
+	 * @param messageId the application message id (cannot be negative)
+	 */
+	public void put(String destinationAddress,
+			String messageCenterTimestamp, long messageId) {
+		if (messageId < 0) {
+			throw new IllegalArgumentException("messageId cannot be negative");
+		}
+		long address = encode(destinationAddress);
+		long timestamp = encode(messageCenterTimestamp);
+		long hash = hash(address, timestamp);
+		int now = now();
+		segmentFor(hash).put(address, timestamp, (int) hash, messageId,
+				expiry(now), now);
+	}
+
+	/**
+	 * Returns the message id of the given message, or {@link #NOT_FOUND}.
+	 */
+	public long get(String destinationAddress, String messageCenterTimestamp) {
+		long address = encode(destinationAddress);
+		long timestamp = encode(messageCenterTimestamp);
+		long hash = hash(address, timestamp);
+		return segmentFor(hash).get(address, timestamp, (int) hash, now());
+	}
+
+	/**
+	 * Removes the given message, and returns its message id, or
+	 * {@link #NOT_FOUND}.
+	 */
+	public long remove(String destinationAddress, String messageCenterTimestamp) {
+		long address = encode(destinationAddress);
+		long timestamp = encode(messageCenterTimestamp);
+		long hash = hash(address, timestamp);
+		return segmentFor(hash).remove(address, timestamp, (int) hash, now());
+	}
+
+	/**
+	 * Returns the message id of the message that the given status report
+	 * (or enquire message status response) refers to, or {@link #NOT_FOUND}.
+	 * @param packet a packet with destination address (021) and
+	 *     message center timestamp (060) parameters
+	 */
+	public long resolve(Packet packet) {
+		Parameter destinationAddress = packet.getParameter(Parameter.DESTINATION_ADDRESS);
+		Parameter messageCenterTimestamp = packet.getParameter(Parameter.MC_TIMESTAMP);
+		if (destinationAddress == null || messageCenterTimestamp == null) {
+			return NOT_FOUND;
+		}
+		return get(destinationAddress.getValue(), messageCenterTimestamp.getValue());
+	}
+
+	/**
+	 * Removes all expired entries.
+	 * @return the number of entries removed
+	 */
+	public int evictExpired() {
+		int now = now();
+		int evicted = 0;
+		for (Segment segment : this.segments) {
+			evicted += segment.evictExpired(now);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Returns the number of entries, including expired entries that
+	 * have not been evicted yet.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Seconds since construction, starting at one, so that an expiry of
+	 * zero can mark an empty slot.
+	 */
+	private int now() {
+		return (int) ((currentTimeMillis() - this.baseMillis) / 1000) + 1;
+	}
+
+	private int expiry(int now) {
+		return (int) Math.min(Integer.MAX_VALUE, now + this.timeToLiveSeconds);
+	}
+
+	private Segment segmentFor(long hash) {
+		return this.segments[(int) (hash >>> SEGMENT_SHIFT)];
+	}
+
+	/**
+	 * Encodes up to 18 digits (with an optional leading '+') as a
+	 * non-negative long. A leading one (1) keeps leading zeros, and
+	 * the '+' is kept as a digit above it. Anything else is hashed
+	 * into a negative long.
+	 */
+	static long encode(String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value cannot be null");
+		}
+		int length = value.length();
+		int start = length > 0 && value.charAt(0) == '+' ? 1 : 0;
+		if (length - start <= 18) {
+			long encoded = start == 0 ? 1 : 2;
+			int i = start;
+			for (; i < length; i++) {
+				char c = value.charAt(i);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				encoded = encoded * 10 + (c - '0');
+			}
+			if (i == length) {
+				return encoded;
+			}
+		}
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < length; i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash | Long.MIN_VALUE;
+	}
+
+	private static long hash(long address, long timestamp) {
+		long h = address * 0x9e3779b97f4a7c15L + timestamp;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Linear probing table. A slot is empty when its expiry is zero.
+	 * Removal shifts the following entries back, so no tombstones are
+	 * needed.
+	 */
+	private static final class Segment {
+		private long[] addresses;
+		private long[] timestamps;
+		private long[] messageIds;
+		private int[] hashes;
+		private int[] expiries;
+		private int mask;
+		private int size;
+
+		Segment(int capacity) {
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			this.addresses = new long[capacity];
+			this.timestamps = new long[capacity];
+			this.messageIds = new long[capacity];
+			this.hashes = new int[capacity];
+			this.expiries = new int[capacity];
+			this.mask = capacity - 1;
+			this.size = 0;
+		}
+
+		synchronized int size() {
+			return this.size;
+		}
+
+		synchronized void put(long address, long timestamp, int hash,
+				long messageId, int expiry, int now) {
+			int i = indexOf(address, timestamp, hash);
+			if (i >= 0) {
+				this.messageIds[i] = messageId;
+				this.expiries[i] = expiry;
+				return;
+			}
+			if (this.size + 1 > (this.mask + 1) * 3 / 4) {
+				evictExpired(now);
+				if (this.size + 1 > (this.mask + 1) * 3 / 4) {
+					grow();
+				}
+			}
+			insert(address, timestamp, hash, messageId, expiry);
+		}
+
+		synchronized long get(long address, long timestamp, int hash, int now) {
+			int i = indexOf(address, timestamp, hash);
+			if (i < 0) {
+				return NOT_FOUND;
+			}
+			if (this.expiries[i] <= now) {
+				removeAt(i);
+				return NOT_FOUND;
+			}
+			return this.messageIds[i];
+		}
+
+		synchronized long remove(long address, long timestamp, int hash, int now) {
+			int i = indexOf(address, timestamp, hash);
+			if (i < 0) {
+				return NOT_FOUND;
+			}
+			long messageId = this.expiries[i] > now ? this.messageIds[i] : NOT_FOUND;
+			removeAt(i);
+			return messageId;
+		}
+
+		synchronized int evictExpired(int now) {
+			int evicted = 0;
+			for (int i = 0; i <= this.mask; i++) {
+				// An entry shifted into slot i is checked before moving on
+				while (this.expiries[i] != 0 && this.expiries[i] <= now) {
+					removeAt(i);
+					evicted++;
+				}
+			}
+			return evicted;
+		}
+
+		private int indexOf(long address, long timestamp, int hash) {
+			for (int i = hash & this.mask; this.expiries[i] != 0; i = (i + 1) & this.mask) {
+				if (this.hashes[i] == hash
+						&& this.addresses[i] == address
+						&& this.timestamps[i] == timestamp) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void insert(long address, long timestamp, int hash,
+				long messageId, int expiry) {
+			int i = hash & this.mask;
+			while (this.expiries[i] != 0) {
+				i = (i + 1) & this.mask;
+			}
+			this.addresses[i] = address;
+			this.timestamps[i] = timestamp;
+			this.hashes[i] = hash;
+			this.messageIds[i] = messageId;
+			this.expiries[i] = expiry;
+			this.size++;
+		}
+
+		private void removeAt(int i) {
+			int j = i;
+			for (;;) {
+				j = (j + 1) & this.mask;
+				if (this.expiries[j] == 0) {
+					break;
+				}
+				int home = this.hashes[j] & this.mask;
+				// Keep the entry at j if its home slot is cyclically in (i, j]
+				if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+					continue;
+				}
+				this.addresses[i] = this.addresses[j];
+				this.timestamps[i] = this.timestamps[j];
+				this.hashes[i] = this.hashes[j];
+				this.messageIds[i] = this.messageIds[j];
+				this.expiries[i] = this.expiries[j];
+				i = j;
+			}
+			this.expiries[i] = 0;
+			this.size--;
+		}
+
+		private void grow() {
+			long[] oldAddresses = this.addresses;
+			long[] oldTimestamps = this.timestamps;
+			long[] oldMessageIds = this.messageIds;
+			int[] oldHashes = this.hashes;
+			int[] oldExpiries = this.expiries;
+			allocate(oldExpiries.length << 1);
+			for (int i = 0; i < oldExpiries.length; i++) {
+				if (oldExpiries[i] != 0) {
+					insert(oldAddresses[i], oldTimestamps[i], oldHashes[i],
+							oldMessageIds[i], oldExpiries[i]);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link MessageReceiver} that publishes the delivered messages to a
+ * single subscriber, as fast as the subscriber requests them.
+ * <p>
+ * The subscriber signals demand by {@link Subscription#request(long)
+ * requesting} messages. A delivered message is passed to the subscriber
+ * on the connection's reader thread, and is only acknowledged after
+ * {@link Subscriber#onNext(Packet)} returns. While there is no demand,
+ * the reader thread waits (up to the {@link #setMaxWait(long) maximum
+ * wait}), and no further messages are acknowledged. Since the SMS
+ * Center only has a limited window of unacknowledged messages, it stops
+ * delivering. So, messages are never buffered, and the SMS Center is
+ * paced at the rate of the subscriber.
+ * <p>
+ * A message that is not requested within the maximum wait, or that
+ * arrives while there is no subscriber, is not acknowledged, and the
+ * SMS Center delivers it again later. Note that a waiting reader thread
+ * does not read replies to requests sent over the same connection, so
+ * publishers are best used with receive-only connections.
+ * <p>
+ * These interfaces follow the semantics of
+ * <code>java.util.concurrent.Flow</code>. On Java 11 or later,
+ * {@link #toFlowPublisher()} adapts this publisher to
+ * <code>Flow.Publisher</code>.
+ *
+ * @author Lorenzo Dee
+ */
+public class MessagePublisher implements MessageReceiver {
+
+	/**
+	 * Receives the messages published by a {@link MessagePublisher}.
+	 * Calls to a subscriber are never concurrent.
+	 */
+	public interface Subscriber {
+		void onSubscribe(Subscription subscription);
+		void onNext(Packet message);
+		void onError(Throwable throwable);
+		void onComplete();
+	}
+
+	/**
+	 * Link between a {@link MessagePublisher} and its {@link Subscriber}.
+	 */
+	public interface Subscription {
+		/**
+		 * Adds the given number of messages to the demand.
+		 * @param n the number of messages (greater than zero)
+		 */
+		void request(long n);
+		void cancel();
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition demandAvailable = this.lock.newCondition();
+	private final ReentrantLock deliveryLock = new ReentrantLock();
+
+	private long maxWait = 10000;
+
+	// guarded by lock
+	private Subscriber subscriber;
+	private long demand;
+	private boolean closed;
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) a delivered message waits
+	 * for demand before it is left unacknowledged. Defaults to 10000.
+	 * This should be shorter than the time the SMS Center waits for a
+	 * response.
+	 * @param maxWait the maximum wait in milliseconds
+	 */
+	public void setMaxWait(long maxWait) {
+		if (maxWait < 0) {
+			throw new IllegalArgumentException("maxWait cannot be negative");
+		}
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Subscribes the given subscriber. Only one subscriber is supported
+	 * at a time. Other subscribers are signalled an error.
+	 * @param subscriber the subscriber
+	 */
+	public void subscribe(Subscriber subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber cannot be null");
+		}
+		boolean accepted;
+		boolean completed;
+		this.lock.lock();
+		try {
+			completed = this.closed;
+			accepted = !completed && this.subscriber == null;
+			if (accepted) {
+				this.subscriber = subscriber;
+				this.demand = 0;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		this.deliveryLock.lock();
+		try {
+			if (accepted) {
+				subscriber.onSubscribe(new MessageSubscription(subscriber));
+				return;
+			}
+			subscriber.onSubscribe(new Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			if (completed) {
+				subscriber.onComplete();
+			} else {
+				subscriber.onError(new IllegalStateException(
+						"Publisher already has a subscriber"));
+			}
+		} finally {
+			this.deliveryLock.unlock();
+		}
+	}
+
+	@Override
+	public void messageReceived(Packet message) throws Exception {
+		// Not waiting while holding the delivery lock, so that
+		// subscribers can (un)subscribe in the meantime
+		Subscriber subscriber = awaitDemand();
+		this.deliveryLock.lock();
+		try {
+			subscriber.onNext(message);
+		} finally {
+			this.deliveryLock.unlock();
+		}
+	}
+
+	private Subscriber awaitDemand() throws Exception {
+		this.lock.lock();
+		try {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxWait);
+			while (this.subscriber == null || this.demand == 0) {
+				if (this.closed) {
+					throw new IllegalStateException("Publisher is closed");
+				}
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					throw new IllegalStateException(this.subscriber == null
+							? "No subscriber" : "No demand from subscriber");
+				}
+				this.demandAvailable.await(remaining, TimeUnit.MILLISECONDS);
+			}
+			if (this.demand != Long.MAX_VALUE) {
+				this.demand--;
+			}
+			return this.subscriber;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages requested, but not yet published.
+	 */
+	public long getDemand() {
+		this.lock.lock();
+		try {
+			return this.demand;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns this publisher as a
+	 * <code>java.util.concurrent.Flow.Publisher&lt;Packet&gt;</code>, so
+	 * that delivered messages can be consumed by any reactive streams
+	 * library. Since this class also runs on Java 6, the result is
+	 * declared as an <code>Object</code>:
+	 * <pre>
+	 * &#64;SuppressWarnings("unchecked")
+	 * Flow.Publisher&lt;Packet&gt; flowPublisher =
+	 *         (Flow.Publisher&lt;Packet&gt;) publisher.toFlowPublisher();
+	 * </pre>
+	 * @return a <code>Flow.Publisher&lt;Packet&gt;</code> backed by this
+	 *     publisher
+	 * @throws UnsupportedOperationException if not running on Java 11
+	 *     or later
+	 */
+	public Object toFlowPublisher() {
+		return FlowPublishers.adapt(this);
+	}
+
+	/**
+	 * Completes the subscription. Messages delivered afterwards are not
+	 * acknowledged.
+	 */
+	public void close() {
+		Subscriber subscriber;
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			subscriber = this.subscriber;
+			this.subscriber = null;
+			this.demandAvailable.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+		if (subscriber != null) {
+			this.deliveryLock.lock();
+			try {
+				subscriber.onComplete();
+			} finally {
+				this.deliveryLock.unlock();
+			}
+		}
+	}
+
+	private class MessageSubscription implements Subscription {
+		private final Subscriber owner;
+
+		public MessageSubscription(Subscriber owner) {
+			this.owner = owner;
+		}
+
+		@Override
+		public void request(long n) {
+			boolean invalid;
+			lock.lock();
+			try {
+				if (subscriber != this.owner) {
+					return;
+				}
+				invalid = n <= 0;
+				if (invalid) {
+					subscriber = null;
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+				demandAvailable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (invalid) {
+				IllegalArgumentException e = new IllegalArgumentException(
+						"Requested " + n + " message(s), must be greater than zero");
+				if (deliveryLock.isHeldByCurrentThread()) {
+					// called from onNext
+					this.owner.onError(e);
+				} else {
+					deliveryLock.lock();
+					try {
+						this.owner.onError(e);
+					} finally {
+						deliveryLock.unlock();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void cancel() {
+			lock.lock();
+			try {
+				if (subscriber == this.owner) {
+					subscriber = null;
+					demand = 0;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Receives the messages delivered by the SMS Center: deliver message
+ * ({@link Packet#OP_DELIVER_MESSAGE 020}) and deliver status report
+ * ({@link Packet#OP_DELIVER_STATUS_REPORT 023}) operations.
+ * <p>
+ * Called from the connection's reader thread, which does not read
+ * further packets until this returns. By default, the message is
+ * acknowledged after this returns normally. If this throws an exception,
+ * the message is not acknowledged, and the SMS Center delivers it again
+ * later. With {@link TcpNetConnection.AcknowledgeMode#BEFORE_PROCESSING},
+ * the message is acknowledged before this is called.
+ *
+ * @author Lorenzo Dee
+ * @see TcpNetConnectionFactory#setMessageReceiver(MessageReceiver)
+ */
+public interface MessageReceiver {
+
+	/**
+	 * @param message the deliver message or deliver status report packet
+	 * @throws Exception if the message could not be processed
+	 */
+	void messageReceived(Packet message) throws Exception;
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Identifies a submitted message by its destination address and the
+ * time stamp generated by the message center when it was submitted.
+ *
+ * @author Lorenzo Dee
+ */
+public class MessageReference {
+
+	private final String destinationAddress;
+	private final String messageCenterTimeStamp;
+
+	public MessageReference(String destinationAddress, String messageCenterTimeStamp) {
+		if (destinationAddress == null) {
+			throw new IllegalArgumentException("destinationAddress cannot be null");
+		}
+		if (messageCenterTimeStamp == null) {
+			throw new IllegalArgumentException("messageCenterTimeStamp cannot be null");
+		}
+		this.destinationAddress = destinationAddress;
+		this.messageCenterTimeStamp = messageCenterTimeStamp;
+	}
+
+	public String getDestinationAddress() {
+		return destinationAddress;
+	}
+
+	public String getMessageCenterTimeStamp() {
+		return messageCenterTimeStamp;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * destinationAddress.hashCode() + messageCenterTimeStamp.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof MessageReference)) {
+			return false;
+		}
+		MessageReference other = (MessageReference) obj;
+		return destinationAddress.equals(other.destinationAddress)
+				&& messageCenterTimeStamp.equals(other.messageCenterTimeStamp);
+	}
+
+	@Override
+	public String toString() {
+		return destinationAddress + "@" + messageCenterTimeStamp;
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Receives the results of bulk message status enquiries, as they
+ * arrive.
+ *
+ * @author Lorenzo Dee
+ * @see QueryingSession#enquireMessageStatus(Iterable, MessageStatusListener)
+ */
+public interface MessageStatusListener {
+
+	void statusReceived(MessageReference message, MessageStatus status);
+
+	/**
+	 * @param message the message whose status was enquired
+	 * @param e the reason (e.g. a {@link NegativeResponseException})
+	 */
+	void enquiryFailed(MessageReference message, Exception e);
+
+}
@@ -16,6 +16,7 @@
  */
 package com.googlecode.jcimd;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 /**
@@ -81,6 +82,9 @@ public class Packet {
 	private int operationCode;
 	private Integer sequenceNumber;
 	private Parameter parameters[];
+	private int parameterCount;
+	// parameters as written on the wire, when built by a PacketBuilder
+	private byte[] encodedParameters;
 
 	/**
 	 * Constructs a packet with the given operation code and parameters,
@@ -111,6 +115,125 @@ public class Packet {
 		this.sequenceNumber = sequenceNumber;
 		// Due to repeating parameters, we do not store them in a java.util.Map
 		this.parameters = parameters;
+		this.parameterCount = parameters.length;
+	}
+
+	private Packet(int operationCode, Integer sequenceNumber,
+			Parameter[] parameters, int parameterCount, byte[] encodedParameters) {
+		this.operationCode = operationCode;
+		this.sequenceNumber = sequenceNumber;
+		this.parameters = parameters;
+		this.parameterCount = parameterCount;
+		this.encodedParameters = encodedParameters;
+	}
+
+	/**
+	 * Returns a packet with the given parameters, already encoded as
+	 * written on the wire (i.e. <code>nnn:value&lt;TAB&gt;</code> for
+	 * each parameter). The parameters are only decoded when needed.
+	 *
+	 * @see PacketBuilder
+	 */
+	static Packet withEncodedParameters(int operationCode, byte[] encodedParameters) {
+		if (operationCode <= 0 || operationCode > 99) {
+			throw new IllegalArgumentException("operationCode must be between 1 and 99");
+		}
+		return new Packet(operationCode, null, null, 0, encodedParameters);
+	}
+
+	/**
+	 * Returns an empty packet, with room for the given number of
+	 * parameters. Parameters are added with {@link #addParameter(Parameter)}.
+	 */
+	static Packet withCapacity(int operationCode, int capacity) {
+		if (operationCode <= 0 || operationCode > 99) {
+			throw new IllegalArgumentException("operationCode must be between 1 and 99");
+		}
+		return new Packet(operationCode, null, new Parameter[capacity], 0, null);
+	}
+
+	/**
+	 * Returns a copy of this packet, with the given sequence number. The
+	 * copy shares the parameters of this packet.
+	 */
+	Packet withSequenceNumber(int sequenceNumber) {
+		return new Packet(this.operationCode, sequenceNumber,
+				this.parameters, this.parameterCount, this.encodedParameters);
+	}
+
+	/**
+	 * Returns the parameters as written on the wire, or <code>null</code>
+	 * if this packet was not built with encoded parameters.
+	 */
+	byte[] getEncodedParameters() {
+		return this.encodedParameters;
+	}
+
+	/**
+	 * Decodes the encoded parameters (if any), the first time they are
+	 * needed.
+	 */
+	private void decodeParameters() {
+		if (this.encodedParameters == null) {
+			return;
+		}
+		synchronized (this) {
+			if (this.parameters == null) {
+				try {
+					Parameter[] decoded = PacketSerializer.deserializeParameters(
+							this.encodedParameters, 0, this.encodedParameters.length);
+					this.parameterCount = decoded.length;
+					this.parameters = decoded;
+				} catch (IOException e) {
+					throw new IllegalStateException("Invalid encoded parameters", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the given parameter. Only used while building a packet, before
+	 * it is passed on.
+	 */
+	void addParameter(Parameter parameter) {
+		if (this.parameterCount == this.parameters.length) {
+			this.parameters = Arrays.copyOf(
+					this.parameters, Math.max(8, this.parameterCount * 2));
+		}
+		this.parameters[this.parameterCount++] = parameter;
+	}
+
+	/**
+	 * Removes the sequence number and all parameters, and sets the given
+	 * operation code, so that this packet can be reused (by a
+	 * {@link PacketPool}). Keeps the room for parameters.
+	 */
+	void reset(int operationCode) {
+		Arrays.fill(this.parameters, 0, this.parameterCount, null);
+		this.parameterCount = 0;
+		this.sequenceNumber = null;
+		this.operationCode = operationCode;
+	}
+
+	/**
+	 * Returns <code>true</code> if this packet has parameters, without
+	 * decoding them.
+	 */
+	boolean hasParameters() {
+		if (this.encodedParameters != null) {
+			return this.encodedParameters.length > 0;
+		}
+		return this.parameterCount > 0;
+	}
+
+	int getParameterCount() {
+		decodeParameters();
+		return this.parameterCount;
+	}
+
+	Parameter getParameterAt(int index) {
+		decodeParameters();
+		return this.parameters[index];
 	}
 
 	public int getOperationCode() {
@@ -164,8 +287,9 @@ public class Packet {
 	 * @return <code>true</code> if this packet contains an error parameter
 	 */
 	public boolean hasErrorParameter() {
-		for (Parameter parameter : this.parameters) {
-			if (parameter.getNumber() >= 900) {
+		decodeParameters();
+		for (int i = 0; i < this.parameterCount; i++) {
+			if (this.parameters[i].getNumber() >= 900) {
 				return true;
 			}
 		}
@@ -195,13 +319,15 @@ public class Packet {
 	}
 
 	public Parameter[] getParameters() {
-		return parameters.clone();
+		decodeParameters();
+		return Arrays.copyOf(parameters, parameterCount);
 	}
 
 	public Parameter getParameter(int number) {
-		for (Parameter parameter : this.parameters) {
-			if (parameter.getNumber() == number) {
-				return parameter;
+		decodeParameters();
+		for (int i = 0; i < this.parameterCount; i++) {
+			if (this.parameters[i].getNumber() == number) {
+				return this.parameters[i];
 			}
 		}
 		return null;
@@ -209,6 +335,7 @@ public class Packet {
 
 	@Override
 	public String toString() {
+		decodeParameters();
 		StringBuilder builder = new StringBuilder();
 		builder.append("<STX>");
 		builder.append(String.format("%02d", this.operationCode));
@@ -219,8 +346,8 @@ public class Packet {
 			builder.append("<sequence-number-to-be-generated>");
 		}
 		builder.append("<TAB>");
-		for (Parameter parameter : this.parameters) {
-			builder.append(parameter.toString());
+		for (int i = 0; i < this.parameterCount; i++) {
+			builder.append(this.parameters[i].toString());
 			builder.append("<TAB>");
 		}
 		builder.append("<ETX>");
@@ -229,10 +356,15 @@ public class Packet {
 
 	@Override
 	public int hashCode() {
+		decodeParameters();
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + operationCode;
-		result = prime * result + Arrays.hashCode(parameters);
+		int parametersHashCode = 1;
+		for (int i = 0; i < parameterCount; i++) {
+			parametersHashCode = prime * parametersHashCode + parameters[i].hashCode();
+		}
+		result = prime * result + parametersHashCode;
 		result = prime * result
 				+ ((sequenceNumber == null) ? 0 : sequenceNumber.hashCode());
 		return result;
@@ -247,10 +379,16 @@ public class Packet {
 		if (getClass() != obj.getClass())
 			return false;
 		Packet other = (Packet) obj;
+		decodeParameters();
+		other.decodeParameters();
 		if (operationCode != other.operationCode)
 			return false;
-		if (!Arrays.equals(parameters, other.parameters))
+		if (parameterCount != other.parameterCount)
 			return false;
+		for (int i = 0; i < parameterCount; i++) {
+			if (!parameters[i].equals(other.parameters[i]))
+				return false;
+		}
 		if (sequenceNumber == null) {
 			if (other.sequenceNumber != null)
 				return false;
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.Arrays;
+
+/**
+ * Builds {@link Packet packets} by appending their parameters, as
+ * written on the wire, to an internal buffer. No {@link Parameter}
+ * objects (nor boxed values) are created. The packet only decodes its
+ * parameters if they are read (e.g. when logged).
+ * <p>
+ * A builder can be {@link #reset(int) reset} and reused to build many
+ * packets. For example,
+ * <pre>
+ * PacketBuilder builder = new PacketBuilder(Packet.OP_SUBMIT_MESSAGE);
+ * for (...) {
+ *     Packet request = builder.reset(Packet.OP_SUBMIT_MESSAGE)
+ *             .add(Parameter.DESTINATION_ADDRESS, destinationAddress)
+ *             .add(Parameter.USER_DATA, text)
+ *             .add(Parameter.STATUS_REPORT_REQUEST, 62)
+ *             .build();
+ *     connection.send(request);
+ * }
+ * </pre>
+ * Builders are not thread-safe. The packets they build are.
+ *
+ * @author Lorenzo Dee
+ */
+public class PacketBuilder {
+
+	private int operationCode;
+	private byte[] buffer = new byte[256];
+	private int length;
+
+	/**
+	 * Constructs a builder of packets with the given operation code.
+	 * @param operationCode the operation code (1 - 99)
+	 */
+	public PacketBuilder(int operationCode) {
+		reset(operationCode);
+	}
+
+	/**
+	 * Discards the parameters added so far, and starts building a packet
+	 * with the given operation code. The internal buffer is kept.
+	 * @param operationCode the operation code (1 - 99)
+	 * @return this builder
+	 */
+	public PacketBuilder reset(int operationCode) {
+		if (operationCode <= 0 || operationCode > 99) {
+			throw new IllegalArgumentException("operationCode must be between 1 and 99");
+		}
+		this.operationCode = operationCode;
+		this.length = 0;
+		return this;
+	}
+
+	/**
+	 * Adds a parameter with the given integer value (in decimal).
+	 * @return this builder
+	 */
+	public PacketBuilder add(int number, int value) {
+		beginParameter(number, 11);
+		long x = value;
+		if (x < 0) {
+			this.buffer[this.length++] = '-';
+			x = -x;
+		}
+		int start = this.length;
+		do {
+			this.buffer[this.length++] = (byte) ('0' + (x % 10));
+			x /= 10;
+		} while (x > 0);
+		reverse(start, this.length - 1);
+		return endParameter();
+	}
+
+	/**
+	 * Adds a parameter with the given boolean value (i.e. 1 or 0).
+	 * @return this builder
+	 */
+	public PacketBuilder add(int number, boolean value) {
+		beginParameter(number, 1);
+		this.buffer[this.length++] = (byte) (value ? '1' : '0');
+		return endParameter();
+	}
+
+	/**
+	 * Adds a parameter with the given ASCII value. Like
+	 * {@link AsciiUtils#writeStringAsAsciiBytes(String, java.io.OutputStream)},
+	 * only the eight low-order bits of each character are written.
+	 * @return this builder
+	 */
+	public PacketBuilder add(int number, CharSequence value) {
+		if (value == null) {
+			throw new IllegalArgumentException("parameter value cannot be null");
+		}
+		int valueLength = value.length();
+		beginParameter(number, valueLength);
+		if (value instanceof String) {
+			this.length = AsciiUtils.writeStringAsAsciiBytes(
+					(String) value, this.buffer, this.length);
+		} else {
+			for (int i = 0; i < valueLength; i++) {
+				this.buffer[this.length++] = (byte) value.charAt(i);
+			}
+		}
+		return endParameter();
+	}
+
+	/**
+	 * Adds a parameter with the given absolute time (e.g. for
+	 * {@link Parameter#VALIDITY_PERIOD_ABSOLUTE}), in
+	 * <code>yyMMddHHmmss</code> form.
+	 * @param timeMillis the time (in milliseconds since the epoch)
+	 * @return this builder
+	 * @see CimdTime
+	 */
+	public PacketBuilder addTime(int number, long timeMillis) {
+		beginParameter(number, CimdTime.LENGTH);
+		this.length = CimdTime.format(timeMillis, this.buffer, this.length);
+		return endParameter();
+	}
+
+	/**
+	 * Adds a parameter with the given bytes as value, written as
+	 * hexadecimal digits (e.g. for {@link Parameter#USER_DATA_BINARY}).
+	 * @return this builder
+	 */
+	public PacketBuilder addHex(int number, byte[] value) {
+		if (value == null) {
+			throw new IllegalArgumentException("parameter value cannot be null");
+		}
+		return addHex(number, value, 0, value.length);
+	}
+
+	/**
+	 * Adds a parameter with the given range of bytes as value, written as
+	 * hexadecimal digits.
+	 * @return this builder
+	 */
+	public PacketBuilder addHex(int number, byte[] value, int offset, int length) {
+		if (value == null) {
+			throw new IllegalArgumentException("parameter value cannot be null");
+		}
+		if (offset < 0 || length < 0 || offset + length > value.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		beginParameter(number, length * 2);
+		this.length = AsciiUtils.writeByteArrayAsHexAsciiBytes(
+				value, offset, length, this.buffer, this.length);
+		return endParameter();
+	}
+
+	/**
+	 * Returns a packet with the parameters added so far, and no sequence
+	 * number. The builder can still be used afterwards.
+	 */
+	public Packet build() {
+		return Packet.withEncodedParameters(
+				this.operationCode, Arrays.copyOf(this.buffer, this.length));
+	}
+
+	/**
+	 * Writes the parameter number and colon, after making room for them,
+	 * the value (of at most the given length), and the tab.
+	 */
+	private void beginParameter(int number, int maxValueLength) {
+		if (number < 0 || number > 999) {
+			throw new IllegalArgumentException(
+					"parameter number must be between 0 and 999");
+		}
+		int required = this.length + 4 + maxValueLength + 1;
+		if (required > this.buffer.length) {
+			this.buffer = Arrays.copyOf(
+					this.buffer, Math.max(required, this.buffer.length * 2));
+		}
+		this.length = AsciiUtils.writeIntAsAsciiBytes(number, this.buffer, this.length, 3);
+		this.buffer[this.length++] = ':';
+	}
+
+	private PacketBuilder endParameter() {
+		this.buffer[this.length++] = '\t';
+		return this;
+	}
+
+	private void reverse(int from, int to) {
+		while (from < to) {
+			byte b = this.buffer[from];
+			this.buffer[from++] = this.buffer[to];
+			this.buffer[to--] = b;
+		}
+	}
+
+}
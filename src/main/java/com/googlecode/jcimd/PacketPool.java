@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Per-thread pool of request packets, to build requests without
+ * allocating a packet and its parameter storage each time.
+ * <p>
+ * A packet is {@link #acquire(int) acquired}, filled with parameters,
+ * sent, and {@link #release(Packet) released} by the same thread, once
+ * the connection no longer refers to it (i.e. after
+ * {@link Connection#send(Packet)} returns). Packets passed to
+ * {@link PipelinedConnection pipelined} sends, or kept after sending
+ * (e.g. journaled), should not come from this pool.
+ *
+ * @author Lorenzo Dee
+ */
+final class PacketPool {
+
+	/**
+	 * Room for parameters of pooled packets (enough for a submit message
+	 * request with all optional parameters).
+	 */
+	private static final int PARAMETER_CAPACITY = 16;
+	private static final int MAX_POOLED_PACKETS = 4;
+
+	private static final ThreadLocal<PacketPool> pools = new ThreadLocal<PacketPool>() {
+		@Override
+		protected PacketPool initialValue() {
+			return new PacketPool();
+		}
+	};
+
+	private final Packet[] packets = new Packet[MAX_POOLED_PACKETS];
+	private int size;
+
+	private PacketPool() {
+	}
+
+	/**
+	 * Returns the pool of the current thread.
+	 */
+	static PacketPool get() {
+		return pools.get();
+	}
+
+	/**
+	 * Returns an empty packet with the given operation code.
+	 */
+	Packet acquire(int operationCode) {
+		if (this.size == 0) {
+			return Packet.withCapacity(operationCode, PARAMETER_CAPACITY);
+		}
+		Packet packet = this.packets[--this.size];
+		this.packets[this.size] = null;
+		packet.reset(operationCode);
+		return packet;
+	}
+
+	/**
+	 * Returns the given packet to the pool. Its parameters are discarded.
+	 */
+	void release(Packet packet) {
+		packet.reset(packet.getOperationCode());
+		if (this.size < this.packets.length) {
+			this.packets[this.size++] = packet;
+		}
+	}
+
+}
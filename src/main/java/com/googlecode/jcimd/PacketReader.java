@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Reads {@link Packet packets} from an input stream in chunks. Each read
+ * fills a reusable buffer with as many bytes as are available (up to
+ * the buffer size), and all complete frames in the buffer are decoded
+ * before reading again. A frame that is only partly read is kept for the
+ * next read.
+ * <p>
+ * Compared to {@link PacketSerializer#deserialize(InputStream)}, which
+ * reads a byte at a time, a burst of packets (e.g. status reports) is
+ * read with a handful of reads, and decoded straight from the buffer.
+ * <p>
+ * Readers are not thread-safe. They are meant to be used by a single
+ * reader thread.
+ *
+ * @author Lorenzo Dee
+ * @see PacketSerializer#newPacketReader(InputStream, int)
+ */
+final class PacketReader {
+
+	private final InputStream inputStream;
+	private final int maxMessageSize;
+	private final boolean useChecksum;
+	private final Log logger;
+	private final byte[] buffer;
+
+	// the bytes read, but not yet decoded
+	private int start;
+	private int end;
+	// a decode error to throw after passing on the packets before it
+	private IOException failure;
+
+	PacketReader(InputStream inputStream, int bufferSize,
+			int maxMessageSize, boolean useChecksum, Log logger) {
+		if (inputStream == null) {
+			throw new IllegalArgumentException("inputStream cannot be null");
+		}
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be greater than zero");
+		}
+		this.inputStream = inputStream;
+		this.maxMessageSize = maxMessageSize;
+		this.useChecksum = useChecksum;
+		this.logger = logger;
+		// large enough for a frame of the maximum size
+		this.buffer = new byte[Math.max(bufferSize, maxMessageSize)];
+	}
+
+	/**
+	 * Reads at least one packet, and adds all packets that were
+	 * completely read to the given batch.
+	 * @param batch the list to add the packets to
+	 * @return the number of packets added
+	 * @throws IOException if an I/O error occurs, the end of the stream
+	 *     is reached, or a frame cannot be decoded
+	 */
+	int read(List<Packet> batch) throws IOException {
+		if (this.failure != null) {
+			IOException failure = this.failure;
+			this.failure = null;
+			throw failure;
+		}
+		int count = 0;
+		while ((count = decodeFrames(batch)) == 0) {
+			fill();
+		}
+		return count;
+	}
+
+	/**
+	 * Decodes the complete frames in the buffer.
+	 */
+	private int decodeFrames(List<Packet> batch) throws IOException {
+		int count = 0;
+		while (this.start < this.end) {
+			// Any data transmitted between packets SHALL be ignored.
+			int stx = indexOf(PacketSerializer.STX, this.start, this.end);
+			if (stx < 0) {
+				this.start = this.end;
+				break;
+			}
+			this.start = stx;
+			int etx = indexOf(PacketSerializer.ETX, stx + 1,
+					Math.min(this.end, stx + this.maxMessageSize));
+			if (etx < 0) {
+				if (this.end - stx >= this.maxMessageSize) {
+					String message = "Buffer overflow reached at " + this.maxMessageSize
+							+ " byte(s) and still no <ETX> byte";
+					CimdEvents.frameDecodeError(this.end - stx, message);
+					return fail(count, new IOException(message));
+				}
+				break;
+			}
+			this.start = etx + 1;
+			try {
+				batch.add(PacketSerializer.decodeFrame(
+						this.buffer, stx, etx + 1, this.useChecksum, this.logger));
+				count++;
+			} catch (IOException e) {
+				return fail(count, e);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Throws the given failure, or keeps it for the next read if packets
+	 * were already decoded.
+	 */
+	private int fail(int count, IOException failure) throws IOException {
+		if (count == 0) {
+			throw failure;
+		}
+		this.failure = failure;
+		return count;
+	}
+
+	/**
+	 * Moves the partly read frame (if any) to the start of the buffer,
+	 * and reads more bytes after it.
+	 */
+	private void fill() throws IOException {
+		if (this.start > 0) {
+			System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+			this.end -= this.start;
+			this.start = 0;
+		}
+		int n = this.inputStream.read(this.buffer, this.end, this.buffer.length - this.end);
+		if (n < 0) {
+			if (this.end == 0) {
+				throw new IOException(
+						"End of stream reached and still no <STX> byte");
+			}
+			String message = "End of stream reached and still no <ETX> byte";
+			CimdEvents.frameDecodeError(this.end, message);
+			throw new IOException(message);
+		}
+		this.end += n;
+	}
+
+	private int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (this.buffer[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
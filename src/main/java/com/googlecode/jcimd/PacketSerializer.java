@@ -20,8 +20,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -71,6 +73,9 @@ public class PacketSerializer {
 	public static final int END_OF_STREAM = -1;
 
 	private static final int DEFAULT_MAX_SIZE = 1024 * 4;
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
 
 	private final Log logger;
 	private static final Log clLogger = LogFactory.getLog(PacketSerializer.class);
@@ -148,21 +153,26 @@ public class PacketSerializer {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Sending " + packet);
 		}
-		byte[] bytes = serializeToByteArray(packet, sequenceNumberGenerator, logger);
+		Object event = CimdEvents.beginPacketWrite();
+		int sequenceNumber = resolveSequenceNumber(packet, sequenceNumberGenerator, logger);
+		FrameTemplate template = FrameTemplate.forPacket(packet);
+		if (template != null) {
+			int length = template.writeTo(sequenceNumber, useChecksum, outputStream);
+			CimdEvents.endPacketWrite(event, packet.getOperationCode(), sequenceNumber, length);
+			return;
+		}
+		CimdChecksum checksum = useChecksum ? new CimdChecksum() : null;
+		byte[] bytes = serializeToByteArray(packet, sequenceNumber, checksum);
 		outputStream.write(bytes);
 		if (useChecksum) {
-			int checkSum = calculateCheckSum(bytes);
-			AsciiUtils.writeIntAsHexAsciiBytes(checkSum, outputStream, 2);
+			AsciiUtils.writeIntAsHexAsciiBytes((int) checksum.getValue(), outputStream, 2);
 		}
 		outputStream.write(ETX);
+		CimdEvents.endPacketWrite(event, packet.getOperationCode(), sequenceNumber,
+				bytes.length + (useChecksum ? 3 : 1));
 	}
 
-	private static byte[] serializeToByteArray(Packet packet, PacketSequenceNumberGenerator sequenceNumberGenerator, Log logger) throws IOException {
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-		outputStream.write(STX);
-		AsciiUtils.writeIntAsAsciiBytes(
-				packet.getOperationCode(), outputStream, 2);
-		outputStream.write(COLON);
+	private static int resolveSequenceNumber(Packet packet, PacketSequenceNumberGenerator sequenceNumberGenerator, Log logger) throws IOException {
 		Integer sequenceNumber = packet.getSequenceNumber();
 		if (sequenceNumber == null) {
 			if (logger.isTraceEnabled()) {
@@ -181,28 +191,65 @@ public class PacketSerializer {
 				throw new IOException(message);
 			}
 		}
-		AsciiUtils.writeIntAsAsciiBytes(
-				sequenceNumber, outputStream, 3);
-		outputStream.write(TAB);
-		for (Parameter parameter : packet.getParameters()) {
-			AsciiUtils.writeIntAsAsciiBytes(
-					parameter.getNumber(), outputStream, 3);
-			outputStream.write(COLON);
-			AsciiUtils.writeStringAsAsciiBytes(
-					parameter.getValue(), outputStream);
-			outputStream.write(TAB);
-		}
-		return outputStream.toByteArray();
+		return sequenceNumber;
+	}
+
+	static byte[] serializeToByteArray(Packet packet, int sequenceNumber) throws IOException {
+		return serializeToByteArray(packet, sequenceNumber, null);
 	}
 
 	/**
-	 * Calculates the check sum of the given bytes.
-	 *
-	 * @param bytes the array from which a check sum is calculated
-	 * @return the check sum
+	 * Serializes the given packet, from the STX up to the last TAB, and
+	 * updates the given checksum (if any) while writing. The frame is
+	 * written into an array of the exact size, a field at a time.
 	 */
-	private static int calculateCheckSum(byte[] bytes) {
-		return calculateCheckSum(bytes, 0, bytes.length);
+	private static byte[] serializeToByteArray(
+			Packet packet, int sequenceNumber, Checksum checksum) throws IOException {
+		byte[] encodedParameters = packet.getEncodedParameters();
+		// STX, operation code, colon, sequence number, and TAB
+		int length = 1 + 2 + 1 + 3 + 1;
+		if (encodedParameters != null) {
+			length += encodedParameters.length;
+		} else {
+			for (int i = 0; i < packet.getParameterCount(); i++) {
+				// number, colon, value, and TAB
+				length += 3 + 1 + packet.getParameterAt(i).getValue().length() + 1;
+			}
+		}
+		byte[] bytes = new byte[length];
+		bytes[0] = STX;
+		int offset = AsciiUtils.writeIntAsAsciiBytes(
+				packet.getOperationCode(), bytes, 1, 2);
+		bytes[offset++] = COLON;
+		offset = AsciiUtils.writeIntAsAsciiBytes(
+				sequenceNumber, bytes, offset, 3);
+		bytes[offset++] = TAB;
+		if (encodedParameters != null) {
+			System.arraycopy(encodedParameters, 0, bytes, offset, encodedParameters.length);
+			offset += encodedParameters.length;
+			if (checksum != null) {
+				checksum.update(bytes, 0, offset);
+			}
+			return bytes;
+		}
+		if (checksum != null) {
+			checksum.update(bytes, 0, offset);
+		}
+		for (int i = 0; i < packet.getParameterCount(); i++) {
+			Parameter parameter = packet.getParameterAt(i);
+			int start = offset;
+			offset = AsciiUtils.writeIntAsAsciiBytes(
+					parameter.getNumber(), bytes, offset, 3);
+			bytes[offset++] = COLON;
+			offset = AsciiUtils.writeStringAsAsciiBytes(
+					parameter.getValue(), bytes, offset);
+			bytes[offset++] = TAB;
+			if (checksum != null) {
+				// while the parameter is still in cache
+				checksum.update(bytes, start, offset - start);
+			}
+		}
+		return bytes;
 	}
 
 	/**
@@ -215,12 +262,7 @@ public class PacketSerializer {
 	 * @return the check sum
 	 */
 	private static int calculateCheckSum(byte[] bytes, int from, int to) {
-		int sum = 0;
-		for (int i = from; i < to; i++) {
-			sum += bytes[i];
-			sum &= 0xFF;
-		}
-		return sum;
+		return CimdChecksum.sum(bytes, from, to);
 	}
 
 	public Packet deserialize(InputStream inputStream) throws IOException {
@@ -254,128 +296,225 @@ public class PacketSerializer {
 			}
 			if (temp.size() >= maxMessageSize) {
 				// Protect from buffer overflow
-				throw new IOException(
-						"Buffer overflow reached at " + temp.size()
-						+ " byte(s) and still no <ETX> byte");
+				String message = "Buffer overflow reached at " + temp.size()
+						+ " byte(s) and still no <ETX> byte";
+				CimdEvents.frameDecodeError(temp.size(), message);
+				throw new IOException(message);
 			}
 		}
 		if (b != ETX) {
-			throw new IOException(
-					"End of stream reached and still no <ETX> byte");
+			String message = "End of stream reached and still no <ETX> byte";
+			CimdEvents.frameDecodeError(temp.size(), message);
+			throw new IOException(message);
 		}
 
 		// Parse contents of "temp" (it contains the entire CIMD message
 		// including STX and ETX bytes).
 		byte bytes[] = temp.toByteArray();
+		return decodeFrame(bytes, 0, bytes.length, useChecksum, logger);
+	}
+
+	/**
+	 * Returns a reader of packets from the given input stream, that reads
+	 * chunks of up to the given number of bytes, and decodes all complete
+	 * packets in a chunk at once.
+	 */
+	PacketReader newPacketReader(InputStream inputStream, int bufferSize) {
+		return new PacketReader(inputStream, bufferSize,
+				getMaxMessageSize(), useChecksum, logger);
+	}
 
+	/**
+	 * Decodes the frame (including the STX and ETX bytes) in the given
+	 * range, and reports it.
+	 */
+	static Packet decodeFrame(byte[] bytes, int from, int to,
+			boolean useChecksum, Log logger) throws IOException {
 		if (logger.isTraceEnabled()) {
-			logger.trace("Received " + bytes.length + " byte(s)");
+			logger.trace("Received " + (to - from) + " byte(s)");
 		}
 
+		try {
+			Packet packet = decodeFrame(bytes, from, to, useChecksum);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Received " + packet);
+			}
+			CimdEvents.packetRead(packet.getOperationCode(),
+					packet.getSequenceNumber(), to - from);
+			return packet;
+		} catch (IOException e) {
+			CimdEvents.frameDecodeError(to - from, e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Decodes an entire frame (including the STX and ETX bytes).
+	 */
+	private static Packet decodeFrame(
+			byte[] bytes, int from, int to, boolean useChecksum) throws IOException {
+		if (to - from < (useChecksum ? 4 : 2)) {
+			throw new IOException(
+					"Expecting a frame, but got only " + (to - from) + " byte(s)");
+		}
 		if (useChecksum) {
 			// Read two (2) bytes, just before the ETX byte.
-			StringBuilder buffer = new StringBuilder(2);
-			buffer.append((char) bytes[bytes.length - 3]);
-			buffer.append((char) bytes[bytes.length - 2]);
-			try {
-				int checksum = Integer.valueOf(buffer.toString(), 16);
-				int expectedChecksum = calculateCheckSum(bytes, 0, bytes.length - 3);
-				if (checksum != expectedChecksum) {
-					throw new IOException(
-							"Checksum error: expecting " + expectedChecksum
-							+ " but got " + checksum);
-				}
-			} catch (NumberFormatException e) {
+			int high = hexDigit(bytes[to - 3]);
+			int low = hexDigit(bytes[to - 2]);
+			if (high < 0 || low < 0) {
+				throw new IOException(
+						"Checksum error: expecting HEX digits, but got "
+						+ (char) bytes[to - 3] + (char) bytes[to - 2]);
+			}
+			int checksum = high << 4 | low;
+			int expectedChecksum = calculateCheckSum(bytes, from, to - 3);
+			if (checksum != expectedChecksum) {
 				throw new IOException(
-						"Checksum error: expecting HEX digits, but got " + buffer);
+						"Checksum error: expecting " + expectedChecksum
+						+ " but got " + checksum);
 			}
 		}
 
 		// Deserialize bytes, minus STX, CC (check sum), and ETX.
-		int end = useChecksum ? bytes.length - 3 : bytes.length - 1;
-		Packet packet = deserializeFromByteArray(bytes, 1, end);
-		if (logger.isDebugEnabled()) {
-			logger.debug("Received " + packet);
+		int end = useChecksum ? to - 3 : to - 1;
+		return deserializeFromByteArray(bytes, from + 1, end);
+	}
+
+	private static int hexDigit(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		} else if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		} else if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
 		}
-		return packet;
+		return -1;
 	}
 
-	private static Packet deserializeFromByteArray(
+	static Packet deserializeFromByteArray(
 			byte[] bytes, int from, int to) throws IOException {
-		StringBuilder buffer = new StringBuilder();
-		int i = from;
-
 		// Read the operation code and packet number
-		i = readToBufferUntil(bytes, i, to, 2, buffer, COLON);
-		int operationCode = Integer.valueOf(buffer.toString());
-		buffer.setLength(0);
-		i = readToBufferUntil(bytes, i, to, -1, buffer, TAB);
-		int sequenceNumber = Integer.valueOf(buffer.toString());
-		buffer.setLength(0);
-
-		// Read the parameters
-		List<Parameter> parameters = new LinkedList<Parameter>();
+		int colon = indexOfNumberEnd(bytes, from, to, 2, COLON);
+		int operationCode = parseDigits(bytes, from, colon);
+		int tab = indexOfNumberEnd(bytes, colon + 1, to, -1, TAB);
+		int sequenceNumber = parseDigits(bytes, colon + 1, tab);
+
+		return new Packet(operationCode, sequenceNumber,
+				deserializeParameters(bytes, tab + 1, to));
+	}
+
+	/**
+	 * Reads the parameters (i.e. <code>nnn:value&lt;TAB&gt;</code> for
+	 * each parameter) from the given range. Values are sliced from the
+	 * array, after locating their end a word at a time.
+	 */
+	static Parameter[] deserializeParameters(
+			byte[] bytes, int from, int to) throws IOException {
+		List<Parameter> parameters = new ArrayList<Parameter>();
+		int i = from;
 		while (i < to) {
-			i = readToBufferUntil(bytes, i, to, 3, buffer, COLON);
-			int parameterType = Integer.valueOf(buffer.toString());
-			buffer.setLength(0);
-			i = readToBufferUntil(bytes, i, to, -1, buffer, TAB);
-			String parameterValue = buffer.toString();
-			buffer.setLength(0);
-			parameters.add(new Parameter(parameterType, parameterValue));
+			int colon = indexOfNumberEnd(bytes, i, to, 3, COLON);
+			int parameterType = parseDigits(bytes, i, colon);
+			int valueStart = colon + 1;
+			int valueEnd = indexOfReserved(bytes, valueStart, to);
+			expectDelimiter(bytes, valueEnd, to, TAB);
+			parameters.add(new Parameter(parameterType,
+					new String(bytes, valueStart, valueEnd - valueStart, ISO_8859_1)));
+			i = valueEnd + 1;
 		}
+		return parameters.toArray(new Parameter[parameters.size()]);
+	}
 
-		return new Packet(operationCode, sequenceNumber,
-				parameters.toArray(new Parameter[0]));
+	/**
+	 * Returns the index of the first reserved character (0x00 (NUL),
+	 * 0x02 (STX), 0x03 (ETX), or 0x09 (TAB)) in the given range, or
+	 * <em>to</em> if there is none.
+	 * <p>
+	 * Since all reserved characters are below 0x0A, eight bytes are
+	 * checked at once for a byte below 0x0A. Only words with such a
+	 * byte are checked byte by byte (e.g. the word with the TAB that
+	 * ends a parameter value).
+	 */
+	static int indexOfReserved(byte[] bytes, int from, int to) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = ByteArrayAccess.getLongLittleEndian(bytes, i);
+			if (((word - ONES * 0x0A) & ~word & HIGH_BITS) != 0) {
+				for (int j = i; j < i + 8; j++) {
+					if (isReserved(bytes[j])) {
+						return j;
+					}
+				}
+			}
+		}
+		for (; i < to; i++) {
+			if (isReserved(bytes[i])) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private static boolean isReserved(byte b) {
+		// The reserved characters 0x00 (NUL), 0x02 (STX),
+		// 0x03 (ETX), 0x09 (TAB) are not allowed in any parameter
+		return b == TAB || b == NUL || b == STX || b == ETX;
 	}
 
 	/**
-	 * Reads bytes and appends to buffer until the delimiter is reached,
-	 * or the <em>to</em> is reached, or a reserved characters is reached.
-	 * The reserved characters 0x00 (NUL), 0x02 (STX), 0x03 (ETX), 0x09
-	 * (TAB) are not allowed in any parameter.
+	 * Returns the index of the delimiter after the (decimal) number that
+	 * starts at <em>from</em>.
 	 *
 	 * @param bytes the array of bytes to read
 	 * @param from the initial index of the range to be read, inclusive
 	 * @param to the final index of the range to be read, exclusive.
 	 *     (This index may lie outside the array.)
-	 * @param maxOffset the maximum offset that can be read before reaching
-	 *     delimiter. If this offset is exceeded, and no delimiter was
-	 *     reached, an exception will be thrown.
-	 * @param buffer the buffer to append to
+	 * @param maxDigits the maximum number of digits before the
+	 *     delimiter, or -1 if there is no maximum
 	 * @param delimiter the delimiter to reach
-	 * @return the index (between <em>from</em> and <em>to</em>)
-	 *     when the delimiter was reached
-	 * @throws IOException if a reserved character was reached, and it is
-	 *     not the expected <em>delimiter</em>.
+	 * @throws IOException if the delimiter is not reached within the
+	 *     maximum number of digits, or a reserved character is reached
 	 */
-	private static int readToBufferUntil(
-			byte[] bytes, int from, int to, int maxOffset,
-			StringBuilder buffer, byte delimiter)
+	private static int indexOfNumberEnd(
+			byte[] bytes, int from, int to, int maxDigits, byte delimiter)
 	throws IOException {
 		int i = from;
-		while ((i < to) && (bytes[i] != delimiter)
-				// The reserved characters 0x00 (NUL), 0x02 (STX),
-				// 0x03 (ETX), 0x09 (TAB) are not allowed in any parameter
-				&& (bytes[i] != NUL) && (bytes[i] != STX)
-				&& (bytes[i] != ETX) && (bytes[i] != TAB)) {
-			buffer.append((char) bytes[i]);
+		while ((i < to) && (bytes[i] != delimiter) && !isReserved(bytes[i])) {
 			i++;
-			if ((maxOffset > 0) && ((i - from) > maxOffset)) {
+			if ((maxDigits > 0) && ((i - from) > maxDigits)) {
 				throw new IOException(
 						"Expecting 0x" + Integer.toHexString(delimiter)
-						+ " within " + maxOffset + " byte(s), " +
+						+ " within " + maxDigits + " byte(s), " +
 								"but got 0x" + Integer.toHexString(bytes[i - 1]));
 			}
 		}
-		if (bytes[i] != delimiter) {
+		expectDelimiter(bytes, i, to, delimiter);
+		return i;
+	}
+
+	private static void expectDelimiter(byte[] bytes, int index, int to, byte delimiter)
+			throws IOException {
+		if (index >= to) {
 			throw new IOException(
 					"Expecting 0x" + Integer.toHexString(delimiter)
-					+ " but got 0x" + Integer.toHexString(bytes[i]));
-		} else {
-			i++;
+					+ " but reached the end of the frame");
+		}
+		if (bytes[index] != delimiter) {
+			throw new IOException(
+					"Expecting 0x" + Integer.toHexString(delimiter)
+					+ " but got 0x" + Integer.toHexString(bytes[index]));
+		}
+	}
+
+	private static int parseDigits(byte[] bytes, int from, int to) throws IOException {
+		if (from == to) {
+			throw new IOException("Expecting a number, but got none");
+		}
+		try {
+			return AsciiUtils.parseIntFromAsciiBytes(bytes, from, to - from);
+		} catch (NumberFormatException e) {
+			throw new IOException(e.getMessage());
 		}
-		return i;
 	}
 
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Connection} that can have more than one request outstanding.
+ * Requests are written without waiting for the replies of previous
+ * requests, up to a window of outstanding requests. Replies are passed
+ * to a callback as they arrive.
+ * <p>
+ * To keep waiting for the window visible to callers, {@link Credit
+ * credits} can be acquired (blocking, with a timeout, or not at all)
+ * before building a request. Under overload, callers can then shed or
+ * defer work, instead of queueing it up behind the window.
+ *
+ * @author Lorenzo Dee
+ */
+public interface PipelinedConnection extends Connection {
+
+	/**
+	 * Receives the reply to a pipelined request. Called from the
+	 * connection's reader (or timer) thread, so implementations should
+	 * not block.
+	 */
+	interface ReplyCallback {
+
+		/**
+		 * @param request the request (with its sequence number)
+		 * @param reply the reply, which may be a negative response
+		 */
+		void replied(Packet request, Packet reply);
+
+		/**
+		 * @param request the request (with its sequence number)
+		 * @param e the reason no reply was received (e.g. a
+		 *     {@link java.net.SocketTimeoutException} when the reply
+		 *     timed out, or an {@link java.io.IOException} when the
+		 *     connection was closed)
+		 */
+		void failed(Packet request, Exception e);
+	}
+
+	/**
+	 * A credit to send one request, i.e. a slot in the window of
+	 * outstanding requests. Acquired before the request is built (so that
+	 * callers wait, or give up, instead of queueing requests), and passed
+	 * to {@link PipelinedConnection#send(Credit, Packet, ReplyCallback)}.
+	 * The credit is returned to the connection when the reply is received,
+	 * or when the request fails or times out.
+	 */
+	interface Credit {
+
+		/**
+		 * Returns this credit to the connection without sending a request.
+		 * Does nothing if the credit was already used or released.
+		 */
+		void release();
+	}
+
+	/**
+	 * Returns the number of credits that can be acquired without waiting.
+	 */
+	int getAvailableCredits();
+
+	/**
+	 * Acquires a credit, waiting while there is none.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	Credit acquireCredit() throws InterruptedException;
+
+	/**
+	 * Acquires a credit, waiting up to the given time.
+	 * @return the credit, or <code>null</code> if none was available in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	Credit tryAcquireCredit(long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * Acquires a credit, if one is available right away.
+	 * @return the credit, or <code>null</code> if none is available
+	 */
+	Credit tryAcquireCredit();
+
+	/**
+	 * Sends a request without waiting for its reply. Blocks while the
+	 * window of outstanding requests is full.
+	 * @param request the request packet
+	 * @param callback receives the reply
+	 * @throws Exception when an error occurs while sending the packet
+	 *     (the callback is not called in that case)
+	 */
+	void send(Packet request, ReplyCallback callback) throws Exception;
+
+	/**
+	 * Sends a request, using the given credit, without waiting for its
+	 * reply. Does not block for the window.
+	 * @param credit a credit acquired from this connection, and not yet
+	 *     used nor released
+	 * @param request the request packet
+	 * @param callback receives the reply
+	 * @throws Exception when an error occurs while sending the packet
+	 *     (the callback is not called, but the credit is returned)
+	 */
+	void send(Credit credit, Packet request, ReplyCallback callback) throws Exception;
+
+}
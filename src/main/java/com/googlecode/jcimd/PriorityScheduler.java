@@ -0,0 +1,516 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Schedules requests over a connection in {@link Lane lanes}, so that
+ * interactive traffic (e.g. one-time passwords) is not delayed by bulk
+ * traffic (e.g. campaigns).
+ * <p>
+ * Requests are queued per lane. A single dispatcher thread waits for a
+ * slot in the connection's window (a {@link PipelinedConnection.Credit
+ * credit}) and, if a {@link #setRateLimit(double, int) rate limit} is
+ * set, for a token. Only then does it pick the lane to send from. So, a
+ * request that arrives while the dispatcher waits still competes for
+ * the next slot, and does not queue up behind requests of other lanes.
+ * <p>
+ * Lanes with queued requests share the slots in proportion to their
+ * {@link #setWeight(Lane, int) weights} (smooth weighted round-robin).
+ * A lane without queued requests leaves its share to the others. So,
+ * bulk traffic uses all the capacity that interactive traffic does not.
+ * <p>
+ * Connections that are not {@link PipelinedConnection pipelined} are
+ * sent to one request at a time, from the dispatcher thread. Replies
+ * and failures are passed to the callback given with each request.
+ *
+ * @author Lorenzo Dee
+ */
+public class PriorityScheduler {
+
+	private static final Log logger = LogFactory.getLog(PriorityScheduler.class);
+
+	/**
+	 * The lanes of traffic, from the most to the least urgent.
+	 */
+	public enum Lane {
+		/**
+		 * Traffic that a user waits for (e.g. one-time passwords).
+		 * Default weight is 8.
+		 */
+		INTERACTIVE(8),
+		/**
+		 * Default weight is 3.
+		 */
+		NORMAL(3),
+		/**
+		 * Traffic that can wait (e.g. campaigns). Default weight is 1.
+		 */
+		BULK(1);
+
+		private final int defaultWeight;
+
+		private Lane(int defaultWeight) {
+			this.defaultWeight = defaultWeight;
+		}
+	}
+
+	private final ConnectionFactory connectionFactory;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition requestAvailable = this.lock.newCondition();
+	private final LaneQueue[] lanes;
+
+	private int maxQueueSize = Integer.MAX_VALUE;
+	private long initialBackoff = 500;
+	private long maxBackoff = 30000;
+	private TokenBucket rateLimit;
+	private Connection connection;
+	private Thread dispatcher;
+	private volatile boolean running;
+
+	public PriorityScheduler(ConnectionFactory connectionFactory) {
+		if (connectionFactory == null) {
+			throw new IllegalArgumentException("connectionFactory cannot be null");
+		}
+		this.connectionFactory = connectionFactory;
+		Lane[] values = Lane.values();
+		this.lanes = new LaneQueue[values.length];
+		for (Lane lane : values) {
+			this.lanes[lane.ordinal()] = new LaneQueue(lane.defaultWeight);
+		}
+	}
+
+	public int getWeight(Lane lane) {
+		return this.lanes[lane.ordinal()].weight;
+	}
+
+	/**
+	 * Sets the weight of the given lane. When more than one lane has
+	 * queued requests, each gets slots in proportion to its weight.
+	 * @param lane the lane
+	 * @param weight the weight (greater than zero)
+	 */
+	public void setWeight(Lane lane, int weight) {
+		if (lane == null) {
+			throw new IllegalArgumentException("lane cannot be null");
+		}
+		if (weight <= 0) {
+			throw new IllegalArgumentException("weight must be greater than zero");
+		}
+		this.lock.lock();
+		try {
+			this.lanes[lane.ordinal()].weight = weight;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * Sets the maximum number of requests queued per lane. When a lane
+	 * is full, {@link #submit(Lane, Packet, PipelinedConnection.ReplyCallback)}
+	 * returns <code>false</code>. Defaults to no limit.
+	 * @param maxQueueSize the maximum queue size (greater than zero)
+	 */
+	public void setMaxQueueSize(int maxQueueSize) {
+		if (maxQueueSize <= 0) {
+			throw new IllegalArgumentException("maxQueueSize must be greater than zero");
+		}
+		this.maxQueueSize = maxQueueSize;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) to wait after the first failure to
+	 * get a connection, before trying again. Defaults to 500.
+	 * @param initialBackoff the initial back-off in milliseconds
+	 */
+	public void setInitialBackoff(long initialBackoff) {
+		if (initialBackoff <= 0) {
+			throw new IllegalArgumentException(
+					"initialBackoff must be greater than zero");
+		}
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) to wait between attempts
+	 * to get a connection. Defaults to 30000.
+	 * @param maxBackoff the maximum back-off in milliseconds
+	 */
+	public void setMaxBackoff(long maxBackoff) {
+		if (maxBackoff <= 0) {
+			throw new IllegalArgumentException(
+					"maxBackoff must be greater than zero");
+		}
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Limits the rate of requests sent, across all lanes. Must be set
+	 * before {@link #start() starting}.
+	 * @param permitsPerSecond the sustained number of requests per second
+	 * @param burst the number of requests that can be sent at once
+	 * @see TokenBucket
+	 */
+	public void setRateLimit(double permitsPerSecond, int burst) {
+		this.rateLimit = new TokenBucket(permitsPerSecond, burst);
+	}
+
+	/**
+	 * Starts the dispatcher thread.
+	 */
+	public synchronized void start() {
+		if (this.running) {
+			return;
+		}
+		setRunning(true);
+		this.dispatcher = Threads.newThreadFactory("jcimd-scheduler")
+				.newThread(new Dispatcher());
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Stops the dispatcher thread, and closes the connection. Requests
+	 * still queued are failed. Requests already sent are completed (or
+	 * failed) by the connection.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!this.running) {
+			return;
+		}
+		// no request can be queued once this is seen under the lock,
+		// so the lanes are drained for good
+		setRunning(false);
+		this.dispatcher.interrupt();
+		this.dispatcher.join();
+		this.dispatcher = null;
+		IOException stopped = new IOException("Scheduler stopped");
+		for (LaneQueue lane : this.lanes) {
+			Request request;
+			while ((request = poll(lane)) != null) {
+				request.failed(stopped);
+			}
+		}
+	}
+
+	/**
+	 * Queues the given request in the given lane.
+	 * @param lane the lane
+	 * @param request the request packet
+	 * @param callback receives the reply, or the reason there is none.
+	 *     Called from the connection's (or the dispatcher) thread, so it
+	 *     should not block.
+	 * @return <code>false</code> if the lane is full, and the request
+	 *     was not queued
+	 */
+	public boolean submit(Lane lane, Packet request,
+			PipelinedConnection.ReplyCallback callback) {
+		if (lane == null) {
+			throw new IllegalArgumentException("lane cannot be null");
+		}
+		if (request == null) {
+			throw new IllegalArgumentException("request cannot be null");
+		}
+		if (callback == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		this.lock.lock();
+		try {
+			if (!this.running) {
+				throw new IllegalStateException("Scheduler is not started");
+			}
+			LaneQueue laneQueue = this.lanes[lane.ordinal()];
+			if (laneQueue.requests.size() >= this.maxQueueSize) {
+				return false;
+			}
+			laneQueue.requests.add(new Request(request, callback));
+			this.requestAvailable.signal();
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void setRunning(boolean running) {
+		this.lock.lock();
+		try {
+			this.running = running;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of requests queued in the given lane.
+	 */
+	public int getQueueSize(Lane lane) {
+		this.lock.lock();
+		try {
+			return this.lanes[lane.ordinal()].requests.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private Request poll(LaneQueue lane) {
+		this.lock.lock();
+		try {
+			return lane.requests.poll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void awaitRequest() throws InterruptedException {
+		this.lock.lock();
+		try {
+			while (isEmpty()) {
+				this.requestAvailable.await();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private boolean isEmpty() {
+		for (LaneQueue lane : this.lanes) {
+			if (!lane.requests.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Picks the next request by smooth weighted round-robin: each lane
+	 * with queued requests earns its weight, and the lane with the most
+	 * earned is picked, and pays the sum of the weights.
+	 */
+	private Request next() {
+		this.lock.lock();
+		try {
+			LaneQueue picked = null;
+			int totalWeight = 0;
+			for (LaneQueue lane : this.lanes) {
+				if (lane.requests.isEmpty()) {
+					// does not build up credit while idle
+					lane.current = 0;
+					continue;
+				}
+				lane.current += lane.weight;
+				totalWeight += lane.weight;
+				if (picked == null || lane.current > picked.current) {
+					picked = lane;
+				}
+			}
+			if (picked == null) {
+				return null;
+			}
+			picked.current -= totalWeight;
+			return picked.requests.poll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private Connection getConnection() throws Exception {
+		if (this.connection == null || this.connection.isClosed()) {
+			this.connection = this.connectionFactory.getConnection();
+		}
+		return this.connection;
+	}
+
+	private void closeConnection() {
+		if (this.connection != null) {
+			try {
+				this.connection.close();
+			} catch (Exception e) {
+				logger.debug("Failed to close connection", e);
+			}
+			this.connection = null;
+		}
+	}
+
+	private class Dispatcher implements Runnable {
+		private int failedConnects;
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					awaitRequest();
+					dispatch();
+				}
+			} catch (InterruptedException e) {
+				// stopping
+			} finally {
+				closeConnection();
+			}
+		}
+
+		private void dispatch() throws InterruptedException {
+			Connection connection;
+			try {
+				connection = getConnection();
+				this.failedConnects = 0;
+			} catch (Exception e) {
+				// fails one request per attempt, so that callers learn
+				// about the outage, but does not spin through the queue
+				Request request = next();
+				if (request != null) {
+					request.failed(e);
+				}
+				backOff(e);
+				return;
+			}
+			PipelinedConnection.Credit credit = null;
+			if (connection instanceof PipelinedConnection) {
+				credit = ((PipelinedConnection) connection).acquireCredit();
+			}
+			Request request = null;
+			try {
+				if (rateLimit != null) {
+					rateLimit.acquire();
+				}
+				// picked only now, so that the most urgent lane gets the slot
+				request = next();
+			} finally {
+				if (request == null && credit != null) {
+					credit.release();
+				}
+			}
+			if (credit != null) {
+				try {
+					((PipelinedConnection) connection).send(credit, request.packet, request);
+				} catch (Exception e) {
+					credit.release();
+					request.failed(e);
+					closeConnection();
+				}
+			} else {
+				Packet reply;
+				try {
+					reply = connection.send(request.packet);
+				} catch (Exception e) {
+					request.failed(e);
+					closeConnection();
+					return;
+				}
+				if (reply != null) {
+					request.replied(request.packet, reply);
+				} else {
+					request.failed(new SocketTimeoutException("No reply"));
+				}
+			}
+		}
+
+		private void backOff(Exception e) throws InterruptedException {
+			long backoff = initialBackoff;
+			for (int i = 0; i < this.failedConnects && backoff < maxBackoff; i++) {
+				backoff *= 2;
+			}
+			backoff = Math.min(backoff, maxBackoff);
+			this.failedConnects++;
+			if (logger.isWarnEnabled()) {
+				logger.warn("Failed to get a connection (attempt " + this.failedConnects
+						+ "), retrying in " + backoff + " ms: " + e.getMessage());
+			}
+			Thread.sleep(backoff);
+		}
+	}
+
+	private static class LaneQueue {
+		private final Queue<Request> requests = new ArrayDeque<Request>();
+		private int weight;
+		private int current;
+
+		LaneQueue(int weight) {
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A queued request. Passes on its reply (or failure) exactly once.
+	 */
+	private static class Request implements PipelinedConnection.ReplyCallback {
+		private final Packet packet;
+		private final PipelinedConnection.ReplyCallback callback;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		Request(Packet packet, PipelinedConnection.ReplyCallback callback) {
+			this.packet = packet;
+			this.callback = callback;
+		}
+
+		void failed(Exception e) {
+			failed(this.packet, e);
+		}
+
+		// Callbacks run on the dispatcher thread (or the connection's
+		// reader thread), which must survive a failing callback.
+
+		@Override
+		public void replied(Packet request, Packet reply) {
+			if (this.done.compareAndSet(false, true)) {
+				try {
+					this.callback.replied(request, reply);
+				} catch (RuntimeException e) {
+					callbackFailed(e);
+				}
+			}
+		}
+
+		@Override
+		public void failed(Packet request, Exception failure) {
+			if (this.done.compareAndSet(false, true)) {
+				try {
+					this.callback.failed(request, failure);
+				} catch (RuntimeException e) {
+					callbackFailed(e);
+				}
+			}
+		}
+
+		private void callbackFailed(RuntimeException e) {
+			if (logger.isWarnEnabled()) {
+				logger.warn("Reply callback failed for " + this.packet, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.io.IOException;
+
+/**
+ * A {@link Session} for querying type of applications, which enquire
+ * about the messages they submitted, and poll for the messages sent to
+ * them.
+ * <p>
+ * These operations are not on {@link Session} itself, so that existing
+ * implementations of it are not broken.
+ *
+ * @author Lorenzo Dee
+ */
+public interface QueryingSession extends Session {
+
+	/**
+	 * Requests the status of many previously submitted messages.
+	 * <p>
+	 * Each message is still enquired in a separate packet. But when the
+	 * connection {@link PipelinedConnection supports it}, the enquiries
+	 * are pipelined (i.e. sent without waiting for the previous reply),
+	 * and the results are passed to the listener as they arrive.
+	 * Otherwise, the enquiries are sent one at a time.
+	 * <p>
+	 * This returns when all results have been passed to the listener.
+	 *
+	 * @param messages the messages
+	 * @param listener receives the status (or failure) of each message
+	 * @throws IOException
+	 * @throws SessionException if the enquiries could not be sent
+	 */
+	void enquireMessageStatus(
+			Iterable<MessageReference> messages, MessageStatusListener listener)
+	throws IOException, SessionException;
+
+	/**
+	 * This operation is used by the client (application) to retrieve a
+	 * message sent to the client. The usage of this operation depends
+	 * on the type of message center and type of application.
+	 * <p>
+	 * For the SMS Center, the usage depends on the application type.
+	 * <p>
+	 * The querying type of application must always poll for messages
+	 * using this delivery request operation.
+	 * <p>
+	 * For the receiving type of application, this operation is optional
+	 * as normally messages are delivered immediately to the application
+	 * using the deliver message operation (020). This operation can still
+	 * be useful for querying the count of messages waiting for the
+	 * application.
+	 * <p>
+	 * This operation cannot be used by send-only applications.
+	 * <p>
+	 * If the response to the delivery request with mode 1 or 2 is
+	 * positive, one or more deliver short message operations will follow
+	 * until all the messages are delivered. These are passed to the
+	 * {@link MessageReceiver} of the connection.
+	 *
+	 * @return the number of messages waiting (parameter 066)
+	 * @throws IOException
+	 * @throws SessionException
+	 * @see DeliveryRequestPoller
+	 */
+	int deliveryRequestNumberOfMessagesWaiting() throws IOException, SessionException;
+
+	/**
+	 * Requests the SMS Center to deliver one waiting message (delivery
+	 * request mode 1).
+	 * @throws IOException
+	 * @throws SessionException
+	 * @see #deliveryRequestNumberOfMessagesWaiting()
+	 */
+	void deliveryRequestOneMessage() throws IOException, SessionException;
+
+	/**
+	 * Requests the SMS Center to deliver all waiting messages (delivery
+	 * request mode 2).
+	 * @throws IOException
+	 * @throws SessionException
+	 * @see #deliveryRequestNumberOfMessagesWaiting()
+	 */
+	void deliveryRequestAllMessages() throws IOException, SessionException;
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+/**
+ * Thrown when a request was not sent because the configured rate
+ * limit would have been exceeded. The connection remains usable,
+ * and the request can be retried later.
+ *
+ * @author Lorenzo Dee
+ * @see RateLimitedConnectionFactory
+ */
+public class RateLimitExceededException extends SessionException {
+
+	private static final long serialVersionUID = 4503599181630452378L;
+
+	public RateLimitExceededException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConnectionFactory} decorator that limits the rate at which
+ * requests are sent over the connections it provides.
+ * <p>
+ * SMS Center operators usually enforce a per-bind submit rate, and
+ * reply with an error, or disconnect, when it is exceeded. This factory
+ * throttles the client side using a {@link TokenBucket token bucket},
+ * so that it stays just under the contracted rate.
+ * <p>
+ * Login, logout and alive operations, and responses to the SMS Center,
+ * are not throttled. A request that exceeds the rate waits up to
+ * {@link #setMaxWait(long) maximum wait} for a token. If no token is
+ * available by then, a {@link RateLimitExceededException} is thrown
+ * and the request is not sent. A maximum wait of zero rejects excess
+ * requests immediately.
+ * <p>
+ * By default, all connections provided by this factory share a single
+ * bucket (e.g. when the operator's limit applies to the account). Use
+ * {@link #setSharedAcrossConnections(boolean)} to give each connection
+ * its own bucket (e.g. when the limit applies to each bind).
+ * <p>
+ * Connections that are {@link PipelinedConnection pipelined} remain
+ * pipelined. Their requests wait for the rate limit before they are
+ * written, while holding a credit when one was acquired.
+ *
+ * @author Lorenzo Dee
+ */
+public class RateLimitedConnectionFactory implements ConnectionFactory {
+
+	private final ConnectionFactory connectionFactory;
+	private final double permitsPerSecond;
+	private final int burst;
+	private final TokenBucket sharedBucket;
+
+	private boolean sharedAcrossConnections = true;
+	private long maxWait = Long.MAX_VALUE;
+
+	/**
+	 * @param connectionFactory the connection factory to decorate
+	 * @param permitsPerSecond the maximum sustained requests per second
+	 * @param burst the maximum number of requests sent back-to-back
+	 */
+	public RateLimitedConnectionFactory(ConnectionFactory connectionFactory,
+			double permitsPerSecond, int burst) {
+		if (connectionFactory == null) {
+			throw new IllegalArgumentException("connectionFactory cannot be null");
+		}
+		this.connectionFactory = connectionFactory;
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.sharedBucket = new TokenBucket(permitsPerSecond, burst);
+	}
+
+	public boolean isSharedAcrossConnections() {
+		return sharedAcrossConnections;
+	}
+
+	public void setSharedAcrossConnections(boolean sharedAcrossConnections) {
+		this.sharedAcrossConnections = sharedAcrossConnections;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) a request waits for the
+	 * rate limit. Defaults to waiting indefinitely.
+	 * @param maxWait the maximum wait in milliseconds (zero to reject
+	 *     excess requests immediately)
+	 */
+	public void setMaxWait(long maxWait) {
+		if (maxWait < 0) {
+			throw new IllegalArgumentException("maxWait cannot be negative");
+		}
+		this.maxWait = maxWait;
+	}
+
+	@Override
+	public Connection getConnection() throws Exception {
+		TokenBucket bucket = this.sharedAcrossConnections
+				? this.sharedBucket
+				: new TokenBucket(this.permitsPerSecond, this.burst);
+		Connection connection = this.connectionFactory.getConnection();
+		if (connection instanceof PipelinedConnection) {
+			return new PipelinedRateLimitedConnection(
+					(PipelinedConnection) connection, bucket, this.maxWait);
+		}
+		return new RateLimitedConnection(connection, bucket, this.maxWait);
+	}
+
+	private static class RateLimitedConnection implements Connection {
+		private final Connection connection;
+		private final TokenBucket bucket;
+		private final long maxWait;
+
+		public RateLimitedConnection(Connection connection,
+				TokenBucket bucket, long maxWait) {
+			this.connection = connection;
+			this.bucket = bucket;
+			this.maxWait = maxWait;
+		}
+
+		@Override
+		public Packet send(Packet request) throws Exception {
+			acquire(request);
+			return this.connection.send(request);
+		}
+
+		void acquire(Packet request) throws Exception {
+			if (isThrottled(request)
+					&& !this.bucket.tryAcquire(this.maxWait, TimeUnit.MILLISECONDS)) {
+				throw new RateLimitExceededException(
+						"Rate limit of " + this.bucket.getPermitsPerSecond()
+						+ " request(s) per second exceeded");
+			}
+		}
+
+		private boolean isThrottled(Packet request) {
+			switch (request.getOperationCode()) {
+			case Packet.OP_LOGIN:
+			case Packet.OP_LOGOUT:
+			case Packet.OP_ALIVE:
+				return false;
+			default:
+				return !request.isResponse();
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.connection.isOpen();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return this.connection.isClosed();
+		}
+
+		@Override
+		public void close() {
+			this.connection.close();
+		}
+	}
+
+	/**
+	 * Keeps a {@link PipelinedConnection} pipelined. A pipelined request
+	 * waits for the rate limit before it is written.
+	 */
+	private static class PipelinedRateLimitedConnection extends RateLimitedConnection
+			implements PipelinedConnection {
+		private final PipelinedConnection pipelinedConnection;
+
+		public PipelinedRateLimitedConnection(PipelinedConnection connection,
+				TokenBucket bucket, long maxWait) {
+			super(connection, bucket, maxWait);
+			this.pipelinedConnection = connection;
+		}
+
+		@Override
+		public int getAvailableCredits() {
+			return this.pipelinedConnection.getAvailableCredits();
+		}
+
+		@Override
+		public Credit acquireCredit() throws InterruptedException {
+			return this.pipelinedConnection.acquireCredit();
+		}
+
+		@Override
+		public Credit tryAcquireCredit(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			return this.pipelinedConnection.tryAcquireCredit(timeout, unit);
+		}
+
+		@Override
+		public Credit tryAcquireCredit() {
+			return this.pipelinedConnection.tryAcquireCredit();
+		}
+
+		@Override
+		public void send(Packet request, ReplyCallback callback) throws Exception {
+			acquire(request);
+			this.pipelinedConnection.send(request, callback);
+		}
+
+		@Override
+		public void send(Credit credit, Packet request, ReplyCallback callback)
+				throws Exception {
+			try {
+				acquire(request);
+			} catch (Exception e) {
+				// the request is not sent, so its credit is returned
+				credit.release();
+				throw e;
+			}
+			this.pipelinedConnection.send(credit, request, callback);
+		}
+	}
+
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link ConnectionFactory} decorator that provides connections which
+ * survive the loss of the underlying connection (e.g. when the SMS
+ * Center restarts).
+ * <p>
+ * Each connection provided by this factory holds an underlying
+ * connection from the decorated factory (which also logs in). When the
+ * underlying connection is lost, a new one is obtained in the
+ * background, with exponential back-off between failed attempts
+ * (from {@link #setInitialBackoff(long) initial back-off} up to
+ * {@link #setMaxBackoff(long) maximum back-off}). Requests sent in
+ * the meantime wait up to {@link #setMaxWait(long) maximum wait} for
+ * the new connection, after which a {@link ConnectionLostException}
+ * is thrown.
+ * <p>
+ * Requests that were outstanding when the connection was lost (i.e.
+ * sent, but not replied to) are replayed on the new connection, up to
+ * {@link #setMaxReplays(int) maximum replays} times. Use
+ * {@link #setReplayOutstandingRequests(boolean)} to fail such requests
+ * with a {@link ConnectionLostException} instead. Since the SMS Center
+ * may have processed a request before the connection was lost,
+ * submitted messages are only replayed when
+ * {@link #setReplaySubmittedMessages(boolean) enabled}, as this can
+ * result in duplicates.
+ * <p>
+ * A single request without a reply is not taken as a lost connection.
+ * Only after {@link #setMaxConsecutiveTimeouts(int) several}
+ * consecutive requests time out is the link assumed to be dead (e.g.
+ * dropped by a NAT device). Keep-alive (see
+ * {@link TcpNetConnectionFactory#setAliveInterval(long)}) detects such
+ * a link sooner. A request whose caller is interrupted does not affect
+ * the connection either.
+ * <p>
+ * A request that is rejected with a nack (e.g. due to an incorrect
+ * checksum or sequence number) is retransmitted, as required by the
+ * CIMD specification, up to {@link #setMaxNackRetransmissions(int)}
+ * times.
+ * <p>
+ * The connections provided by this factory are not
+ * {@link PipelinedConnection pipelined}, even when the decorated
+ * factory's are. Credits and reply callbacks belong to one underlying
+ * connection, and cannot be carried over to its replacement. Sessions
+ * and schedulers using this factory send one request at a time per
+ * connection. To pipeline requests, use several connections, or handle
+ * reconnection in the caller (e.g. by getting a new connection when a
+ * {@link PipelinedConnection.ReplyCallback#failed(Packet, Exception)
+ * request fails}).
+ * <pre>
+ * ConnectionFactory connectionFactory = new ReconnectingConnectionFactory(
+ *         new TcpNetConnectionFactory(host, port, username, password));
+ * Session session = new DefaultSession(connectionFactory);
+ * </pre>
+ *
+ * @author Lorenzo Dee
+ */
+public class ReconnectingConnectionFactory implements ConnectionFactory {
+
+	private static final Log logger = LogFactory.getLog(ReconnectingConnectionFactory.class);
+
+	private final ConnectionFactory connectionFactory;
+
+	private long initialBackoff = 500;
+	private long maxBackoff = 30000;
+	private long maxWait = 30000;
+	private long checkInterval = 1000;
+	private boolean replayOutstandingRequests = true;
+	private boolean replaySubmittedMessages;
+	private int maxReplays = 3;
+	private int maxConsecutiveTimeouts = 3;
+	private int maxNackRetransmissions = 3;
+
+	private ScheduledExecutorService scheduler;
+	private Executor executor;
+
+	public ReconnectingConnectionFactory(ConnectionFactory connectionFactory) {
+		if (connectionFactory == null) {
+			throw new IllegalArgumentException("connectionFactory cannot be null");
+		}
+		this.connectionFactory = connectionFactory;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) to wait after the first failed
+	 * attempt to reconnect. Defaults to 500.
+	 * @param initialBackoff the initial back-off in milliseconds
+	 */
+	public void setInitialBackoff(long initialBackoff) {
+		if (initialBackoff <= 0) {
+			throw new IllegalArgumentException(
+					"initialBackoff must be greater than zero");
+		}
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) to wait between attempts
+	 * to reconnect. Defaults to 30000.
+	 * @param maxBackoff the maximum back-off in milliseconds
+	 */
+	public void setMaxBackoff(long maxBackoff) {
+		if (maxBackoff <= 0) {
+			throw new IllegalArgumentException(
+					"maxBackoff must be greater than zero");
+		}
+		this.maxBackoff = maxBackoff;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) a request waits for the
+	 * connection to be re-established. Defaults to 30000. Zero fails
+	 * requests immediately while reconnecting.
+	 * @param maxWait the maximum wait in milliseconds
+	 */
+	public void setMaxWait(long maxWait) {
+		if (maxWait < 0) {
+			throw new IllegalArgumentException("maxWait cannot be negative");
+		}
+		this.maxWait = maxWait;
+	}
+
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) to check if an idle
+	 * underlying connection was closed, so that it is replaced before
+	 * the next request. Defaults to 1000.
+	 * @param checkInterval the check interval in milliseconds
+	 */
+	public void setCheckInterval(long checkInterval) {
+		if (checkInterval <= 0) {
+			throw new IllegalArgumentException(
+					"checkInterval must be greater than zero");
+		}
+		this.checkInterval = checkInterval;
+	}
+
+	public boolean isReplayOutstandingRequests() {
+		return replayOutstandingRequests;
+	}
+
+	public void setReplayOutstandingRequests(boolean replayOutstandingRequests) {
+		this.replayOutstandingRequests = replayOutstandingRequests;
+	}
+
+	public boolean isReplaySubmittedMessages() {
+		return replaySubmittedMessages;
+	}
+
+	/**
+	 * Sets whether outstanding submit message requests are replayed
+	 * when the connection is lost. Defaults to <code>false</code>, since
+	 * the SMS Center may have accepted the message already, and a replay
+	 * would deliver it twice.
+	 * @param replaySubmittedMessages <code>true</code> to replay submits
+	 */
+	public void setReplaySubmittedMessages(boolean replaySubmittedMessages) {
+		this.replaySubmittedMessages = replaySubmittedMessages;
+	}
+
+	public int getMaxReplays() {
+		return maxReplays;
+	}
+
+	public void setMaxReplays(int maxReplays) {
+		if (maxReplays < 0) {
+			throw new IllegalArgumentException("maxReplays cannot be negative");
+		}
+		this.maxReplays = maxReplays;
+	}
+
+	public int getMaxConsecutiveTimeouts() {
+		return maxConsecutiveTimeouts;
+	}
+
+	/**
+	 * Sets the number of consecutive requests without a reply (within
+	 * the reply timeout) after which the underlying connection is
+	 * assumed to be lost. Defaults to 3. Earlier requests without a
+	 * reply return <code>null</code>, like the underlying connection.
+	 * @param maxConsecutiveTimeouts the number of timeouts
+	 */
+	public void setMaxConsecutiveTimeouts(int maxConsecutiveTimeouts) {
+		if (maxConsecutiveTimeouts <= 0) {
+			throw new IllegalArgumentException(
+					"maxConsecutiveTimeouts must be greater than zero");
+		}
+		this.maxConsecutiveTimeouts = maxConsecutiveTimeouts;
+	}
+
+	public int getMaxNackRetransmissions() {
+		return maxNackRetransmissions;
+	}
+
+	public void setMaxNackRetransmissions(int maxNackRetransmissions) {
+		if (maxNackRetransmissions < 0) {
+			throw new IllegalArgumentException(
+					"maxNackRetransmissions cannot be negative");
+		}
+		this.maxNackRetransmissions = maxNackRetransmissions;
+	}
+
+	/**
+	 * Sets the scheduler used to time reconnect attempts and checks.
+	 * Defaults to a scheduler shared by all connections.
+	 * @param scheduler the scheduler
+	 */
+	public void setScheduler(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Sets the executor that runs reconnect attempts (which block while
+	 * connecting and logging in). Defaults to a pool of daemon threads,
+	 * or to virtual threads on Java 21 or later.
+	 * @param executor the executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	private synchronized Executor getExecutor() {
+		if (this.executor == null) {
+			this.executor = Threads.newExecutor("jcimd-reconnect");
+		}
+		return this.executor;
+	}
+
+	/**
+	 * Returns a new connection, after obtaining its underlying
+	 * connection from the decorated factory. Fails if the underlying
+	 * connection cannot be obtained.
+	 */
+	@Override
+	public Connection getConnection() throws Exception {
+		ReconnectingConnection connection = new ReconnectingConnection(
+				this.connectionFactory.getConnection(),
+				this.scheduler != null ? this.scheduler : SharedScheduler.get(),
+				getExecutor());
+		connection.scheduleCheck();
+		return connection;
+	}
+
+	private class ReconnectingConnection implements Connection {
+		private final ScheduledExecutorService scheduler;
+		private final Executor executor;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition connectionAvailable = this.lock.newCondition();
+		private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+
+		// guarded by lock
+		private Connection connection;
+		private boolean reconnecting;
+		private boolean closed;
+		private int failedAttempts;
+		private ScheduledFuture<?> checkFuture;
+		private ScheduledFuture<?> retryFuture;
+
+		public ReconnectingConnection(Connection connection,
+				ScheduledExecutorService scheduler, Executor executor) {
+			this.connection = connection;
+			this.scheduler = scheduler;
+			this.executor = executor;
+		}
+
+		@Override
+		public Packet send(Packet request) throws Exception {
+			int replays = 0;
+			int nackRetransmissions = 0;
+			while (true) {
+				Connection current = awaitConnection();
+				Packet reply;
+				try {
+					reply = current.send(request);
+				} catch (Exception e) {
+					if (isInterruption(e)) {
+						// the caller was interrupted, not the connection lost
+						Thread.currentThread().interrupt();
+						throw e;
+					}
+					if (!(e instanceof IOException) && current.isOpen()) {
+						// not due to a lost connection
+						throw e;
+					}
+					connectionLost(current, e.getMessage());
+					if (!mayReplay(request, replays)) {
+						throw new ConnectionLostException(
+								"Connection lost while waiting for reply", e);
+					}
+					replays++;
+					continue;
+				}
+				if (reply == null) {
+					if (Thread.currentThread().isInterrupted()) {
+						throw new InterruptedIOException(
+								"Interrupted while waiting for reply to " + request);
+					}
+					if (this.consecutiveTimeouts.incrementAndGet() < maxConsecutiveTimeouts) {
+						// a slow reply, not (yet) a dead link
+						return null;
+					}
+					// Assume the link is dead (e.g. dropped by a NAT device)
+					connectionLost(current, this.consecutiveTimeouts.get()
+							+ " requests without reply");
+					if (!mayReplay(request, replays)) {
+						throw new ConnectionLostException(
+								"No reply, connection assumed to be lost");
+					}
+					replays++;
+					continue;
+				}
+				this.consecutiveTimeouts.set(0);
+				if (reply.isNack() && nackRetransmissions < maxNackRetransmissions) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Retransmitting " + request + " after " + reply);
+					}
+					nackRetransmissions++;
+					continue;
+				}
+				return reply;
+			}
+		}
+
+		private boolean isInterruption(Exception e) {
+			return e instanceof InterruptedException
+					|| (e instanceof InterruptedIOException
+							&& !(e instanceof SocketTimeoutException))
+					|| Thread.currentThread().isInterrupted();
+		}
+
+		private boolean mayReplay(Packet request, int replays) {
+			return replayOutstandingRequests && replays < maxReplays
+					&& (replaySubmittedMessages
+							|| request.getOperationCode() != Packet.OP_SUBMIT_MESSAGE);
+		}
+
+		/**
+		 * Returns the underlying connection, waiting for it to be
+		 * re-established if necessary.
+		 */
+		private Connection awaitConnection() throws Exception {
+			this.lock.lock();
+			try {
+				long deadline = System.currentTimeMillis() + maxWait;
+				while (true) {
+					if (this.closed) {
+						throw new IllegalStateException("Connection closed");
+					}
+					if (this.connection != null) {
+						if (this.connection.isOpen()) {
+							return this.connection;
+						}
+						connectionLost(this.connection, "connection closed");
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new ConnectionLostException(
+								"Connection lost, and not re-established within "
+								+ maxWait + " ms");
+					}
+					this.connectionAvailable.await(remaining, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Discards the given (lost) underlying connection, and starts
+		 * reconnecting in the background.
+		 */
+		private void connectionLost(Connection lost, String reason) {
+			this.lock.lock();
+			try {
+				if (this.connection == lost) {
+					if (logger.isWarnEnabled()) {
+						logger.warn("Connection lost (" + reason + "), reconnecting...");
+					}
+					this.connection = null;
+					this.failedAttempts = 0;
+					this.consecutiveTimeouts.set(0);
+					closeLater(lost);
+				}
+				if (!this.reconnecting && this.connection == null && !this.closed) {
+					this.reconnecting = true;
+					this.executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							reconnect();
+						}
+					});
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		private void reconnect() {
+			Object event = CimdEvents.beginReconnect();
+			Connection newConnection = null;
+			Exception failure = null;
+			try {
+				newConnection = connectionFactory.getConnection();
+			} catch (Exception e) {
+				failure = e;
+			}
+			CimdEvents.endReconnect(event, newConnection != null);
+			this.lock.lock();
+			try {
+				if (this.closed) {
+					if (newConnection != null) {
+						closeQuietly(newConnection);
+					}
+					this.reconnecting = false;
+					return;
+				}
+				if (newConnection != null) {
+					if (logger.isInfoEnabled()) {
+						logger.info("Reconnected after " + this.failedAttempts
+								+ " failed attempt(s)");
+					}
+					this.connection = newConnection;
+					this.failedAttempts = 0;
+					this.reconnecting = false;
+					this.connectionAvailable.signalAll();
+					return;
+				}
+				long backoff = initialBackoff;
+				for (int i = 0; i < this.failedAttempts && backoff < maxBackoff; i++) {
+					backoff *= 2;
+				}
+				backoff = Math.min(backoff, maxBackoff);
+				this.failedAttempts++;
+				if (logger.isWarnEnabled()) {
+					logger.warn("Failed to reconnect (attempt " + this.failedAttempts
+							+ "), retrying in " + backoff + " ms: " + failure.getMessage());
+				}
+				this.retryFuture = this.scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								reconnect();
+							}
+						});
+					}
+				}, backoff, TimeUnit.MILLISECONDS);
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Periodically checks if the (idle) underlying connection was
+		 * closed, so that it is re-established before it is needed.
+		 */
+		private void scheduleCheck() {
+			this.lock.lock();
+			try {
+				if (this.closed) {
+					return;
+				}
+				this.checkFuture = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						lock.lock();
+						try {
+							if (connection != null && connection.isClosed()) {
+								connectionLost(connection, "connection closed");
+							}
+						} finally {
+							lock.unlock();
+						}
+					}
+				}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Closes the given connection without holding any lock, since
+		 * closing may wait for a logout response.
+		 */
+		private void closeLater(final Connection connection) {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeQuietly(connection);
+				}
+			});
+		}
+
+		private void closeQuietly(Connection connection) {
+			try {
+				connection.close();
+			} catch (RuntimeException e) {
+				if (logger.isTraceEnabled()) {
+					logger.trace("Ignoring error while closing connection: " + e.getMessage());
+				}
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !isClosed();
+		}
+
+		@Override
+		public boolean isClosed() {
+			this.lock.lock();
+			try {
+				return this.closed;
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			Connection toClose;
+			this.lock.lock();
+			try {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				if (this.checkFuture != null) {
+					this.checkFuture.cancel(false);
+				}
+				if (this.retryFuture != null) {
+					this.retryFuture.cancel(false);
+				}
+				toClose = this.connection;
+				this.connection = null;
+				this.connectionAvailable.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+			if (toClose != null) {
+				toClose.close();
+			}
+		}
+	}
+
+}
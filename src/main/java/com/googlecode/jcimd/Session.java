@@ -129,35 +129,6 @@ public interface Session {
 			String destinationAddress, String messageCenterTimeStamp)
 	throws IOException, SessionException;
 
-	/**
-	 * This operation is used by the client (application) to retrieve a
-	 * message sent to the client. The usage of this operation depends
-	 * on the type of message center and type of application.
-	 * <p>
-	 * For the SMS Center, the usage depends on the application type.
-	 * <p>
-	 * The querying type of application must always poll for messages
-	 * using this delivery request operation.
-	 * <p>
-	 * For the receiving type of application, this operation is optional
-	 * as normally messages are delivered immediately to the application
-	 * using the deliver message operation (020). This operation can still
-	 * be useful for querying the count of messages waiting for the
-	 * application.
-	 * <p>
-	 * This operation cannot be used by send-only applications.
-	 * <p>
-	 * If the response to the delivery request with mode 1 or 2 is
-	 * positive, one or more deliver short message operations will follow
-	 * until all the messages are delivered.
-	 *
-	 * @throws IOException
-	 * @throws SessionException
-	 */
-	//int deliveryRequestNumberOfMessagesWaiting() throws IOException, SessionException;
-	//Packet deliveryRequestOneMessage() throws IOException, SessionException;
-	//void deliveryRequestAllMessage(MessageReceiver callback) throws IOException, SessionException;
-	
 	/*
 	void cancelMessage(String destinationAddress, String messageCenterTimeStamp, CancelMode cancelMode) throws IOException, SessionException;
 	void set(String newPassword) throws IOException, SessionException;
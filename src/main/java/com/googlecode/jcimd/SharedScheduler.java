@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Holds the scheduler shared by all connections for background
+ * tasks (e.g. keep-alive and reconnect). It runs on a single thread
+ * (see {@link Threads#newThreadFactory(String)}), so tasks should not
+ * block.
+ *
+ * @author Lorenzo Dee
+ */
+final class SharedScheduler {
+
+	private static ScheduledExecutorService scheduler;
+
+	private SharedScheduler() {}
+
+	static synchronized ScheduledExecutorService get() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(
+					Threads.newThreadFactory("jcimd-scheduler"));
+		}
+		return scheduler;
+	}
+
+}
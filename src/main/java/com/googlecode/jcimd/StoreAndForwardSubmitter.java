@@ -0,0 +1,308 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Store-and-forward front end to submit messages.
+ * <p>
+ * A submitted message is first appended to a {@link SubmitJournal},
+ * and then sent by background threads, each with its own connection.
+ * When the SMS Center accepts the message, the message center timestamp
+ * is recorded in the journal. When it rejects it, the entry is marked
+ * as rejected. Either way, the {@link Listener listener} is notified.
+ * <p>
+ * Entries that were not acknowledged when the JVM stopped are recovered
+ * by {@link #start()} and sent again. Requests that fail for transient
+ * reasons (e.g. I/O errors, timeouts, NACKs) are retried after the
+ * {@link #setRetryInterval(long) retry interval}. So, messages are sent
+ * at least once. With more than one {@link #setConnections(int)
+ * connection}, they may not be sent in the order they were submitted.
+ *
+ * @author Lorenzo Dee
+ */
+public class StoreAndForwardSubmitter {
+
+	private static final Log logger = LogFactory.getLog(StoreAndForwardSubmitter.class);
+
+	/**
+	 * Receives the outcome of journaled submit requests. Called from the
+	 * submitter's threads.
+	 */
+	public interface Listener {
+		void submitted(long id, String messageCenterTimestamp);
+		void rejected(long id, NegativeResponseException e);
+	}
+
+	private final SubmitJournal journal;
+	private final ConnectionFactory connectionFactory;
+	private final BlockingDeque<SubmitJournal.Entry> queue =
+			new LinkedBlockingDeque<SubmitJournal.Entry>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private int connections = 1;
+	private long retryInterval = 1000;
+	private Listener listener;
+	private volatile boolean running;
+
+	public StoreAndForwardSubmitter(
+			SubmitJournal journal, ConnectionFactory connectionFactory) {
+		if (journal == null) {
+			throw new IllegalArgumentException("journal cannot be null");
+		}
+		if (connectionFactory == null) {
+			throw new IllegalArgumentException("connectionFactory cannot be null");
+		}
+		this.journal = journal;
+		this.connectionFactory = connectionFactory;
+	}
+
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Sets the number of connections (and threads) used to send the
+	 * journaled requests. Defaults to one (1).
+	 */
+	public void setConnections(int connections) {
+		if (connections <= 0) {
+			throw new IllegalArgumentException("connections must be positive");
+		}
+		this.connections = connections;
+	}
+
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) to wait before sending a request
+	 * again after a transient failure. Defaults to 1000.
+	 */
+	public void setRetryInterval(long retryInterval) {
+		if (retryInterval <= 0) {
+			throw new IllegalArgumentException(
+					"retryInterval must be greater than zero");
+		}
+		this.retryInterval = retryInterval;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Opens the journal, queues the recovered entries, and starts sending.
+	 * @throws IOException when the journal cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (this.running) {
+			return;
+		}
+		List<SubmitJournal.Entry> entries = this.journal.open();
+		this.queue.addAll(entries);
+		this.running = true;
+		ThreadFactory threadFactory = Threads.newThreadFactory("jcimd-submitter");
+		for (int i = 0; i < this.connections; i++) {
+			Thread thread = threadFactory.newThread(new Sender());
+			this.threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops sending and closes the journal. Requests still queued stay
+	 * in the journal, and are sent after the next {@link #start()}.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!this.running) {
+			return;
+		}
+		this.running = false;
+		for (Thread thread : this.threads) {
+			thread.interrupt();
+		}
+		for (Thread thread : this.threads) {
+			thread.join();
+		}
+		this.threads.clear();
+		this.queue.clear();
+		this.journal.close();
+	}
+
+	/**
+	 * Journals the given submit message request and queues it for sending.
+	 * @return the id of the journal entry, as passed to the {@link Listener}
+	 * @throws IOException when the request cannot be journaled
+	 */
+	public long submit(Packet submitMessage) throws IOException {
+		if (!this.running) {
+			throw new IllegalStateException("Submitter is not started");
+		}
+		long id = this.journal.append(submitMessage);
+		this.queue.add(new SubmitJournal.Entry(id, submitMessage));
+		return id;
+	}
+
+	/**
+	 * Journals a submit message request and queues it for sending. The
+	 * parameters are the same as
+	 * {@link Session#submitMessage(String, String, String, UserData, Boolean, TimePeriod, Integer, TimePeriod, Boolean, Integer, Boolean, Integer, Integer, Integer)}.
+	 * @return the id of the journal entry, as passed to the {@link Listener}
+	 * @throws IOException when the request cannot be journaled
+	 */
+	public long submitMessage(String destinationAddress,
+			String originatingAddress, String alphanumericOriginatingAddress,
+			UserData userData,
+			Boolean moreMessagesToSend,
+			TimePeriod validityPeriod,
+			Integer protocolIdentifier,
+			TimePeriod firstDeliveryTime,
+			Boolean replyPathEnabled,
+			Integer statusReportRequest,
+			Boolean cancelEnabled,
+			Integer tariffClass,
+			Integer serviceDescription,
+			Integer priority) throws IOException {
+		return submit(DefaultSession.createSubmitMessage(destinationAddress,
+				originatingAddress, alphanumericOriginatingAddress, userData,
+				moreMessagesToSend, validityPeriod, protocolIdentifier,
+				firstDeliveryTime, replyPathEnabled, statusReportRequest,
+				cancelEnabled, tariffClass, serviceDescription, priority));
+	}
+
+	/**
+	 * Returns the number of requests waiting to be sent.
+	 */
+	public int getQueueSize() {
+		return this.queue.size();
+	}
+
+	private class Sender implements Runnable {
+
+		private Connection connection;
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					SubmitJournal.Entry entry = queue.take();
+					while (!send(entry)) {
+						if (!running) {
+							return;
+						}
+						Thread.sleep(retryInterval);
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopping
+			} finally {
+				closeConnection();
+			}
+		}
+
+		/**
+		 * @return <code>false</code> when sending should be retried
+		 */
+		private boolean send(SubmitJournal.Entry entry) {
+			Packet response;
+			try {
+				if (this.connection == null || this.connection.isClosed()) {
+					this.connection = connectionFactory.getConnection();
+				}
+				response = this.connection.send(entry.getPacket());
+			} catch (RateLimitExceededException e) {
+				return false;
+			} catch (Exception e) {
+				if (running) {
+					logger.warn("Failed to send journal entry " + entry.getId()
+							+ ", will retry", e);
+				}
+				closeConnection();
+				return false;
+			}
+			if (response == null) {
+				if (running) {
+					logger.warn("No response for journal entry " + entry.getId()
+							+ ", will retry");
+				}
+				closeConnection();
+				return false;
+			}
+			if (response.isPositiveResponse()) {
+				Parameter timestamp = response.getParameter(Parameter.MC_TIMESTAMP);
+				String messageCenterTimestamp =
+						timestamp != null ? timestamp.getValue() : null;
+				journal.acknowledge(entry.getId(), messageCenterTimestamp);
+				if (listener != null) {
+					try {
+						listener.submitted(entry.getId(), messageCenterTimestamp);
+					} catch (RuntimeException e) {
+						listenerFailed(entry, e);
+					}
+				}
+			} else if (response.isNack()) {
+				return false;
+			} else {
+				journal.reject(entry.getId());
+				if (listener != null) {
+					try {
+						listener.rejected(entry.getId(),
+								(NegativeResponseException) DefaultSession.toException(response));
+					} catch (RuntimeException e) {
+						listenerFailed(entry, e);
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Logs a listener failure. The entry is already recorded in the
+		 * journal, so it is neither sent again nor reported again.
+		 */
+		private void listenerFailed(SubmitJournal.Entry entry, RuntimeException e) {
+			logger.warn("Listener failed for journal entry " + entry.getId(), e);
+		}
+
+		private void closeConnection() {
+			if (this.connection != null) {
+				try {
+					this.connection.close();
+				} catch (Exception e) {
+					logger.debug("Failed to close connection", e);
+				}
+				this.connection = null;
+			}
+		}
+	}
+
+}
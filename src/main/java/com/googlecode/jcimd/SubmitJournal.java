@@ -0,0 +1,479 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only journal of outbound requests, stored in memory-mapped
+ * segment files.
+ * <p>
+ * Each record holds a serialized {@link Packet} and its state: pending,
+ * acknowledged (with the message center timestamp returned by the SMS
+ * Center), or rejected. When the journal is {@link #open() opened}, the
+ * pending records left by a previous run are returned so that they can
+ * be sent again.
+ * <p>
+ * Appends are written to the mapped segment and then forced to disk
+ * (unless {@link #setForceOnAppend(boolean) disabled}). Concurrent
+ * appenders share a single force (group commit): while one appender
+ * forces the segment, the others wait, and the next force covers all
+ * records appended in the meantime.
+ * <p>
+ * Acknowledgements are written in place, but not forced. Since the
+ * operating system keeps the pages of a mapped file, they survive the
+ * JVM dying, but may be lost if the operating system crashes. In that
+ * case, the request is sent again after recovery (at-least-once).
+ * <p>
+ * A segment is deleted once all its records have been acknowledged or
+ * rejected and appends have moved on to a newer segment.
+ *
+ * @author Lorenzo Dee
+ * @see StoreAndForwardSubmitter
+ */
+public class SubmitJournal {
+
+	private static final Log logger = LogFactory.getLog(SubmitJournal.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final byte PENDING = 0;
+	private static final byte ACKNOWLEDGED = 1;
+	private static final byte REJECTED = 2;
+
+	// length (4), CRC32 of payload (4), state (1), MC timestamp (12)
+	private static final int LENGTH_OFFSET = 0;
+	private static final int CHECKSUM_OFFSET = 4;
+	private static final int STATE_OFFSET = 8;
+	private static final int TIMESTAMP_OFFSET = 9;
+	private static final int TIMESTAMP_LENGTH = 12;
+	private static final int HEADER_SIZE = 21;
+
+	private final File directory;
+	private final int segmentSize;
+	private volatile boolean forceOnAppend = true;
+
+	private final Map<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment writeSegment;
+	private long appended;
+	private int pending;
+	private boolean open;
+
+	private final Object commitLock = new Object();
+	private long forced;
+	private boolean forcing;
+
+	public SubmitJournal(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory the directory that holds the segment files
+	 * @param segmentSize the size (in bytes) of each segment file
+	 */
+	public SubmitJournal(File directory, int segmentSize) {
+		if (directory == null) {
+			throw new IllegalArgumentException("directory cannot be null");
+		}
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException(
+					"segmentSize must be greater than " + HEADER_SIZE);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	public boolean isForceOnAppend() {
+		return forceOnAppend;
+	}
+
+	/**
+	 * Sets whether {@link #append(Packet)} returns only after the record
+	 * has been forced to disk. Defaults to <code>true</code>.
+	 * @param forceOnAppend <code>false</code> to rely on the operating
+	 *     system to write the records back
+	 */
+	public void setForceOnAppend(boolean forceOnAppend) {
+		this.forceOnAppend = forceOnAppend;
+	}
+
+	/**
+	 * Opens the journal, creating the directory if needed, and recovers
+	 * the records that were neither acknowledged nor rejected.
+	 * @return the pending entries, in the order they were appended
+	 * @throws IOException
+	 */
+	public synchronized List<Entry> open() throws IOException {
+		if (this.open) {
+			throw new IllegalStateException("Journal is already open");
+		}
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("Failed to create directory " + this.directory);
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		File[] files = this.directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		long[] numbers = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			numbers[i] = Long.parseLong(name.substring(
+					SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(numbers);
+		for (int i = 0; i < numbers.length; i++) {
+			Segment segment = mapSegment(numbers[i], false);
+			recover(segment, entries);
+			this.segments.put(segment.number, segment);
+			this.pending += segment.pending;
+			if (i < numbers.length - 1) {
+				deleteIfDone(segment);
+			} else {
+				this.writeSegment = segment;
+			}
+		}
+		if (this.writeSegment == null) {
+			this.writeSegment = mapSegment(1, true);
+			this.segments.put(this.writeSegment.number, this.writeSegment);
+		}
+		this.open = true;
+		if (logger.isInfoEnabled()) {
+			logger.info("Recovered " + entries.size()
+					+ " pending entries from " + this.directory);
+		}
+		return entries;
+	}
+
+	private void recover(Segment segment, List<Entry> entries) throws IOException {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position + LENGTH_OFFSET);
+			if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+				break;
+			}
+			byte[] bytes = new byte[length];
+			ByteBuffer source = buffer.duplicate();
+			source.position(position + HEADER_SIZE);
+			source.get(bytes);
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, length);
+			if (buffer.getInt(position + CHECKSUM_OFFSET) != (int) crc.getValue()) {
+				logger.warn("Torn record at " + position + " of "
+						+ segment.file + ", ignoring the rest of the segment");
+				break;
+			}
+			if (buffer.get(position + STATE_OFFSET) == PENDING) {
+				entries.add(new Entry(id(segment, position), decode(bytes)));
+				segment.pending++;
+			}
+			position += HEADER_SIZE + length;
+		}
+		// Clear the header of a torn record, if any
+		for (int i = position; i < buffer.capacity() && i < position + HEADER_SIZE; i++) {
+			buffer.put(i, (byte) 0);
+		}
+		segment.position = position;
+	}
+
+	/**
+	 * Appends the given request to the journal.
+	 * @param packet the request (its sequence number, if any, is not kept)
+	 * @return the id of the entry, used to acknowledge or reject it
+	 * @throws IOException
+	 */
+	public long append(Packet packet) throws IOException {
+		byte[] bytes = PacketSerializer.serializeToByteArray(packet, 0);
+		if (HEADER_SIZE + bytes.length > this.segmentSize) {
+			throw new IOException("Packet of " + bytes.length
+					+ " byte(s) does not fit in a segment of "
+					+ this.segmentSize + " byte(s)");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		long id;
+		long sequence;
+		synchronized (this) {
+			ensureOpen();
+			if (this.writeSegment.position + HEADER_SIZE + bytes.length > this.segmentSize) {
+				roll();
+			}
+			Segment segment = this.writeSegment;
+			int position = segment.position;
+			ByteBuffer target = segment.buffer.duplicate();
+			target.position(position + HEADER_SIZE);
+			target.put(bytes);
+			segment.buffer.putInt(position + CHECKSUM_OFFSET, (int) crc.getValue());
+			segment.buffer.put(position + STATE_OFFSET, PENDING);
+			// The length goes in last, it marks the record as present
+			segment.buffer.putInt(position + LENGTH_OFFSET, bytes.length);
+			segment.position = position + HEADER_SIZE + bytes.length;
+			segment.pending++;
+			this.pending++;
+			id = id(segment, position);
+			sequence = ++this.appended;
+		}
+		if (this.forceOnAppend) {
+			awaitForced(sequence);
+		}
+		return id;
+	}
+
+	private void roll() throws IOException {
+		Segment previous = this.writeSegment;
+		previous.buffer.force();
+		this.writeSegment = mapSegment(previous.number + 1, true);
+		this.segments.put(this.writeSegment.number, this.writeSegment);
+		deleteIfDone(previous);
+	}
+
+	private void awaitForced(long sequence) throws IOException {
+		for (;;) {
+			synchronized (this.commitLock) {
+				while (this.forcing && this.forced < sequence) {
+					try {
+						this.commitLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException(
+								"Interrupted while waiting for the journal to be forced");
+					}
+				}
+				if (this.forced >= sequence) {
+					return;
+				}
+				this.forcing = true;
+			}
+			// This thread forces on behalf of everyone appended so far
+			long target;
+			Segment segment;
+			synchronized (this) {
+				target = this.appended;
+				segment = this.writeSegment;
+			}
+			boolean done = false;
+			try {
+				segment.buffer.force();
+				done = true;
+			} finally {
+				synchronized (this.commitLock) {
+					this.forcing = false;
+					if (done && target > this.forced) {
+						this.forced = target;
+					}
+					this.commitLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records that the SMS Center accepted the request.
+	 * @param id the entry id returned by {@link #append(Packet)}
+	 * @param messageCenterTimestamp the message center timestamp
+	 *     (parameter 060) returned by the SMS Center
+	 */
+	public synchronized void acknowledge(long id, String messageCenterTimestamp) {
+		complete(id, ACKNOWLEDGED, messageCenterTimestamp);
+	}
+
+	/**
+	 * Records that the SMS Center rejected the request, so that it is
+	 * not sent again after recovery.
+	 * @param id the entry id returned by {@link #append(Packet)}
+	 */
+	public synchronized void reject(long id) {
+		complete(id, REJECTED, null);
+	}
+
+	private void complete(long id, byte state, String messageCenterTimestamp) {
+		ensureOpen();
+		Segment segment = this.segments.get(id >>> 32);
+		int position = (int) id;
+		if (segment == null || segment.buffer.get(position + STATE_OFFSET) != PENDING) {
+			throw new IllegalArgumentException("No pending entry with id " + id);
+		}
+		if (messageCenterTimestamp != null) {
+			for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+				segment.buffer.put(position + TIMESTAMP_OFFSET + i,
+						i < messageCenterTimestamp.length()
+								? (byte) messageCenterTimestamp.charAt(i) : 0);
+			}
+		}
+		segment.buffer.put(position + STATE_OFFSET, state);
+		segment.pending--;
+		this.pending--;
+		if (segment != this.writeSegment) {
+			deleteIfDone(segment);
+		}
+	}
+
+	/**
+	 * Returns the message center timestamp recorded for the given entry,
+	 * or <code>null</code> if it has not been acknowledged.
+	 */
+	public synchronized String getMessageCenterTimestamp(long id) {
+		ensureOpen();
+		Segment segment = this.segments.get(id >>> 32);
+		int position = (int) id;
+		if (segment == null || segment.buffer.get(position + STATE_OFFSET) != ACKNOWLEDGED) {
+			return null;
+		}
+		StringBuilder buffer = new StringBuilder(TIMESTAMP_LENGTH);
+		for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+			byte b = segment.buffer.get(position + TIMESTAMP_OFFSET + i);
+			if (b == 0) {
+				break;
+			}
+			buffer.append((char) b);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Returns the number of entries that have not been acknowledged or
+	 * rejected yet.
+	 */
+	public synchronized int getPendingCount() {
+		return this.pending;
+	}
+
+	/**
+	 * Forces all segments to disk and closes the journal.
+	 */
+	public synchronized void close() {
+		if (!this.open) {
+			return;
+		}
+		for (Segment segment : this.segments.values()) {
+			segment.buffer.force();
+		}
+		this.segments.clear();
+		this.writeSegment = null;
+		this.pending = 0;
+		this.open = false;
+	}
+
+	private void ensureOpen() {
+		if (!this.open) {
+			throw new IllegalStateException("Journal is not open");
+		}
+	}
+
+	private void deleteIfDone(Segment segment) {
+		if (segment.pending == 0) {
+			this.segments.remove(segment.number);
+			// The mapping stays valid until garbage collected, deleting
+			// may fail on platforms that do not allow it while mapped
+			if (!segment.file.delete() && logger.isDebugEnabled()) {
+				logger.debug("Failed to delete " + segment.file);
+			}
+		}
+	}
+
+	private Segment mapSegment(long number, boolean create) throws IOException {
+		File file = new File(this.directory, String.format(
+				"%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long size = create ? this.segmentSize : raf.length();
+			if (create) {
+				raf.setLength(size);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			return new Segment(number, file, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long id(Segment segment, int position) {
+		return (segment.number << 32) | position;
+	}
+
+	private static Packet decode(byte[] bytes) throws IOException {
+		Packet packet = PacketSerializer.deserializeFromByteArray(
+				bytes, 1, bytes.length);
+		// Let the connection assign a new sequence number
+		return new Packet(packet.getOperationCode(), packet.getParameters());
+	}
+
+	private static class Segment {
+		private final long number;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int position;
+		private int pending;
+
+		public Segment(long number, File file, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * A request recovered from the journal.
+	 */
+	public static final class Entry {
+		private final long id;
+		private final Packet packet;
+
+		public Entry(long id, Packet packet) {
+			this.id = id;
+			this.packet = packet;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public Packet getPacket() {
+			return packet;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [id=" + id + ", packet=" + packet + "]";
+		}
+	}
+
+}
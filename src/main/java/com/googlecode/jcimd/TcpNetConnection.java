@@ -16,36 +16,110 @@
  */
 package com.googlecode.jcimd;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.Map;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * {@link Connection} implementation that uses {@link Socket sockets}.
+ * <p>
+ * Replies are matched to requests by their packet sequence number.
+ * Up to {@link #setWindowSize(int) window size} requests can be
+ * outstanding at a time (one, by default). Further requests wait for
+ * a slot in the window. Requests can also be
+ * {@link #send(Packet, PipelinedConnection.ReplyCallback) pipelined},
+ * with their replies passed to a callback. Slots in the window can be
+ * acquired as {@link #acquireCredit() credits} before building the
+ * requests, and are returned when the requests complete.
+ * <p>
+ * Alive operations from the SMS Center are answered automatically.
+ * Delivered messages and status reports are passed to the
+ * {@link #setMessageReceiver(MessageReceiver) message receiver}, and
+ * acknowledged once it has processed them (or, depending on the
+ * {@link #setAcknowledgeMode(AcknowledgeMode) acknowledge mode}, before
+ * passing them on).
+ * When {@link #startKeepAlive(ScheduledExecutorService, long) keep-alive}
+ * is started, an alive operation is sent after the connection has
+ * been idle for the given period, so that the SMS Center (or a NAT
+ * device in between) does not drop it. If the SMS Center does not
+ * reply to the alive operation within the reply timeout, the
+ * connection is closed.
  *
  * @author Lorenzo Dee
  */
-public class TcpNetConnection implements Connection, Runnable {
+public class TcpNetConnection implements PipelinedConnection, Runnable {
 
 	private static final Log logger = LogFactory.getLog(TcpNetConnection.class);
 
-	private Map<String, AsyncReply> pendingReplies = new ConcurrentHashMap<String, AsyncReply>();
+	/**
+	 * When delivered messages and status reports are acknowledged.
+	 *
+	 * @see TcpNetConnection#setAcknowledgeMode(AcknowledgeMode)
+	 */
+	public enum AcknowledgeMode {
+		/**
+		 * Acknowledges after the message receiver returns normally. If it
+		 * throws an exception, the SMS Center delivers the message again
+		 * later.
+		 */
+		AFTER_PROCESSING,
+		/**
+		 * Acknowledges as soon as the message is read, before passing it
+		 * to the message receiver. So, the time to acknowledge does not
+		 * depend on the time to process the message. But a message that
+		 * fails to be processed is not delivered again.
+		 */
+		BEFORE_PROCESSING
+	}
+
+	private final ConcurrentMap<Integer, AsyncReply> pendingReplies = new ConcurrentHashMap<Integer, AsyncReply>();
 
 	private final Socket socket;
 	private final PacketSerializer serializer;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final CountDownLatch readerFinished = new CountDownLatch(1);
+	private final OutputStream outputStream;
+	private final AtomicInteger pendingWrites = new AtomicInteger();
 
 	private final String username;
 	private final String password;
 
 	private boolean loggedIn = false;
 	private long replyTimeout = 10000;
+	private volatile Semaphore window = new Semaphore(1, true);
+	private int windowSize = 1;
+	private volatile MessageReceiver messageReceiver;
+	private volatile AcknowledgeMode acknowledgeMode = AcknowledgeMode.AFTER_PROCESSING;
+	private int readBufferSize;
+
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile long aliveRoundTripTime = -1;
+	// guarded by writeLock
+	private ScheduledExecutorService keepAliveScheduler;
+	private ScheduledFuture<?> keepAliveFuture;
+	private long aliveInterval;
+	private AsyncReply aliveReply;
+	private long aliveSentAt;
 
 	public TcpNetConnection(Socket socket, PacketSerializer serializer,
 			String username, String password)
@@ -57,6 +131,7 @@ public class TcpNetConnection implements Connection, Runnable {
 			throw new IllegalArgumentException("serializer cannot be null");
 		}
 		this.socket = socket;
+		this.outputStream = new BufferedOutputStream(socket.getOutputStream());
 		int timeout = socket.getSoTimeout();
 		if (timeout > 0) {
 			this.replyTimeout = timeout;
@@ -66,14 +141,91 @@ public class TcpNetConnection implements Connection, Runnable {
 		this.password = password;
 	}
 
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Sets the maximum number of outstanding requests. Must be set
+	 * before sending requests. Defaults to one (1).
+	 * <p>
+	 * Since sequence numbers wrap around after 128 requests, the window
+	 * cannot be larger than 127. Note that a NACK carries the expected
+	 * sequence number, and not that of the rejected request. So, with a
+	 * window larger than one, a NACK may be passed to another request.
+	 * @param windowSize the window size (1 - 127)
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > 127) {
+			throw new IllegalArgumentException("windowSize must be between 1 and 127");
+		}
+		this.windowSize = windowSize;
+		this.window = new Semaphore(windowSize, true);
+	}
+
+	public MessageReceiver getMessageReceiver() {
+		return messageReceiver;
+	}
+
+	/**
+	 * Sets the receiver of messages delivered by the SMS Center. Without
+	 * a receiver, delivered messages are not acknowledged.
+	 * @param messageReceiver the message receiver
+	 */
+	public void setMessageReceiver(MessageReceiver messageReceiver) {
+		this.messageReceiver = messageReceiver;
+	}
+
+	public AcknowledgeMode getAcknowledgeMode() {
+		return acknowledgeMode;
+	}
+
+	/**
+	 * Sets when delivered messages and status reports are acknowledged.
+	 * Defaults to {@link AcknowledgeMode#AFTER_PROCESSING after processing}.
+	 * Either way, the acknowledgement is written by the reader thread,
+	 * from a precomputed frame.
+	 * @param acknowledgeMode the acknowledge mode
+	 */
+	public void setAcknowledgeMode(AcknowledgeMode acknowledgeMode) {
+		if (acknowledgeMode == null) {
+			throw new IllegalArgumentException("acknowledgeMode cannot be null");
+		}
+		this.acknowledgeMode = acknowledgeMode;
+	}
+
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	/**
+	 * Sets the size of the buffer that packets are read into. When
+	 * greater than zero, the reader reads chunks of up to this many bytes,
+	 * and dispatches all complete packets in a chunk before reading again.
+	 * Must be set before the reader is started. Defaults to zero (0),
+	 * which reads a packet at a time.
+	 * @param readBufferSize the read buffer size (in bytes), or zero
+	 */
+	public void setReadBufferSize(int readBufferSize) {
+		if (readBufferSize < 0) {
+			throw new IllegalArgumentException("readBufferSize cannot be negative");
+		}
+		this.readBufferSize = readBufferSize;
+	}
+
 	void login() throws Exception {
-		Packet response = send(new Packet(Packet.OP_LOGIN,
-				new Parameter(Parameter.USER_IDENTITY, this.username),
-				new Parameter(Parameter.PASSWORD, this.password)));
-		if (!response.isPositiveResponse()) {
-			throw new IOException("Failed to login");
-		} else {
-			this.loggedIn = true;
+		Object event = CimdEvents.beginLogin();
+		try {
+			Packet response = send(new Packet(Packet.OP_LOGIN,
+					new Parameter(Parameter.USER_IDENTITY, this.username),
+					new Parameter(Parameter.PASSWORD, this.password)));
+			if (response == null || !response.isPositiveResponse()) {
+				throw new IOException("Failed to login");
+			} else {
+				this.loggedIn = true;
+			}
+		} finally {
+			CimdEvents.endLogin(event, this.username, this.loggedIn);
 		}
 	}
 
@@ -87,13 +239,319 @@ public class TcpNetConnection implements Connection, Runnable {
 	}
 
 	@Override
-	public synchronized Packet send(Packet request) throws Exception {
-		AsyncReply asyncReply = new AsyncReply();
-		this.pendingReplies.put("", asyncReply);
-		this.serializer.serialize(request, this.socket.getOutputStream());
+	public Packet send(Packet request) throws Exception {
+		AsyncReply asyncReply = register(request, null);
+		write(asyncReply);
 		return asyncReply.getReply();
 	}
 
+	@Override
+	public int getAvailableCredits() {
+		return this.window.availablePermits();
+	}
+
+	@Override
+	public Credit acquireCredit() throws InterruptedException {
+		Semaphore window = this.window;
+		window.acquire();
+		return new WindowCredit(window);
+	}
+
+	@Override
+	public Credit tryAcquireCredit(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		Semaphore window = this.window;
+		return window.tryAcquire(timeout, unit) ? new WindowCredit(window) : null;
+	}
+
+	@Override
+	public Credit tryAcquireCredit() {
+		Semaphore window = this.window;
+		return window.tryAcquire() ? new WindowCredit(window) : null;
+	}
+
+	@Override
+	public void send(Packet request, ReplyCallback callback) throws Exception {
+		if (callback == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		sendAsync(register(request, callback));
+	}
+
+	@Override
+	public void send(Credit credit, Packet request, ReplyCallback callback)
+			throws Exception {
+		if (callback == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		sendAsync(register(use(credit), request, callback));
+	}
+
+	private void sendAsync(final AsyncReply asyncReply) throws IOException {
+		write(asyncReply);
+		asyncReply.timeoutFuture = SharedScheduler.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				asyncReply.complete(null, new SocketTimeoutException(
+						"No reply after " + replyTimeout + " ms"));
+			}
+		}, this.replyTimeout, TimeUnit.MILLISECONDS);
+		if (asyncReply.isDone()) {
+			asyncReply.timeoutFuture.cancel(false);
+		}
+	}
+
+	/**
+	 * Waits for a slot in the window, and registers the request as
+	 * outstanding.
+	 */
+	private AsyncReply register(Packet request, ReplyCallback callback)
+			throws IOException {
+		if (isClosed()) {
+			throw new IOException("Connection closed");
+		}
+		Credit credit;
+		try {
+			credit = acquireCredit();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the window");
+		}
+		return register(use(credit), request, callback);
+	}
+
+	/**
+	 * Checks that the given credit was acquired from this connection, and
+	 * marks it as used, so that it is only returned when the request
+	 * completes.
+	 */
+	private WindowCredit use(Credit credit) {
+		if (credit == null) {
+			throw new IllegalArgumentException("credit cannot be null");
+		}
+		if (!(credit instanceof WindowCredit)
+				|| ((WindowCredit) credit).connection() != this) {
+			throw new IllegalArgumentException("credit was not acquired from this connection");
+		}
+		WindowCredit windowCredit = (WindowCredit) credit;
+		if (!windowCredit.state.compareAndSet(WindowCredit.ACQUIRED, WindowCredit.USED)) {
+			throw new IllegalStateException("credit was already used or released");
+		}
+		return windowCredit;
+	}
+
+	/**
+	 * Registers the request as outstanding, in the slot of the given
+	 * (used) credit.
+	 */
+	private AsyncReply register(WindowCredit credit, Packet request, ReplyCallback callback)
+			throws IOException {
+		if (isClosed()) {
+			credit.window.release();
+			throw new IOException("Connection closed");
+		}
+		AsyncReply asyncReply = new AsyncReply(
+				withSequenceNumber(request), credit.window, callback);
+		this.pendingReplies.put(asyncReply.request.getSequenceNumber(), asyncReply);
+		if (isClosed()) {
+			// unless the reader has already failed the pending replies
+			IOException closed = new IOException("Connection closed");
+			if (asyncReply.abort(closed)) {
+				throw closed;
+			}
+		}
+		return asyncReply;
+	}
+
+	/**
+	 * Writes the request. If the write fails, either throws (without
+	 * calling the callback), or returns normally if the reader has
+	 * already completed the request (and called the callback).
+	 */
+	private void write(AsyncReply asyncReply) throws IOException {
+		try {
+			write(asyncReply.request);
+		} catch (IOException e) {
+			if (asyncReply.abort(e)) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Assigns the next sequence number to the given request if it
+	 * has none, so that it is known before the request is sent.
+	 */
+	private Packet withSequenceNumber(Packet request) {
+		PacketSequenceNumberGenerator sequenceNumberGenerator =
+				this.serializer.getSequenceNumberGenerator();
+		if (request.getSequenceNumber() != null || sequenceNumberGenerator == null) {
+			return request;
+		}
+		return request.withSequenceNumber(sequenceNumberGenerator.nextSequence());
+	}
+
+	/**
+	 * Writes the given packet. Both senders and the reader thread
+	 * (when answering the SMS Center) write to the socket.
+	 * <p>
+	 * Writes are buffered, and flushed by the last of the concurrent
+	 * writers. So, a packet is sent in as few segments as possible, and
+	 * packets of pipelined requests are sent together. This keeps small
+	 * segments off the wire when Nagle's algorithm is disabled (i.e.
+	 * TCP_NODELAY), without delaying any packet.
+	 */
+	private void write(Packet packet) throws IOException {
+		this.pendingWrites.incrementAndGet();
+		this.writeLock.lock();
+		try {
+			try {
+				this.serializer.serialize(packet, this.outputStream);
+			} finally {
+				// writers waiting for the lock will flush
+				if (this.pendingWrites.decrementAndGet() == 0) {
+					this.outputStream.flush();
+				}
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+		this.lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Starts sending alive operations after the connection has been
+	 * idle for the given period.
+	 * @param scheduler the scheduler (usually shared by many connections)
+	 * @param aliveInterval the idle period (in milliseconds)
+	 */
+	public void startKeepAlive(
+			ScheduledExecutorService scheduler, long aliveInterval) {
+		if (scheduler == null) {
+			throw new IllegalArgumentException("scheduler cannot be null");
+		}
+		if (aliveInterval <= 0) {
+			throw new IllegalArgumentException(
+					"aliveInterval must be greater than zero");
+		}
+		this.writeLock.lock();
+		try {
+			stopKeepAlive();
+			this.keepAliveScheduler = scheduler;
+			this.aliveInterval = aliveInterval;
+			scheduleKeepAlive(aliveInterval);
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private void stopKeepAlive() {
+		this.writeLock.lock();
+		try {
+			if (this.keepAliveFuture != null) {
+				this.keepAliveFuture.cancel(false);
+				this.keepAliveFuture = null;
+			}
+			this.keepAliveScheduler = null;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private void scheduleKeepAlive(long delay) {
+		if (this.keepAliveScheduler != null && !isClosed()) {
+			this.keepAliveFuture = this.keepAliveScheduler.schedule(
+					new Runnable() {
+						@Override
+						public void run() {
+							keepAlive();
+						}
+					}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Runs on the keep-alive scheduler. This does not wait for the
+	 * alive response, so that a single scheduler thread can serve
+	 * many connections.
+	 */
+	private void keepAlive() {
+		this.writeLock.lock();
+		try {
+			if (this.keepAliveScheduler == null || isClosed()) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (this.aliveReply != null) {
+				if (!this.aliveReply.isDone()) {
+					long waited = now - this.aliveSentAt;
+					if (waited < this.replyTimeout) {
+						scheduleKeepAlive(this.replyTimeout - waited);
+						return;
+					}
+					if (logger.isWarnEnabled()) {
+						logger.warn("No reply to alive operation after "
+								+ this.replyTimeout + " ms, closing connection");
+					}
+					this.keepAliveScheduler = null;
+					closeSocket();
+					return;
+				}
+				this.aliveReply = null;
+			}
+			long idle = now - this.lastActivity;
+			if (idle < this.aliveInterval) {
+				scheduleKeepAlive(this.aliveInterval - idle);
+				return;
+			}
+			try {
+				Packet alive = withSequenceNumber(new Packet(Packet.OP_ALIVE));
+				final Integer sequenceNumber = alive.getSequenceNumber();
+				final long sentAt = System.nanoTime();
+				this.aliveReply = new AsyncReply(alive, null, null) {
+					@Override
+					protected void completed(Packet reply, IOException failure) {
+						if (reply != null) {
+							aliveRoundTripTime = TimeUnit.NANOSECONDS.toMillis(
+									System.nanoTime() - sentAt);
+						}
+					}
+				};
+				this.pendingReplies.put(sequenceNumber, this.aliveReply);
+				this.aliveSentAt = now;
+				write(alive);
+			} catch (IOException e) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Failed to send alive operation: " + e.getMessage());
+				}
+				this.keepAliveScheduler = null;
+				closeSocket();
+				return;
+			}
+			scheduleKeepAlive(Math.min(this.aliveInterval, this.replyTimeout));
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the round-trip time (in milliseconds) of the last alive
+	 * operation sent by this connection, or -1 if none was answered yet.
+	 * @return the round-trip time of the last alive operation
+	 */
+	public long getAliveRoundTripTime() {
+		return aliveRoundTripTime;
+	}
+
+	/**
+	 * Returns the time (in milliseconds since epoch) a packet was last
+	 * sent or received over this connection.
+	 * @return the time of the last activity
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
 	@Override
 	public boolean isOpen() {
 		return !isClosed();
@@ -106,6 +564,7 @@ public class TcpNetConnection implements Connection, Runnable {
 
 	@Override
 	public void close() {
+		stopKeepAlive();
 		try {
 			try {
 				if (this.loggedIn) {
@@ -122,13 +581,57 @@ public class TcpNetConnection implements Connection, Runnable {
 		}
 	}
 
+	/**
+	 * Waits until there are no outstanding requests, i.e. all requests
+	 * sent so far were answered, timed out, or failed.
+	 * @return <code>false</code> if requests were still outstanding
+	 * after the given time
+	 */
+	boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+		Semaphore window = this.window;
+		int windowSize = this.windowSize;
+		if (!window.tryAcquire(windowSize, timeout, unit)) {
+			return false;
+		}
+		window.release(windowSize);
+		return true;
+	}
+
+	/**
+	 * Waits for the reader (i.e. {@link #run()}) to finish, after the
+	 * connection is closed.
+	 * @return <code>false</code> if the reader was still running after
+	 * the given time
+	 */
+	boolean awaitReader(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.readerFinished.await(timeout, unit);
+	}
+
 	@Override
 	public void run() {
+		try {
+			read();
+		} finally {
+			this.readerFinished.countDown();
+		}
+	}
+
+	private void read() {
 		logger.debug("Ready for replies...");
-		Packet reply;
+		List<Packet> batch = new ArrayList<Packet>();
+		PacketReader packetReader = null;
+		reading:
 		while (true) {
 			try {
-				reply = this.serializer.deserialize(this.socket.getInputStream());
+				if (this.readBufferSize > 0) {
+					if (packetReader == null) {
+						packetReader = this.serializer.newPacketReader(
+								this.socket.getInputStream(), this.readBufferSize);
+					}
+					packetReader.read(batch);
+				} else {
+					batch.add(this.serializer.deserialize(this.socket.getInputStream()));
+				}
 			} catch (SocketException e) {
 				break;
 			} catch (Exception e) {
@@ -141,12 +644,121 @@ public class TcpNetConnection implements Connection, Runnable {
 				closeSocket();
 				break; // get out of this while-loop
 			}
-			AsyncReply asyncReply = pendingReplies.get("");
-			asyncReply.setReply(reply);
+			this.lastActivity = System.currentTimeMillis();
+			for (Packet packet : batch) {
+				if (packet.isResponse()) {
+					dispatchReply(packet);
+				} else {
+					try {
+						handleRequest(packet);
+					} catch (IOException e) {
+						if (logger.isDebugEnabled()) {
+							logger.debug("Failed to answer " + packet + ": " + e.getMessage());
+						}
+						closeSocket();
+						break reading;
+					}
+				}
+			}
+			batch.clear();
+		}
+		failPendingReplies();
+	}
+
+	/**
+	 * Fails the senders still waiting for a reply, so that they do not
+	 * wait for the reply timeout after the connection was lost.
+	 */
+	private void failPendingReplies() {
+		Iterator<AsyncReply> iterator = this.pendingReplies.values().iterator();
+		while (iterator.hasNext()) {
+			AsyncReply asyncReply = iterator.next();
+			iterator.remove();
+			asyncReply.complete(null, new IOException("Connection closed"));
+		}
+	}
+
+	private void dispatchReply(Packet reply) {
+		AsyncReply asyncReply = this.pendingReplies.get(reply.getSequenceNumber());
+		if (asyncReply == null && (reply.isNack() || reply.isGeneralErrorResponse())) {
+			// A nack carries the next expected sequence number, i.e. the
+			// one of the request it rejects, which is matched above. One
+			// that matches no request (like a general error that is not
+			// correlated at all) is only taken as the reply when a single
+			// request is outstanding.
+			asyncReply = onlyPendingReply();
+		}
+		if (asyncReply != null) {
+			asyncReply.complete(reply, null);
+		} else if (logger.isWarnEnabled()) {
+			logger.warn("Ignoring unexpected reply " + reply);
+		}
+	}
+
+	/**
+	 * Returns the outstanding request, if there is exactly one.
+	 */
+	private AsyncReply onlyPendingReply() {
+		Iterator<AsyncReply> iterator = this.pendingReplies.values().iterator();
+		if (!iterator.hasNext()) {
+			return null;
+		}
+		AsyncReply asyncReply = iterator.next();
+		return iterator.hasNext() ? null : asyncReply;
+	}
+
+	/**
+	 * Handles an operation initiated by the SMS Center.
+	 */
+	private void handleRequest(Packet request) throws IOException {
+		switch (request.getOperationCode()) {
+		case Packet.OP_ALIVE:
+			write(new Packet(Packet.OP_ALIVE + 50, request.getSequenceNumber()));
+			break;
+		case Packet.OP_DELIVER_MESSAGE:
+		case Packet.OP_DELIVER_STATUS_REPORT:
+			MessageReceiver messageReceiver = this.messageReceiver;
+			if (messageReceiver == null) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("No message receiver, ignoring " + request);
+				}
+				break;
+			}
+			boolean acknowledgeFirst =
+					this.acknowledgeMode == AcknowledgeMode.BEFORE_PROCESSING;
+			if (acknowledgeFirst) {
+				acknowledge(request);
+			}
+			try {
+				messageReceiver.messageReceived(request);
+			} catch (Exception e) {
+				if (logger.isWarnEnabled()) {
+					logger.warn((acknowledgeFirst ? "Already acknowledged " : "Not acknowledging ")
+							+ request + ", message receiver failed", e);
+				}
+				break;
+			}
+			if (!acknowledgeFirst) {
+				acknowledge(request);
+			}
+			break;
+		default:
+			if (logger.isWarnEnabled()) {
+				logger.warn("Ignoring unsupported operation " + request);
+			}
 		}
 	}
 
-	private synchronized void closeSocket() {
+	/**
+	 * Writes the response to the given request. Since the response has
+	 * no parameters, it is written from a {@link FrameTemplate}.
+	 */
+	private void acknowledge(Packet request) throws IOException {
+		write(new Packet(request.getOperationCode() + 50,
+				request.getSequenceNumber()));
+	}
+
+	private void closeSocket() {
 		if (!this.socket.isClosed()) {
 			try {
 				logger.debug("Closing socket...");
@@ -159,34 +771,144 @@ public class TcpNetConnection implements Connection, Runnable {
 		}
 	}
 
+	/**
+	 * A slot acquired from the window. Released by the caller if not
+	 * used, or when the request it was used for completes.
+	 */
+	private class WindowCredit implements Credit {
+		static final int ACQUIRED = 0;
+		static final int USED = 1;
+		static final int RELEASED = 2;
+
+		private final Semaphore window;
+		private final AtomicInteger state = new AtomicInteger(ACQUIRED);
+
+		WindowCredit(Semaphore window) {
+			this.window = window;
+		}
+
+		TcpNetConnection connection() {
+			return TcpNetConnection.this;
+		}
+
+		@Override
+		public void release() {
+			if (this.state.compareAndSet(ACQUIRED, RELEASED)) {
+				this.window.release();
+			}
+		}
+	}
+
+	/**
+	 * An outstanding request. Completed exactly once: by its reply, by
+	 * a failure, or by timing out.
+	 */
 	private class AsyncReply {
-		private final CountDownLatch latch;
+		private final Packet request;
+		private final Semaphore window;
+		private final ReplyCallback callback;
+		private final Object event;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final AtomicBoolean done = new AtomicBoolean();
+		private volatile ScheduledFuture<?> timeoutFuture;
 
 		private volatile Packet reply;
+		private volatile IOException failure;
 
-		public AsyncReply() {
-			this.latch = new CountDownLatch(1);
+		/**
+		 * @param window the window to release a slot to when completed
+		 *     (<code>null</code> if no slot was acquired)
+		 */
+		public AsyncReply(Packet request, Semaphore window, ReplyCallback callback) {
+			this.request = request;
+			this.window = window;
+			this.callback = callback;
+			this.event = window != null ? CimdEvents.beginRequest() : null;
 		}
 
 		/**
 		 * Sender blocks here until the reply is received, or we time out
 		 * @return The return message or null if we time out
-		 * @throws Exception
+		 * @throws IOException if the connection was closed while waiting
 		 */
 		public Packet getReply() throws Exception {
 			try {
 				if (!this.latch.await(replyTimeout, TimeUnit.MILLISECONDS)) {
-					return null;
+					complete(null, null);
 				}
 			} catch (InterruptedException e) {
 				Thread.currentThread().interrupt();
+				complete(null, null);
+			}
+			if (this.failure != null) {
+				throw this.failure;
 			}
 			return this.reply;
 		}
 
-		public void setReply(Packet reply) {
+		public boolean isDone() {
+			return this.latch.getCount() == 0;
+		}
+
+		/**
+		 * @param reply the reply, or <code>null</code>
+		 * @param failure the failure, or <code>null</code> (when both are
+		 *     <code>null</code>, the request timed out)
+		 */
+		public void complete(Packet reply, IOException failure) {
+			complete(reply, failure, true);
+		}
+
+		/**
+		 * Completes this request with the given failure, without calling
+		 * the callback, since the failure is thrown to the sender instead.
+		 * @return <code>false</code> if this request was already completed
+		 *     (and the callback called)
+		 */
+		public boolean abort(IOException failure) {
+			return complete(null, failure, false);
+		}
+
+		private boolean complete(Packet reply, IOException failure, boolean notify) {
+			if (!this.done.compareAndSet(false, true)) {
+				return false;
+			}
 			this.reply = reply;
+			this.failure = failure;
+			pendingReplies.remove(this.request.getSequenceNumber(), this);
+			if (this.timeoutFuture != null) {
+				this.timeoutFuture.cancel(false);
+			}
+			if (this.window != null) {
+				this.window.release();
+				if (reply == null && (failure == null
+						|| failure instanceof SocketTimeoutException)) {
+					CimdEvents.replyTimeout(this.request, replyTimeout);
+				} else if (reply != null && reply.isNack()) {
+					CimdEvents.nack(this.request, reply);
+				}
+				CimdEvents.endRequest(this.event, this.request, reply);
+			}
 			this.latch.countDown();
+			completed(reply, failure);
+			if (this.callback != null && notify) {
+				// runs on the reader (or timeout) thread, which must survive
+				try {
+					if (reply != null) {
+						this.callback.replied(this.request, reply);
+					} else {
+						this.callback.failed(this.request, failure);
+					}
+				} catch (RuntimeException e) {
+					if (logger.isWarnEnabled()) {
+						logger.warn("Reply callback failed for " + this.request, e);
+					}
+				}
+			}
+			return true;
+		}
+
+		protected void completed(Packet reply, IOException failure) {
 		}
 	}
 
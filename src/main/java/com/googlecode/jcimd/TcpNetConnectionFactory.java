@@ -16,10 +16,17 @@
  */
 package com.googlecode.jcimd;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 
@@ -28,6 +35,25 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * Factory for {@link TcpNetConnection}.
+ * <p>
+ * When an {@link #setAliveInterval(long) alive interval} is set, the
+ * connections send alive operations after being idle for that period.
+ * Unless a {@link #setScheduler(ScheduledExecutorService) scheduler} is
+ * given, all connections (of all factories) share a single daemon
+ * scheduler thread for this.
+ * <p>
+ * Messages delivered by the SMS Center over any of the connections are
+ * passed to the {@link #setMessageReceiver(MessageReceiver) message
+ * receiver}.
+ * <p>
+ * Each connection has a reader thread, created by the {@link
+ * #setThreadFactory(ThreadFactory) thread factory}, or run by the
+ * {@link #setExecutor(Executor) executor}. By default, these are daemon
+ * threads, or virtual threads on Java 21 or later.
+ * <p>
+ * The factory keeps track of the connections it created, so that
+ * {@link #close()} can close them all, after their outstanding requests
+ * were answered.
  *
  * @author Lorenzo Dee
  */
@@ -35,6 +61,33 @@ public class TcpNetConnectionFactory implements ConnectionFactory {
 
 	private static final Log logger = LogFactory.getLog(TcpNetConnectionFactory.class);
 
+	/**
+	 * Presets of socket options.
+	 *
+	 * @see TcpNetConnectionFactory#setSocketProfile(SocketProfile)
+	 */
+	public enum SocketProfile {
+		/**
+		 * Disables Nagle's algorithm (i.e. TCP_NODELAY), enables TCP
+		 * keep-alive, and uses 64 KB socket buffers. For links with
+		 * few outstanding requests, where each request should be sent
+		 * at once.
+		 */
+		LOW_LATENCY(65536),
+		/**
+		 * Disables Nagle's algorithm (i.e. TCP_NODELAY), enables TCP
+		 * keep-alive, and uses 256 KB socket buffers. For pipelined
+		 * requests over links with a high bandwidth-delay product.
+		 */
+		HIGH_THROUGHPUT(262144);
+
+		private final int bufferSize;
+
+		private SocketProfile(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+	}
+
 	private final String host;
 	private final int port;
 	private final int timeout;
@@ -42,7 +95,27 @@ public class TcpNetConnectionFactory implements ConnectionFactory {
 	private final String username;
 	private final String password;
 
+	private final Set<TcpNetConnection> connections = Collections.newSetFromMap(
+			new ConcurrentHashMap<TcpNetConnection, Boolean>());
+	private volatile boolean closed;
+
 	private Executor executor;
+	private ThreadFactory threadFactory = Threads.newThreadFactory("jcimd-reader");
+
+	private int connectTimeout = 2000;
+	private boolean tcpNoDelay;
+	private boolean keepAlive;
+	private int sendBufferSize;
+	private int receiveBufferSize;
+	private long closeTimeout = 10000;
+
+	private ScheduledExecutorService scheduler;
+	private long aliveInterval;
+	private int windowSize = 1;
+	private MessageReceiver messageReceiver;
+	private TcpNetConnection.AcknowledgeMode acknowledgeMode =
+			TcpNetConnection.AcknowledgeMode.AFTER_PROCESSING;
+	private int readBufferSize;
 
 	public TcpNetConnectionFactory(
 			String host, int port, String username, String password) {
@@ -57,16 +130,20 @@ public class TcpNetConnectionFactory implements ConnectionFactory {
 		this.username = username;
 		this.password = password;
 		this.timeout = timeout;
-		this.executor = Executors.newFixedThreadPool(5);
 	}
 
 	@Override
 	public Connection getConnection() throws Exception {
+		if (this.closed) {
+			throw new IllegalStateException("Connection factory is closed");
+		}
+		removeClosedConnections();
 		Socket socket = SocketFactory.getDefault().createSocket();
+		configureSocket(socket);
 		if (logger.isDebugEnabled()) {
 			logger.debug("Connecting to [" + host + ":" + port + "]...");
 		}
-		socket.connect(new InetSocketAddress(this.host, this.port), 2000);
+		socket.connect(new InetSocketAddress(this.host, this.port), this.connectTimeout);
 		if (logger.isDebugEnabled()) {
 			logger.debug("Connected to [" + host + ":" + port + "]");
 		}
@@ -78,11 +155,334 @@ public class TcpNetConnectionFactory implements ConnectionFactory {
 				new ApplicationPacketSequenceNumberGenerator());
 		TcpNetConnection newConnection = new TcpNetConnection(
 				socket, serializer, this.username, this.password);
-		this.executor.execute(newConnection);
-		newConnection.login();
+		newConnection.setWindowSize(this.windowSize);
+		newConnection.setMessageReceiver(this.messageReceiver);
+		newConnection.setAcknowledgeMode(this.acknowledgeMode);
+		newConnection.setReadBufferSize(this.readBufferSize);
+		if (this.executor != null) {
+			this.executor.execute(newConnection);
+		} else {
+			this.threadFactory.newThread(newConnection).start();
+		}
+		this.connections.add(newConnection);
+		try {
+			newConnection.login();
+		} catch (Exception e) {
+			this.connections.remove(newConnection);
+			newConnection.close();
+			throw e;
+		}
+		if (this.aliveInterval > 0) {
+			newConnection.startKeepAlive(
+					this.scheduler != null ? this.scheduler : SharedScheduler.get(),
+					this.aliveInterval);
+		}
 		return newConnection;
 	}
 
+	/**
+	 * Sets the socket options, before connecting (so that the receive
+	 * buffer size can affect the TCP window scale).
+	 */
+	private void configureSocket(Socket socket) throws IOException {
+		socket.setTcpNoDelay(this.tcpNoDelay);
+		socket.setKeepAlive(this.keepAlive);
+		if (this.sendBufferSize > 0) {
+			socket.setSendBufferSize(this.sendBufferSize);
+		}
+		if (this.receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(this.receiveBufferSize);
+		}
+	}
+
+	private void removeClosedConnections() {
+		Iterator<TcpNetConnection> iterator = this.connections.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isClosed()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Closes this factory, and all the connections it created. Each
+	 * connection is closed after its outstanding requests are answered.
+	 * Then, waits for the reader of each connection to finish. Waits no
+	 * longer than the {@link #setCloseTimeout(long) close timeout} in
+	 * total. Afterwards, no connections can be created.
+	 */
+	public void close() {
+		this.closed = true;
+		long deadline = System.currentTimeMillis() + this.closeTimeout;
+		try {
+			for (TcpNetConnection connection : this.connections) {
+				if (!connection.drain(remaining(deadline), TimeUnit.MILLISECONDS)) {
+					logger.warn("Closing connection with outstanding requests");
+				}
+				connection.close();
+			}
+			for (TcpNetConnection connection : this.connections) {
+				if (!connection.awaitReader(remaining(deadline), TimeUnit.MILLISECONDS)) {
+					logger.warn("Reader of closed connection did not finish in time");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (TcpNetConnection connection : this.connections) {
+				connection.close();
+			}
+		}
+		this.connections.clear();
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public long getAliveInterval() {
+		return aliveInterval;
+	}
+
+	/**
+	 * Sets the period (in milliseconds) a connection can be idle before
+	 * an alive operation is sent. Defaults to zero (no alive operations
+	 * are sent). This should be shorter than the inactivity timeout of
+	 * the SMS Center, and of any NAT device or firewall in between.
+	 * @param aliveInterval the idle period in milliseconds
+	 */
+	public void setAliveInterval(long aliveInterval) {
+		if (aliveInterval < 0) {
+			throw new IllegalArgumentException("aliveInterval cannot be negative");
+		}
+		this.aliveInterval = aliveInterval;
+	}
+
+	/**
+	 * Sets the scheduler used to send alive operations.
+	 * @param scheduler the scheduler
+	 */
+	public void setScheduler(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor that runs the reader of each connection. A
+	 * reader runs for as long as its connection is open, so a bounded
+	 * executor limits the number of connections. When not set, each
+	 * reader runs on its own thread, created by the {@link
+	 * #setThreadFactory(ThreadFactory) thread factory}.
+	 * @param executor the executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Sets the factory of reader threads. Defaults to daemon threads, or
+	 * to virtual threads on Java 21 or later. Ignored when an {@link
+	 * #setExecutor(Executor) executor} is set.
+	 * @param threadFactory the thread factory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		if (threadFactory == null) {
+			throw new IllegalArgumentException("threadFactory cannot be null");
+		}
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Sets the socket options of the given profile. Options can still
+	 * be changed individually afterwards.
+	 * <p>
+	 * Both profiles disable Nagle's algorithm. Connections buffer the
+	 * bytes of each packet, and send the packets of concurrent writers
+	 * together, so disabling it does not result in tiny segments. But
+	 * it avoids the delays of Nagle's algorithm interacting with delayed
+	 * acknowledgements (e.g. 40 ms on Linux).
+	 * @param socketProfile the profile
+	 */
+	public void setSocketProfile(SocketProfile socketProfile) {
+		if (socketProfile == null) {
+			throw new IllegalArgumentException("socketProfile cannot be null");
+		}
+		this.tcpNoDelay = true;
+		this.keepAlive = true;
+		this.sendBufferSize = socketProfile.bufferSize;
+		this.receiveBufferSize = socketProfile.bufferSize;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) to wait for a connection to be
+	 * established. Defaults to 2000. Zero (0) waits indefinitely.
+	 * @param connectTimeout the connect timeout in milliseconds
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		if (connectTimeout < 0) {
+			throw new IllegalArgumentException("connectTimeout cannot be negative");
+		}
+		this.connectTimeout = connectTimeout;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Sets whether to disable Nagle's algorithm (i.e. TCP_NODELAY), so
+	 * that small frames are sent without delay. Defaults to
+	 * <code>false</code>.
+	 * @param tcpNoDelay <code>true</code> to send without delay
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Sets whether to enable TCP keep-alive (i.e. SO_KEEPALIVE). Defaults
+	 * to <code>false</code>. Note that the TCP keep-alive interval is
+	 * usually much longer than an {@link #setAliveInterval(long) alive
+	 * interval}.
+	 * @param keepAlive <code>true</code> to enable TCP keep-alive
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the size (in bytes) of the socket send buffer (i.e.
+	 * SO_SNDBUF). Defaults to zero (the system default).
+	 * @param sendBufferSize the size in bytes
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0) {
+			throw new IllegalArgumentException("sendBufferSize cannot be negative");
+		}
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Sets the size (in bytes) of the socket receive buffer (i.e.
+	 * SO_RCVBUF). Defaults to zero (the system default).
+	 * @param receiveBufferSize the size in bytes
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0) {
+			throw new IllegalArgumentException("receiveBufferSize cannot be negative");
+		}
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public long getCloseTimeout() {
+		return closeTimeout;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) {@link #close()} waits for
+	 * outstanding requests to be answered, and for readers to finish.
+	 * Defaults to 10000.
+	 * @param closeTimeout the close timeout in milliseconds
+	 */
+	public void setCloseTimeout(long closeTimeout) {
+		if (closeTimeout < 0) {
+			throw new IllegalArgumentException("closeTimeout cannot be negative");
+		}
+		this.closeTimeout = closeTimeout;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Sets the maximum number of outstanding requests per connection.
+	 * Defaults to one (1).
+	 * @param windowSize the window size (1 - 127)
+	 * @see TcpNetConnection#setWindowSize(int)
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > 127) {
+			throw new IllegalArgumentException("windowSize must be between 1 and 127");
+		}
+		this.windowSize = windowSize;
+	}
+
+	public MessageReceiver getMessageReceiver() {
+		return messageReceiver;
+	}
+
+	/**
+	 * Sets the receiver of messages delivered by the SMS Center.
+	 * @param messageReceiver the message receiver
+	 * @see TcpNetConnection#setMessageReceiver(MessageReceiver)
+	 */
+	public void setMessageReceiver(MessageReceiver messageReceiver) {
+		this.messageReceiver = messageReceiver;
+	}
+
+	public TcpNetConnection.AcknowledgeMode getAcknowledgeMode() {
+		return acknowledgeMode;
+	}
+
+	/**
+	 * Sets when delivered messages and status reports are acknowledged.
+	 * Defaults to {@link TcpNetConnection.AcknowledgeMode#AFTER_PROCESSING
+	 * after processing}.
+	 * @param acknowledgeMode the acknowledge mode
+	 * @see TcpNetConnection#setAcknowledgeMode(TcpNetConnection.AcknowledgeMode)
+	 */
+	public void setAcknowledgeMode(TcpNetConnection.AcknowledgeMode acknowledgeMode) {
+		if (acknowledgeMode == null) {
+			throw new IllegalArgumentException("acknowledgeMode cannot be null");
+		}
+		this.acknowledgeMode = acknowledgeMode;
+	}
+
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	/**
+	 * Sets the size of the buffer that each connection reads packets
+	 * into. When greater than zero, packets are read (and dispatched) in
+	 * batches. Defaults to zero (0), which reads a packet at a time.
+	 * @param readBufferSize the read buffer size (in bytes), or zero
+	 * @see TcpNetConnection#setReadBufferSize(int)
+	 */
+	public void setReadBufferSize(int readBufferSize) {
+		if (readBufferSize < 0) {
+			throw new IllegalArgumentException("readBufferSize cannot be negative");
+		}
+		this.readBufferSize = readBufferSize;
+	}
+
 	public String getHost() {
 		return host;
 	}
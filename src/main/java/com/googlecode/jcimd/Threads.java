@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used by connections, e.g. to read from sockets or
+ * to reconnect. These are daemon platform threads. On Java 21 or later,
+ * this class is replaced by one that creates virtual threads, so that
+ * threads blocked on I/O are cheap, and their number is not bounded
+ * by a fixed pool.
+ *
+ * @author Lorenzo Dee
+ */
+final class Threads {
+
+	private Threads() {
+	}
+
+	/**
+	 * Returns a factory of daemon threads named <code>name-1</code>,
+	 * <code>name-2</code>, and so on.
+	 * @param name the prefix of the thread names
+	 */
+	static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger number = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + this.number.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Returns an executor that runs each task on a (pooled) thread
+	 * created by {@link #newThreadFactory(String)}.
+	 * @param name the prefix of the thread names
+	 */
+	static Executor newExecutor(String name) {
+		return Executors.newCachedThreadPool(newThreadFactory(name));
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe token bucket used to limit the rate of operations.
+ * <p>
+ * The bucket holds up to <em>burst</em> tokens, and is refilled at
+ * <em>permitsPerSecond</em>. Each operation takes one token. When no
+ * token is available, a caller may wait for one. Waiting callers
+ * reserve tokens in arrival order, so that they are served first come,
+ * first served, and the sustained rate never exceeds the configured
+ * rate.
+ *
+ * @author Lorenzo Dee
+ * @see RateLimitedConnectionFactory
+ */
+public class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final double permitsPerSecond;
+	private final int burst;
+	private final double nanosPerPermit;
+
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Constructs a full bucket.
+	 * @param permitsPerSecond the sustained rate
+	 * @param burst the maximum number of tokens that can be taken at once
+	 *     (after a period of inactivity)
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		if (permitsPerSecond <= 0) {
+			throw new IllegalArgumentException(
+					"permitsPerSecond must be greater than zero");
+		}
+		if (burst <= 0) {
+			throw new IllegalArgumentException(
+					"burst must be greater than zero");
+		}
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.nanosPerPermit = NANOS_PER_SECOND / permitsPerSecond;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Takes a token if one is available now.
+	 * @return <code>true</code> if a token was taken
+	 */
+	public boolean tryAcquire() {
+		return reserve(0) == 0;
+	}
+
+	/**
+	 * Takes a token, waiting up to the given timeout for one to be
+	 * available.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return <code>true</code> if a token was taken, <code>false</code>
+	 *     if none would be available within the timeout (in which case,
+	 *     this method returns immediately)
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long waitNanos = reserve(unit.toNanos(timeout));
+		if (waitNanos < 0) {
+			return false;
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a token, waiting as long as necessary for one to be available.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		tryAcquire(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Reserves a token if it will be available within the given time.
+	 * @return the time to wait (in nanoseconds) before using the reserved
+	 *     token, or -1 if no token was reserved
+	 */
+	private synchronized long reserve(long maxWaitNanos) {
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.burst,
+				this.tokens + (now - this.lastRefill) / this.nanosPerPermit);
+		this.lastRefill = now;
+		if (this.tokens >= 1) {
+			this.tokens -= 1;
+			return 0;
+		}
+		long waitNanos = (long) Math.ceil((1 - this.tokens) * this.nanosPerPermit);
+		if (waitNanos > maxWaitNanos) {
+			return -1;
+		}
+		// Go into debt, so that subsequent callers wait behind this one
+		this.tokens -= 1;
+		return waitNanos;
+	}
+
+}
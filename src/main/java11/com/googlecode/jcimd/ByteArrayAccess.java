@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Reads eight (8) bytes of an array at once, as a <code>long</code>.
+ * <p>
+ * This is the Java 11 version of this class, packaged under
+ * <code>META-INF/versions/11</code> of the multi-release JAR. It reads
+ * each word with a single (unaligned) load, through a byte array view
+ * {@link VarHandle}.
+ *
+ * @author Lorenzo Dee
+ */
+final class ByteArrayAccess {
+
+	private static final VarHandle LONG_LITTLE_ENDIAN =
+			MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private ByteArrayAccess() {
+	}
+
+	static long getLongLittleEndian(byte[] bytes, int index) {
+		return (long) LONG_LITTLE_ENDIAN.get(bytes, index);
+	}
+
+}
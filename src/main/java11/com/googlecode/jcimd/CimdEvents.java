@@ -0,0 +1,276 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits <a href="https://openjdk.org/jeps/328">JDK Flight Recorder</a>
+ * events for CIMD operations.
+ * <p>
+ * This is the Java 11 version of this class, packaged under
+ * <code>META-INF/versions/11</code> of the multi-release JAR. When no
+ * recording is running (or the event is disabled), the JIT reduces
+ * {@link Event#isEnabled()} and {@link Event#shouldCommit()} to a
+ * constant <code>false</code>, and the event objects do not escape.
+ *
+ * @author Lorenzo Dee
+ */
+final class CimdEvents {
+
+	private CimdEvents() {}
+
+	static Object beginRequest() {
+		RequestEvent event = new RequestEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	static void endRequest(Object event, Packet request, Packet response) {
+		if (event == null) {
+			return;
+		}
+		RequestEvent requestEvent = (RequestEvent) event;
+		requestEvent.end();
+		if (requestEvent.shouldCommit()) {
+			requestEvent.operationCode = request.getOperationCode();
+			requestEvent.sequenceNumber = sequenceNumberOf(request);
+			requestEvent.responseOperationCode =
+					response != null ? response.getOperationCode() : -1;
+			requestEvent.commit();
+		}
+	}
+
+	static void replyTimeout(Packet request, long timeoutMillis) {
+		ReplyTimeoutEvent event = new ReplyTimeoutEvent();
+		if (event.isEnabled()) {
+			event.operationCode = request.getOperationCode();
+			event.sequenceNumber = sequenceNumberOf(request);
+			event.timeout = timeoutMillis;
+			event.commit();
+		}
+	}
+
+	static void nack(Packet request, Packet nack) {
+		NackEvent event = new NackEvent();
+		if (event.isEnabled()) {
+			event.operationCode = request.getOperationCode();
+			event.sequenceNumber = sequenceNumberOf(request);
+			event.expectedSequenceNumber = sequenceNumberOf(nack);
+			event.commit();
+		}
+	}
+
+	static Object beginLogin() {
+		LoginEvent event = new LoginEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	static void endLogin(Object event, String username, boolean success) {
+		if (event == null) {
+			return;
+		}
+		LoginEvent loginEvent = (LoginEvent) event;
+		loginEvent.end();
+		if (loginEvent.shouldCommit()) {
+			loginEvent.username = username;
+			loginEvent.success = success;
+			loginEvent.commit();
+		}
+	}
+
+	static Object beginReconnect() {
+		ReconnectEvent event = new ReconnectEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	static void endReconnect(Object event, boolean success) {
+		if (event == null) {
+			return;
+		}
+		ReconnectEvent reconnectEvent = (ReconnectEvent) event;
+		reconnectEvent.end();
+		if (reconnectEvent.shouldCommit()) {
+			reconnectEvent.success = success;
+			reconnectEvent.commit();
+		}
+	}
+
+	static Object beginPacketWrite() {
+		PacketWriteEvent event = new PacketWriteEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	static void endPacketWrite(Object event,
+			int operationCode, int sequenceNumber, int size) {
+		if (event == null) {
+			return;
+		}
+		PacketWriteEvent writeEvent = (PacketWriteEvent) event;
+		writeEvent.end();
+		if (writeEvent.shouldCommit()) {
+			writeEvent.operationCode = operationCode;
+			writeEvent.sequenceNumber = sequenceNumber;
+			writeEvent.size = size;
+			writeEvent.commit();
+		}
+	}
+
+	static void packetRead(int operationCode, int sequenceNumber, int size) {
+		PacketReadEvent event = new PacketReadEvent();
+		if (event.isEnabled()) {
+			event.operationCode = operationCode;
+			event.sequenceNumber = sequenceNumber;
+			event.size = size;
+			event.commit();
+		}
+	}
+
+	static void frameDecodeError(int size, String message) {
+		FrameDecodeErrorEvent event = new FrameDecodeErrorEvent();
+		if (event.isEnabled()) {
+			event.size = size;
+			event.message = message;
+			event.commit();
+		}
+	}
+
+	private static int sequenceNumberOf(Packet packet) {
+		Integer sequenceNumber = packet.getSequenceNumber();
+		return sequenceNumber != null ? sequenceNumber : -1;
+	}
+
+	@Name("com.googlecode.jcimd.Request")
+	@Label("CIMD Request")
+	@Description("Operation sent to the SMS Center, timed until its response arrives")
+	@Category("CIMD")
+	static class RequestEvent extends Event {
+		@Label("Operation Code")
+		int operationCode;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Response Operation Code")
+		@Description("Operation code of the response, or -1 if none was received")
+		int responseOperationCode;
+	}
+
+	@Name("com.googlecode.jcimd.ReplyTimeout")
+	@Label("CIMD Reply Timeout")
+	@Category("CIMD")
+	static class ReplyTimeoutEvent extends Event {
+		@Label("Operation Code")
+		int operationCode;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Timeout")
+		@Timespan(Timespan.MILLISECONDS)
+		long timeout;
+	}
+
+	@Name("com.googlecode.jcimd.Nack")
+	@Label("CIMD Nack")
+	@Category("CIMD")
+	static class NackEvent extends Event {
+		@Label("Operation Code")
+		int operationCode;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Expected Sequence Number")
+		int expectedSequenceNumber;
+	}
+
+	@Name("com.googlecode.jcimd.Login")
+	@Label("CIMD Login")
+	@Category("CIMD")
+	static class LoginEvent extends Event {
+		@Label("User Identity")
+		String username;
+		@Label("Success")
+		boolean success;
+	}
+
+	@Name("com.googlecode.jcimd.Reconnect")
+	@Label("CIMD Reconnect")
+	@Description("New connection obtained to replace one that was closed")
+	@Category("CIMD")
+	static class ReconnectEvent extends Event {
+		@Label("Success")
+		boolean success;
+	}
+
+	@Name("com.googlecode.jcimd.PacketWrite")
+	@Label("CIMD Packet Write")
+	@Category({ "CIMD", "Serialization" })
+	@StackTrace(false)
+	static class PacketWriteEvent extends Event {
+		@Label("Operation Code")
+		int operationCode;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+
+	@Name("com.googlecode.jcimd.PacketRead")
+	@Label("CIMD Packet Read")
+	@Category({ "CIMD", "Serialization" })
+	@StackTrace(false)
+	static class PacketReadEvent extends Event {
+		@Label("Operation Code")
+		int operationCode;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+
+	@Name("com.googlecode.jcimd.FrameDecodeError")
+	@Label("CIMD Frame Decode Error")
+	@Category({ "CIMD", "Serialization" })
+	static class FrameDecodeErrorEvent extends Event {
+		@Label("Size")
+		@DataAmount
+		int size;
+		@Label("Message")
+		String message;
+	}
+
+}
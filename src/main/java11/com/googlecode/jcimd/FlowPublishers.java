@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Adapts a {@link MessagePublisher} to {@link Flow.Publisher}, so that
+ * delivered messages can be consumed by any reactive streams library,
+ * with demand-driven backpressure on the SMS Center.
+ * <p>
+ * This is the Java 11 version of this class, packaged under
+ * <code>META-INF/versions/11</code> of the multi-release JAR.
+ *
+ * @author Lorenzo Dee
+ * @see MessagePublisher#toFlowPublisher()
+ */
+final class FlowPublishers {
+
+	private FlowPublishers() {}
+
+	static Object adapt(MessagePublisher publisher) {
+		return new Adapter(publisher);
+	}
+
+	private static class Adapter implements Flow.Publisher<Packet> {
+
+		private final MessagePublisher publisher;
+
+		Adapter(MessagePublisher publisher) {
+			this.publisher = publisher;
+		}
+
+		@Override
+		public void subscribe(final Flow.Subscriber<? super Packet> subscriber) {
+			if (subscriber == null) {
+				throw new NullPointerException("subscriber cannot be null");
+			}
+			this.publisher.subscribe(new MessagePublisher.Subscriber() {
+				@Override
+				public void onSubscribe(final MessagePublisher.Subscription subscription) {
+					subscriber.onSubscribe(new Flow.Subscription() {
+						@Override
+						public void request(long n) {
+							subscription.request(n);
+						}
+
+						@Override
+						public void cancel() {
+							subscription.cancel();
+						}
+					});
+				}
+
+				@Override
+				public void onNext(Packet message) {
+					subscriber.onNext(message);
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+					subscriber.onError(throwable);
+				}
+
+				@Override
+				public void onComplete() {
+					subscriber.onComplete();
+				}
+			});
+		}
+
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used by connections as virtual threads. This
+ * replaces the Java 6 version of this class on Java 21 or later.
+ *
+ * @author Lorenzo Dee
+ */
+final class Threads {
+
+	private Threads() {
+	}
+
+	/**
+	 * Returns a factory of virtual threads named <code>name-1</code>,
+	 * <code>name-2</code>, and so on.
+	 * @param name the prefix of the thread names
+	 */
+	static ThreadFactory newThreadFactory(String name) {
+		return Thread.ofVirtual().name(name + "-", 1).factory();
+	}
+
+	/**
+	 * Returns an executor that runs each task on a new virtual thread.
+	 * @param name the prefix of the thread names
+	 */
+	static Executor newExecutor(String name) {
+		return Executors.newThreadPerTaskExecutor(newThreadFactory(name));
+	}
+
+}
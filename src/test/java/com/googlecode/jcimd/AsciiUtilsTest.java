@@ -20,7 +20,10 @@ package com.googlecode.jcimd;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.Before;
@@ -97,6 +100,63 @@ public class AsciiUtilsTest {
 		assertArrayEquals(expecteds, out.toByteArray());
 	}
 
+	@Test
+	public void writeIntAsAsciiBytesToArrayAtOffset() throws Exception {
+		byte[] bytes = new byte[8];
+		int offset = AsciiUtils.writeIntAsAsciiBytes(3, bytes, 1, 2);
+		assertEquals(3, offset);
+		offset = AsciiUtils.writeIntAsAsciiBytes(999, bytes, offset, 3);
+		assertEquals(6, offset);
+		offset = AsciiUtils.writeIntAsAsciiBytes(42, bytes, offset, 2);
+		assertArrayEquals(new byte[] { 0, '0', '3', '9', '9', '9', '4', '2' }, bytes);
+	}
+
+	@Test
+	public void writeIntAsAsciiBytesToBuffer() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(9);
+		AsciiUtils.writeIntAsAsciiBytes(7, buffer, 3);
+		AsciiUtils.writeIntAsAsciiBytes(1234, buffer, 4);
+		AsciiUtils.writeIntAsAsciiBytes(60, buffer, 2);
+		assertEquals(9, buffer.position());
+		assertEquals("007123460", new String(buffer.array(), "US-ASCII"));
+	}
+
+	@Test
+	public void writesSameDigitsToStreamArrayAndBuffer() throws Exception {
+		for (int width = 1; width <= 4; width++) {
+			for (int x = 0; x < 10000; x += 7) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				AsciiUtils.writeIntAsAsciiBytes(x, out, width);
+				byte[] bytes = new byte[width];
+				AsciiUtils.writeIntAsAsciiBytes(x, bytes, 0, width);
+				ByteBuffer buffer = ByteBuffer.allocate(width);
+				AsciiUtils.writeIntAsAsciiBytes(x, buffer, width);
+				String expected = String.valueOf(x + 10000).substring(5 - width);
+				assertEquals(expected, out.toString("US-ASCII"));
+				assertEquals(expected, new String(bytes, "US-ASCII"));
+				assertEquals(expected, new String(buffer.array(), "US-ASCII"));
+			}
+		}
+	}
+
+	@Test
+	public void parseIntFromAsciiBytes() throws Exception {
+		byte[] bytes = "03:007\t".getBytes("US-ASCII");
+		assertEquals(3, AsciiUtils.parseIntFromAsciiBytes(bytes, 0, 2));
+		assertEquals(7, AsciiUtils.parseIntFromAsciiBytes(bytes, 3, 3));
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		assertEquals(3, AsciiUtils.parseIntFromAsciiBytes(buffer, 2));
+		buffer.get();
+		assertEquals(7, AsciiUtils.parseIntFromAsciiBytes(buffer.asReadOnlyBuffer(), 3));
+		assertEquals(3, buffer.position());
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void parseIntFromAsciiBytesRejectsNonDigits() throws Exception {
+		AsciiUtils.parseIntFromAsciiBytes("0x1".getBytes("US-ASCII"), 0, 3);
+	}
+
 	@Test
 	public void serializeIntAsHexAsciiBytesLeftPaddedWithTwoZeroes() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream(20);
@@ -109,6 +169,61 @@ public class AsciiUtilsTest {
 		assertArrayEquals(expecteds, out.toByteArray());
 	}
 
+	@Test
+	public void writeStringAsAsciiBytesToArrayAndBuffer() throws Exception {
+		byte[] bytes = new byte[8];
+		int offset = AsciiUtils.writeStringAsAsciiBytes("abc", bytes, 1);
+		assertEquals(4, offset);
+		offset = AsciiUtils.writeStringAsAsciiBytes("\u00e4\u0141", bytes, offset);
+		assertEquals(6, offset);
+		// only the eight low-order bits are written
+		assertArrayEquals(new byte[] { 0, 'a', 'b', 'c', (byte) 0xe4, 0x41, 0, 0 }, bytes);
+
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.put((byte) '>');
+		AsciiUtils.writeStringAsAsciiBytes("abc", buffer);
+		AsciiUtils.writeStringAsAsciiBytes("123", buffer.slice());
+		assertEquals(4, buffer.position());
+		assertEquals(">abc123", new String(buffer.array(), 0, 7, "US-ASCII"));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(3);
+		AsciiUtils.writeStringAsAsciiBytes("xyz", direct);
+		direct.flip();
+		assertEquals('x', direct.get());
+		assertEquals('z', direct.get(2));
+	}
+
+	@Test
+	public void writeByteArrayAsHexAsciiBytesToArrayAndBuffer() throws Exception {
+		byte[] in = new byte[256];
+		for (int i = 0; i < in.length; i++) {
+			in[i] = (byte) i;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AsciiUtils.writeByteArrayAsHexAsciiBytes(in, out);
+
+		byte[] bytes = new byte[1 + in.length * 2];
+		assertEquals(bytes.length,
+				AsciiUtils.writeByteArrayAsHexAsciiBytes(in, 0, in.length, bytes, 1));
+		assertArrayEquals(out.toByteArray(), Arrays.copyOfRange(bytes, 1, bytes.length));
+
+		ByteBuffer buffer = ByteBuffer.allocate(in.length * 2);
+		AsciiUtils.writeByteArrayAsHexAsciiBytes(in, buffer);
+		assertArrayEquals(out.toByteArray(), buffer.array());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(4);
+		AsciiUtils.writeByteArrayAsHexAsciiBytes(new byte[] { (byte) 0xAB, 0x01 }, direct);
+		direct.flip();
+		byte[] hex = new byte[4];
+		direct.get(hex);
+		assertEquals("ab01", new String(hex, "US-ASCII"));
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void writeStringAsAsciiBytesRejectsFullBuffer() throws Exception {
+		AsciiUtils.writeStringAsAsciiBytes("abc", ByteBuffer.allocate(2));
+	}
+
 	@Test
 	public void convertByteArrayToHexString() throws Exception {
 		final byte[] bytes = new byte[] { 
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CimdChecksumTest {
+
+	private static int naiveSum(byte[] bytes, int from, int to) {
+		int sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += bytes[i];
+			sum &= 0xFF;
+		}
+		return sum;
+	}
+
+	@Test
+	public void sumsLikeByteAtATime() throws Exception {
+		Random random = new Random(42);
+		for (int length = 0; length < 5000; length += 1 + random.nextInt(37)) {
+			byte[] bytes = new byte[length + 16];
+			random.nextBytes(bytes);
+			int from = random.nextInt(9);
+			assertEquals("length " + length,
+					naiveSum(bytes, from, from + length),
+					CimdChecksum.sum(bytes, from, from + length));
+		}
+	}
+
+	@Test
+	public void sumsHighBytesBeyondReductionInterval() throws Exception {
+		byte[] bytes = new byte[8 * 1000 + 3];
+		Arrays.fill(bytes, (byte) 0xFF);
+		assertEquals(naiveSum(bytes, 0, bytes.length),
+				CimdChecksum.sum(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void updatesIncrementally() throws Exception {
+		byte[] bytes = "\u000203:007\t010:user01\t011:seCreT\t".getBytes("ISO-8859-1");
+		CimdChecksum checksum = new CimdChecksum();
+		checksum.update(bytes[0]);
+		checksum.update(bytes, 1, 10);
+		for (int i = 11; i < bytes.length; i++) {
+			checksum.update(bytes[i]);
+		}
+		assertEquals(naiveSum(bytes, 0, bytes.length), checksum.getValue());
+
+		checksum.reset();
+		assertEquals(0, checksum.getValue());
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class CimdTimeTest {
+
+	@Test
+	public void formatsAndParsesLikeSimpleDateFormat() throws Exception {
+		Random random = new Random(42);
+		for (String id : new String[] { "UTC", "Europe/Helsinki", "America/Los_Angeles", "Asia/Kolkata" }) {
+			TimeZone zone = TimeZone.getTimeZone(id);
+			SimpleDateFormat dateFormat = new SimpleDateFormat("yyMMddHHmmss");
+			dateFormat.setTimeZone(zone);
+			for (int i = 0; i < 10000; i++) {
+				// between 2000 and 2038, in whole seconds
+				long time = (946684800L + (long) (random.nextDouble() * 1200000000L)) * 1000L;
+				String expected = dateFormat.format(new Date(time));
+				assertEquals(id, expected, CimdTime.format(time, zone));
+				long parsed = CimdTime.parse(expected, zone);
+				assertEquals(id + " " + expected,
+						dateFormat.format(dateFormat.parse(expected)),
+						CimdTime.format(parsed, zone));
+			}
+		}
+	}
+
+	@Test
+	public void formatsIntoBytesAtOffset() throws Exception {
+		TimeZone utc = TimeZone.getTimeZone("UTC");
+		byte[] bytes = new byte[14];
+		// 2011-01-02 10:30:00 UTC
+		assertEquals(13, CimdTime.format(1293964200000L, utc, bytes, 1));
+		assertEquals("110102103000", new String(bytes, 1, 12, "US-ASCII"));
+		assertEquals(1293964200000L, CimdTime.parse(bytes, 1, utc));
+	}
+
+	@Test
+	public void parsesTwoDigitYearsAroundCurrentYear() throws Exception {
+		TimeZone utc = TimeZone.getTimeZone("UTC");
+		assertEquals(946684800000L, CimdTime.parse("000101000000", utc));
+		// 1999, not 2099
+		assertEquals(946684799000L, CimdTime.parse("991231235959", utc));
+		// leap day
+		assertEquals(951782400000L, CimdTime.parse("000229000000", utc));
+	}
+
+	@Test
+	public void rejectsInvalidTimes() throws Exception {
+		for (String text : new String[] {
+				"1101021030", "1101021030000", "11010210300x",
+				"111302103000", "110230103000", "110102243000", "110102106000" }) {
+			try {
+				CimdTime.parse(text);
+				fail("Expecting " + text + " to be rejected");
+			} catch (ParseException e) {
+				// expected
+			}
+		}
+	}
+
+}
@@ -19,6 +19,19 @@ package com.googlecode.jcimd;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -27,7 +40,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.googlecode.jcimd.DefaultSession;
-import com.googlecode.jcimd.Session;
+import com.googlecode.jcimd.QueryingSession;
 import com.googlecode.jcimd.StringUserData;
 import com.googlecode.jcimd.TimePeriod;
 import com.googlecode.jcimd.UserData;
@@ -41,7 +54,7 @@ public class DefaultSessionTest {
 
 	private String username = "user01";
 	private String password = "seCreT";
-	private Session session;
+	private QueryingSession session;
 
 	private ConnectionFactory connectionFactory;
 
@@ -148,4 +161,338 @@ public class DefaultSessionTest {
 			assertEquals("Logout message expected", 2, server.getReceivedCommands().get(0).getOperationCode());
 		}
 	}
+
+	@Test
+	public void keepsConnectionAliveWhenIdle() throws Exception {
+		((TcpNetConnectionFactory) connectionFactory).setAliveInterval(500);
+		session = new DefaultSession(connectionFactory);
+		try {
+			String destinationAddress = "+19098858888";
+			UserData userData = new StringUserData("Hi there");
+
+			submitMessage(destinationAddress, userData);
+
+			System.out.println("Pausing longer than server inactivity timeout...");
+			Thread.sleep(3000);
+
+			submitMessage(destinationAddress, userData);
+
+			int logins = 0;
+			int alives = 0;
+			for (Packet packet : server.getReceivedCommands()) {
+				if (packet.getOperationCode() == Packet.OP_LOGIN) {
+					logins++;
+				} else if (packet.getOperationCode() == Packet.OP_ALIVE) {
+					alives++;
+				}
+			}
+			assertEquals("Expecting the same connection to be used", 1, logins);
+			assertTrue("Expecting alive operations", alives >= 2);
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void submitsMessagesWithRecycledPackets() throws Exception {
+		DefaultSession defaultSession = new DefaultSession(connectionFactory);
+		defaultSession.setRecyclePackets(true);
+		session = defaultSession;
+		try {
+			submitMessage("+19098858888", new StringUserData("Hi"));
+			submitMessage("+19098859999", new StringUserData("Hi again"));
+			List<Packet> commands = server.getReceivedCommands();
+			assertEquals("+19098858888", commands.get(1)
+					.getParameter(Parameter.DESTINATION_ADDRESS).getValue());
+			assertEquals("Hi again", commands.get(2)
+					.getParameter(Parameter.USER_DATA).getValue());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void runsConnectionReaderWithGivenThreadFactory() throws Exception {
+		final List<Thread> threads = new ArrayList<Thread>();
+		((TcpNetConnectionFactory) connectionFactory).setThreadFactory(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "test-reader");
+				thread.setDaemon(true);
+				threads.add(thread);
+				return thread;
+			}
+		});
+		session = new DefaultSession(connectionFactory);
+		try {
+			submitMessage("+19098858888", new StringUserData("Hi"));
+			assertEquals(1, threads.size());
+			assertTrue(threads.get(0).isAlive());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void enquiresMessageStatus() throws Exception {
+		session = new DefaultSession(connectionFactory);
+		try {
+			MessageStatus status = session.enquireMessageStatus(
+					"+19098858888", "110102103000");
+			assertEquals(4, status.getStatusCode());
+			assertEquals(0, status.getStatusErrorCode());
+			Calendar dischargeTime = Calendar.getInstance();
+			dischargeTime.setTime(status.getDischargeTime());
+			assertEquals(2011, dischargeTime.get(Calendar.YEAR));
+			assertEquals(30, dischargeTime.get(Calendar.MINUTE));
+			Packet enquiry = server.getReceivedCommands().get(1);
+			assertEquals(Packet.OP_ENQUIRE_MESSAGE_STATUS, enquiry.getOperationCode());
+			assertEquals("110102103000", enquiry.getParameter(60).getValue());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void enquiresMessageStatusInBulk() throws Exception {
+		((TcpNetConnectionFactory) connectionFactory).setWindowSize(16);
+		session = new DefaultSession(connectionFactory);
+		try {
+			List<MessageReference> messages = new ArrayList<MessageReference>();
+			for (int i = 0; i < 500; i++) {
+				messages.add(new MessageReference("+1909885" + i, "110102103000"));
+			}
+			messages.add(new MessageReference("unknown", "110102103000"));
+			final Map<MessageReference, MessageStatus> statuses =
+					new ConcurrentHashMap<MessageReference, MessageStatus>();
+			final Map<MessageReference, Exception> failures =
+					new ConcurrentHashMap<MessageReference, Exception>();
+
+			session.enquireMessageStatus(messages, new MessageStatusListener() {
+				@Override
+				public void statusReceived(MessageReference message, MessageStatus status) {
+					statuses.put(message, status);
+				}
+
+				@Override
+				public void enquiryFailed(MessageReference message, Exception e) {
+					failures.put(message, e);
+				}
+			});
+
+			assertEquals(500, statuses.size());
+			assertEquals(4, statuses.get(messages.get(0)).getStatusCode());
+			assertEquals(1, failures.size());
+			NegativeResponseException e = (NegativeResponseException)
+					failures.get(new MessageReference("unknown", "110102103000"));
+			assertEquals(300, e.getErrorCode());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void enquiresMessageStatusInBulkWithoutPipelining() throws Exception {
+		session = new DefaultSession(new ConnectionFactory() {
+			@Override
+			public Connection getConnection() throws Exception {
+				final Connection connection = connectionFactory.getConnection();
+				// hides the pipelining of the underlying connection
+				return new Connection() {
+					@Override
+					public Packet send(Packet request) throws Exception {
+						return connection.send(request);
+					}
+
+					@Override
+					public boolean isOpen() {
+						return connection.isOpen();
+					}
+
+					@Override
+					public boolean isClosed() {
+						return connection.isClosed();
+					}
+
+					@Override
+					public void close() {
+						connection.close();
+					}
+				};
+			}
+		});
+		try {
+			List<MessageReference> messages = new ArrayList<MessageReference>();
+			messages.add(new MessageReference("+19098850", "110102103000"));
+			messages.add(new MessageReference("unknown", "110102103000"));
+			messages.add(new MessageReference("+19098851", "110102103000"));
+			final Map<MessageReference, MessageStatus> statuses =
+					new ConcurrentHashMap<MessageReference, MessageStatus>();
+			final Map<MessageReference, Exception> failures =
+					new ConcurrentHashMap<MessageReference, Exception>();
+
+			session.enquireMessageStatus(messages, new MessageStatusListener() {
+				@Override
+				public void statusReceived(MessageReference message, MessageStatus status) {
+					statuses.put(message, status);
+				}
+
+				@Override
+				public void enquiryFailed(MessageReference message, Exception e) {
+					failures.put(message, e);
+				}
+			});
+
+			assertEquals(2, statuses.size());
+			assertEquals(4, statuses.get(messages.get(2)).getStatusCode());
+			assertEquals(1, failures.size());
+			NegativeResponseException e = (NegativeResponseException)
+					failures.get(messages.get(1));
+			assertEquals(300, e.getErrorCode());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void reportsTimedOutEnquiryAndContinuesWithoutPipelining() throws Exception {
+		final Connection connection = new Connection() {
+			@Override
+			public Packet send(Packet request) throws Exception {
+				if ("timeout".equals(request.getParameter(
+						Parameter.DESTINATION_ADDRESS).getValue())) {
+					// as when no reply arrives in time
+					return null;
+				}
+				return new Packet(request.getOperationCode() + 50, 1,
+						new Parameter(Parameter.STATUS_CODE, 4));
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public boolean isClosed() {
+				return false;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		session = new DefaultSession(new ConnectionFactory() {
+			@Override
+			public Connection getConnection() throws Exception {
+				return connection;
+			}
+		});
+		List<MessageReference> messages = new ArrayList<MessageReference>();
+		messages.add(new MessageReference("timeout", "110102103000"));
+		messages.add(new MessageReference("+19098851", "110102103000"));
+		final Map<MessageReference, MessageStatus> statuses =
+				new ConcurrentHashMap<MessageReference, MessageStatus>();
+		final Map<MessageReference, Exception> failures =
+				new ConcurrentHashMap<MessageReference, Exception>();
+
+		session.enquireMessageStatus(messages, new MessageStatusListener() {
+			@Override
+			public void statusReceived(MessageReference message, MessageStatus status) {
+				statuses.put(message, status);
+			}
+
+			@Override
+			public void enquiryFailed(MessageReference message, Exception e) {
+				failures.put(message, e);
+			}
+		});
+
+		assertTrue(failures.get(messages.get(0)) instanceof SocketTimeoutException);
+		assertEquals(4, statuses.get(messages.get(1)).getStatusCode());
+	}
+
+	@Test
+	public void reportsEachEnquiryOnceWhenServerClosesDuringBulkEnquiry() throws Exception {
+		final ServerSocket serverSocket = new ServerSocket(0);
+		Thread smsc = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = serverSocket.accept();
+					try {
+						PacketSerializer serializer = new PacketSerializer("smsc");
+						InputStream in = socket.getInputStream();
+						OutputStream out = socket.getOutputStream();
+						Packet login = serializer.deserialize(in);
+						serializer.serialize(new Packet(
+								login.getOperationCode() + 50, login.getSequenceNumber()), out);
+						// answers a few enquiries, then goes away
+						for (int i = 0; i < 5; i++) {
+							Packet enquiry = serializer.deserialize(in);
+							serializer.serialize(new Packet(
+									enquiry.getOperationCode() + 50, enquiry.getSequenceNumber(),
+									enquiry.getParameter(21), enquiry.getParameter(60),
+									new Parameter(61, 4)), out);
+						}
+					} finally {
+						socket.close();
+					}
+				} catch (IOException e) {
+					// test ends
+				}
+			}
+		});
+		smsc.start();
+		TcpNetConnectionFactory factory = new TcpNetConnectionFactory(
+				host, serverSocket.getLocalPort(), username, password);
+		factory.setWindowSize(8);
+		session = new DefaultSession(factory);
+		try {
+			List<MessageReference> messages = new ArrayList<MessageReference>();
+			for (int i = 0; i < 100; i++) {
+				messages.add(new MessageReference("+1909885" + i, "110102103000"));
+			}
+			final Map<MessageReference, AtomicInteger> reports =
+					new ConcurrentHashMap<MessageReference, AtomicInteger>();
+			final AtomicInteger statuses = new AtomicInteger();
+			MessageStatusListener listener = new MessageStatusListener() {
+				@Override
+				public void statusReceived(MessageReference message, MessageStatus status) {
+					statuses.incrementAndGet();
+					report(message);
+				}
+
+				@Override
+				public void enquiryFailed(MessageReference message, Exception e) {
+					report(message);
+				}
+
+				private void report(MessageReference message) {
+					AtomicInteger count = new AtomicInteger();
+					AtomicInteger existing = ((ConcurrentHashMap<MessageReference, AtomicInteger>)
+							reports).putIfAbsent(message, count);
+					(existing != null ? existing : count).incrementAndGet();
+				}
+			};
+			try {
+				session.enquireMessageStatus(messages, listener);
+			} catch (SessionException e) {
+				// expected, once the connection is lost
+			}
+			int reported = reports.size();
+			Thread.sleep(200);
+			assertEquals("Listener called after returning", reported, reports.size());
+			for (AtomicInteger count : reports.values()) {
+				assertEquals(1, count.get());
+			}
+			assertTrue(statuses.get() <= 5);
+		} finally {
+			session.close();
+			factory.close();
+			serverSocket.close();
+			smsc.join(1000);
+		}
+	}
+
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DeliveryRequestPollerTest {
+
+	private static DummyCimdServer server;
+	private static int port = 9972;
+
+	private final List<Packet> messages = new CopyOnWriteArrayList<Packet>();
+	private QueryingSession session;
+	private DeliveryRequestPoller poller;
+
+	@BeforeClass
+	public static void setUpCimd2Server() throws Exception {
+		server = new DummyCimdServer(port);
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDownCimd2Server() throws Exception {
+		server.stop();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		TcpNetConnectionFactory connectionFactory = new TcpNetConnectionFactory(
+				"localhost", port, "user01", "seCreT");
+		connectionFactory.setMessageReceiver(new MessageReceiver() {
+			@Override
+			public void messageReceived(Packet message) throws Exception {
+				messages.add(message);
+			}
+		});
+		session = new DefaultSession(connectionFactory);
+		poller = new DeliveryRequestPoller(session);
+		poller.setMinInterval(20);
+		poller.setMaxInterval(160);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		poller.stop();
+		session.close();
+		server.getReceivedCommands().clear();
+		server.getMessagesWaiting().clear();
+	}
+
+	private static Packet deliverMessage(String userData) {
+		return new Packet(Packet.OP_DELIVER_MESSAGE,
+				new Parameter(Parameter.DESTINATION_ADDRESS, "12345"),
+				new Parameter(Parameter.ORIGINATING_ADDRESS, "+358501234567"),
+				new Parameter(Parameter.USER_DATA, userData));
+	}
+
+	@Test
+	public void countsMessagesWaiting() throws Exception {
+		server.getMessagesWaiting().add(deliverMessage("one"));
+		server.getMessagesWaiting().add(deliverMessage("two"));
+		assertEquals(2, session.deliveryRequestNumberOfMessagesWaiting());
+		assertTrue(messages.isEmpty());
+	}
+
+	@Test
+	public void drainsWaitingMessagesAndBacksOffWhenNoneAreLeft() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			server.getMessagesWaiting().add(deliverMessage("message " + i));
+		}
+		poller.start();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (poller.getInterval() < 160 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(5, messages.size());
+		assertEquals("message 0", messages.get(0).getParameter(Parameter.USER_DATA).getValue());
+		assertEquals(160, poller.getInterval());
+
+		int acknowledgements = 0;
+		for (Packet packet : server.getReceivedCommands()) {
+			if (packet.getOperationCode() == Packet.OP_DELIVER_MESSAGE + 50) {
+				acknowledgements++;
+			}
+		}
+		assertEquals(5, acknowledgements);
+
+		// Polls quickly again once messages arrive
+		server.getMessagesWaiting().add(deliverMessage("late"));
+		deadline = System.currentTimeMillis() + 5000;
+		while (messages.size() < 6 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals("late", messages.get(5).getParameter(Parameter.USER_DATA).getValue());
+	}
+
+}
@@ -23,9 +23,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,11 +45,13 @@ public class DummyCimdServer {
 	private Thread thread;
 	private PacketSerializer serializer;
 	private List<Packet> receivedCommands;
+	private List<Packet> messagesWaiting =
+			Collections.synchronizedList(new LinkedList<Packet>());
 
 	public DummyCimdServer(int port) {
 		this.port = port;
 		this.serializer = new PacketSerializer("DummyCimdServer");
-		this.receivedCommands = new LinkedList<Packet>();
+		this.receivedCommands = new CopyOnWriteArrayList<Packet>();
 	}
 
 	public void start() throws IOException {
@@ -96,6 +100,7 @@ public class DummyCimdServer {
 		private Socket socket;
 		private InputStream inputStream;
 		private OutputStream outputStream;
+		private int sequenceNumber;
 
 		public Session(Socket socket) throws IOException {
 			this.socket = socket;
@@ -122,7 +127,12 @@ public class DummyCimdServer {
 						break;
 					}
 					receivedCommands.add(request);
+					if (request.isResponse()) {
+						// e.g. a response to a deliver message
+						continue;
+					}
 					Packet response;
+					int messagesToDeliver = 0;
 					switch (request.getOperationCode()) {
 					// The operation code of the response packet is
 					// fixed to be 50 more than the operation code of 
@@ -141,11 +151,49 @@ public class DummyCimdServer {
 								request.getSequenceNumber(),
 								new Parameter(60, new SimpleDateFormat("yyMMddHHmmss").format(new Date())));
 						break;
+					case Packet.OP_ENQUIRE_MESSAGE_STATUS:
+						if ("unknown".equals(request.getParameter(21).getValue())) {
+							response = new Packet(
+									request.getOperationCode() + 50,
+									request.getSequenceNumber(),
+									new Parameter(900, 300),
+									new Parameter(901, "Incorrect destination address"));
+						} else {
+							response = new Packet(
+									request.getOperationCode() + 50,
+									request.getSequenceNumber(),
+									request.getParameter(21),
+									request.getParameter(60),
+									new Parameter(61, 4),
+									new Parameter(63, "110102103000"));
+						}
+						break;
+					case Packet.OP_DELIVERY_REQUEST:
+						int mode = Integer.valueOf(request.getParameter(68).getValue());
+						if (mode == 0) {
+							response = new Packet(
+									request.getOperationCode() + 50,
+									request.getSequenceNumber(),
+									new Parameter(66, messagesWaiting.size()));
+						} else {
+							response = new Packet(
+									request.getOperationCode() + 50,
+									request.getSequenceNumber());
+							messagesToDeliver = mode == 1 ? 1 : messagesWaiting.size();
+						}
+						break;
 					default:
 						response = new Packet(Packet.OP_GENERAL_ERROR_RESPONSE);
 						break;
 					}
 					serializer.serialize(response, this.outputStream);
+					for (int i = 0; i < messagesToDeliver && !messagesWaiting.isEmpty(); i++) {
+						Packet message = messagesWaiting.remove(0);
+						serializer.serialize(new Packet(message.getOperationCode(),
+								this.sequenceNumber, message.getParameters()),
+								this.outputStream);
+						this.sequenceNumber = (this.sequenceNumber + 2) % 256;
+					}
 					if (request.getOperationCode() == Packet.OP_LOGOUT) {
 						break;
 					}
@@ -171,6 +219,10 @@ public class DummyCimdServer {
 		}
 	}
 
+	public List<Packet> getMessagesWaiting() {
+		return messagesWaiting;
+	}
+
 	public List<Packet> getReceivedCommands() {
 		return receivedCommands;
 	}
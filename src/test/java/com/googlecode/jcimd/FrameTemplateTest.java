@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class FrameTemplateTest {
+
+	private static byte[] expectedFrame(
+			int operationCode, int sequenceNumber, boolean useChecksum) throws Exception {
+		byte[] bytes = PacketSerializer.serializeToByteArray(
+				new Packet(operationCode), sequenceNumber);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(bytes);
+		if (useChecksum) {
+			int sum = 0;
+			for (byte b : bytes) {
+				sum += b;
+			}
+			out.write(String.format("%02X", sum & 0xFF).getBytes("US-ASCII"));
+		}
+		out.write(PacketSerializer.ETX);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void writesSameFrameAsSerializer() throws Exception {
+		for (int operationCode = 1; operationCode <= 99; operationCode++) {
+			FrameTemplate template = FrameTemplate.forPacket(new Packet(operationCode));
+			for (int sequenceNumber = 0; sequenceNumber < 256; sequenceNumber++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				int length = template.writeTo(sequenceNumber, true, out);
+				assertArrayEquals(expectedFrame(operationCode, sequenceNumber, true),
+						out.toByteArray());
+				assertEquals(out.size(), length);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			template.writeTo(7, false, out);
+			assertArrayEquals(expectedFrame(operationCode, 7, false), out.toByteArray());
+		}
+	}
+
+	@Test
+	public void onlyAppliesToPacketsWithoutParameters() throws Exception {
+		assertNotNull(FrameTemplate.forPacket(new Packet(Packet.OP_ALIVE)));
+		assertNotNull(FrameTemplate.forPacket(new PacketBuilder(Packet.OP_LOGOUT).build()));
+		assertNull(FrameTemplate.forPacket(new Packet(Packet.OP_LOGIN,
+				new Parameter(Parameter.USER_IDENTITY, "user01"))));
+		assertNull(FrameTemplate.forPacket(new PacketBuilder(Packet.OP_LOGIN)
+				.add(Parameter.USER_IDENTITY, "user01").build()));
+	}
+
+	@Test
+	public void serializesAliveResponseFromTemplate() throws Exception {
+		PacketSerializer serializer = new PacketSerializer();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(new Packet(Packet.OP_ALIVE + 50, 131), out);
+		Packet packet = serializer.deserialize(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(Packet.OP_ALIVE + 50, packet.getOperationCode());
+		assertEquals(Integer.valueOf(131), packet.getSequenceNumber());
+	}
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadBalancingConnectionFactoryTest {
+
+	private LoadBalancingConnectionFactory connectionFactory;
+	private StubConnectionFactory first;
+	private StubConnectionFactory second;
+
+	@Before
+	public void setUp() throws Exception {
+		connectionFactory = new LoadBalancingConnectionFactory();
+		first = new StubConnectionFactory();
+		second = new StubConnectionFactory();
+	}
+
+	@Test
+	public void spreadsConnectionsByWeight() throws Exception {
+		connectionFactory.addEndpoint(first, 3);
+		connectionFactory.addEndpoint(second, 1);
+		for (int i = 0; i < 8; i++) {
+			connectionFactory.getConnection();
+		}
+		assertEquals(6, first.connections);
+		assertEquals(2, second.connections);
+	}
+
+	@Test
+	public void failsOverAndBacksOffUnhealthyEndpoint() throws Exception {
+		connectionFactory.addEndpoint(first, 1);
+		connectionFactory.addEndpoint(second, 1);
+		connectionFactory.setInitialBackoff(200);
+		first.failing = true;
+
+		for (int i = 0; i < 4; i++) {
+			assertNotNull(connectionFactory.getConnection());
+		}
+		assertEquals("Unhealthy endpoint should be tried only once", 1, first.attempts);
+		assertFalse(connectionFactory.isHealthy(first));
+		assertEquals(4, second.connections);
+
+		first.failing = false;
+		Thread.sleep(250);
+		for (int i = 0; i < 4; i++) {
+			connectionFactory.getConnection();
+		}
+		assertTrue(connectionFactory.isHealthy(first));
+		assertEquals(2, first.connections);
+	}
+
+	@Test
+	public void triesEndpointsStillBackingOffWhenNoOtherIsAvailable() throws Exception {
+		connectionFactory.addEndpoint(first, 1);
+		connectionFactory.setInitialBackoff(60000);
+		first.failing = true;
+		try {
+			connectionFactory.getConnection();
+			fail("Expecting an exception");
+		} catch (IOException e) {
+			// expected
+		}
+		first.failing = false;
+		assertNotNull(connectionFactory.getConnection());
+		assertTrue(connectionFactory.isHealthy(first));
+	}
+
+	@Test
+	public void choosesEndpointWithLeastOutstandingRequests() throws Exception {
+		connectionFactory.addEndpoint(first, 1);
+		connectionFactory.addEndpoint(second, 1);
+		connectionFactory.setStrategy(
+				LoadBalancingConnectionFactory.Strategy.LEAST_OUTSTANDING_REQUESTS);
+
+		final Connection busy = connectionFactory.getConnection();
+		assertEquals(1, first.connections);
+		first.blockReplies = new CountDownLatch(1);
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					busy.send(new Packet(Packet.OP_ALIVE));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		sender.start();
+		while (connectionFactory.getOutstandingRequests(first) == 0) {
+			Thread.sleep(10);
+		}
+		for (int i = 0; i < 3; i++) {
+			connectionFactory.getConnection();
+		}
+		assertEquals(1, first.connections);
+		assertEquals(3, second.connections);
+
+		first.blockReplies.countDown();
+		sender.join(1000);
+		assertEquals(0, connectionFactory.getOutstandingRequests(first));
+	}
+
+	@Test
+	public void spreadsIdleConnectionsWithLeastOutstandingRequests() throws Exception {
+		StubConnectionFactory third = new StubConnectionFactory();
+		connectionFactory.addEndpoint(first, 1);
+		connectionFactory.addEndpoint(second, 1);
+		connectionFactory.addEndpoint(third, 2);
+		connectionFactory.setStrategy(
+				LoadBalancingConnectionFactory.Strategy.LEAST_OUTSTANDING_REQUESTS);
+
+		for (int i = 0; i < 8; i++) {
+			connectionFactory.getConnection();
+		}
+		assertEquals(2, first.connections);
+		assertEquals(2, second.connections);
+		assertEquals(4, third.connections);
+
+		// closed connections no longer count
+		for (Connection connection : first.provided) {
+			connection.close();
+		}
+		connectionFactory.getConnection();
+		connectionFactory.getConnection();
+		assertEquals(4, first.connections);
+	}
+
+	@Test
+	public void countsOnlyOpenConnections() throws Exception {
+		connectionFactory.addEndpoint(first, 1);
+		for (int i = 0; i < 100; i++) {
+			connectionFactory.getConnection().close();
+		}
+		Connection connection = connectionFactory.getConnection();
+		assertEquals(1, connectionFactory.getOpenConnections(first));
+		connection.close();
+		assertEquals(0, connectionFactory.getOpenConnections(first));
+	}
+
+	@Test
+	public void keepsPipelinedConnectionsPipelined() throws Exception {
+		final StubPipelinedConnection pipelined = new StubPipelinedConnection();
+		ConnectionFactory pipelinedFactory = new ConnectionFactory() {
+			@Override
+			public Connection getConnection() throws Exception {
+				return pipelined;
+			}
+		};
+		connectionFactory.addEndpoint(pipelinedFactory, 1);
+
+		Connection connection = connectionFactory.getConnection();
+		assertTrue(connection instanceof PipelinedConnection);
+		final List<Packet> replies = new ArrayList<Packet>();
+		((PipelinedConnection) connection).send(new Packet(Packet.OP_ALIVE),
+				new PipelinedConnection.ReplyCallback() {
+					@Override
+					public void replied(Packet request, Packet reply) {
+						replies.add(reply);
+					}
+					@Override
+					public void failed(Packet request, Exception e) {
+					}
+				});
+		assertEquals(1, connectionFactory.getOutstandingRequests(pipelinedFactory));
+
+		pipelined.callback.replied(new Packet(Packet.OP_ALIVE),
+				new Packet(Packet.OP_ALIVE + 50, 1));
+		assertEquals(0, connectionFactory.getOutstandingRequests(pipelinedFactory));
+		assertEquals(1, replies.size());
+	}
+
+	private static class StubPipelinedConnection implements PipelinedConnection {
+		volatile ReplyCallback callback;
+
+		@Override
+		public Packet send(Packet request) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public void send(Packet request, ReplyCallback callback) throws Exception {
+			this.callback = callback;
+		}
+		@Override
+		public void send(Credit credit, Packet request, ReplyCallback callback) throws Exception {
+			this.callback = callback;
+		}
+		@Override
+		public int getAvailableCredits() {
+			return 1;
+		}
+		@Override
+		public Credit acquireCredit() {
+			return tryAcquireCredit();
+		}
+		@Override
+		public Credit tryAcquireCredit(long timeout, TimeUnit unit) {
+			return tryAcquireCredit();
+		}
+		@Override
+		public Credit tryAcquireCredit() {
+			return new Credit() {
+				@Override
+				public void release() {
+				}
+			};
+		}
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		@Override
+		public boolean isClosed() {
+			return false;
+		}
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class StubConnectionFactory implements ConnectionFactory {
+		volatile boolean failing;
+		volatile CountDownLatch blockReplies;
+		final List<Connection> provided = new ArrayList<Connection>();
+		int attempts;
+		int connections;
+
+		@Override
+		public Connection getConnection() throws Exception {
+			attempts++;
+			if (failing) {
+				throw new IOException("Connection refused");
+			}
+			connections++;
+			Connection connection = new Connection() {
+				private volatile boolean closed;
+
+				@Override
+				public Packet send(Packet request) throws Exception {
+					CountDownLatch latch = blockReplies;
+					if (latch != null) {
+						latch.await(1, TimeUnit.SECONDS);
+					}
+					return new Packet(request.getOperationCode() + 50, 1);
+				}
+				@Override
+				public boolean isOpen() {
+					return !closed;
+				}
+				@Override
+				public boolean isClosed() {
+					return closed;
+				}
+				@Override
+				public void close() {
+					closed = true;
+				}
+			};
+			provided.add(connection);
+			return connection;
+		}
+	}
+
+}
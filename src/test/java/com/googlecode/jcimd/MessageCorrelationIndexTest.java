@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageCorrelationIndexTest {
+
+	private final AtomicLong time = new AtomicLong(1000000L);
+	private MessageCorrelationIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		index = new MessageCorrelationIndex(1, TimeUnit.HOURS) {
+			@Override
+			long currentTimeMillis() {
+				return time.get();
+			}
+		};
+	}
+
+	@Test
+	public void resolvesStatusReport() throws Exception {
+		index.put("+358501234567", "110101120000", 42);
+		index.put("+358501234567", "110101120001", 43);
+		index.put("0501234567", "110101120000", 44);
+		index.put("501234567", "110101120000", 45);
+
+		Packet statusReport = new Packet(Packet.OP_DELIVER_STATUS_REPORT, 1,
+				new Parameter(Parameter.DESTINATION_ADDRESS, "+358501234567"),
+				new Parameter(Parameter.MC_TIMESTAMP, "110101120000"),
+				new Parameter(Parameter.STATUS_CODE, 4),
+				new Parameter(Parameter.DISCHARGE_TIME, "110101120005"));
+		assertEquals(42, index.resolve(statusReport));
+		// still there for later status reports
+		assertEquals(42, index.resolve(statusReport));
+		assertEquals(43, index.get("+358501234567", "110101120001"));
+		assertEquals(44, index.get("0501234567", "110101120000"));
+		assertEquals(45, index.get("501234567", "110101120000"));
+		assertEquals(MessageCorrelationIndex.NOT_FOUND,
+				index.get("+358501234567", "110101120002"));
+		assertEquals(MessageCorrelationIndex.NOT_FOUND,
+				index.resolve(new Packet(Packet.OP_DELIVER_STATUS_REPORT, 1)));
+	}
+
+	@Test
+	public void supportsNonNumericAddresses() throws Exception {
+		index.put("Lorenzo", "110101120000", 1);
+		index.put("+3585012345678901234567", "110101120000", 2);
+		assertEquals(1, index.get("Lorenzo", "110101120000"));
+		assertEquals(2, index.get("+3585012345678901234567", "110101120000"));
+		assertEquals(MessageCorrelationIndex.NOT_FOUND,
+				index.get("lorenzo", "110101120000"));
+	}
+
+	@Test
+	public void removesEntries() throws Exception {
+		index.put("+358501234567", "110101120000", 42);
+		assertEquals(42, index.remove("+358501234567", "110101120000"));
+		assertEquals(MessageCorrelationIndex.NOT_FOUND,
+				index.get("+358501234567", "110101120000"));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void expiresEntriesAfterTimeToLive() throws Exception {
+		index.put("+358501234567", "110101120000", 42);
+		time.addAndGet(TimeUnit.MINUTES.toMillis(59));
+		index.put("+358501234568", "110101120000", 43);
+		assertEquals(42, index.get("+358501234567", "110101120000"));
+		time.addAndGet(TimeUnit.MINUTES.toMillis(2));
+		assertEquals(MessageCorrelationIndex.NOT_FOUND,
+				index.get("+358501234567", "110101120000"));
+		assertEquals(43, index.get("+358501234568", "110101120000"));
+		time.addAndGet(TimeUnit.HOURS.toMillis(1));
+		assertEquals(1, index.evictExpired());
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void growsAndKeepsEntriesAcrossRemovals() throws Exception {
+		int count = 100000;
+		for (int i = 0; i < count; i++) {
+			index.put("+35850" + i, "110101120000", i);
+		}
+		assertEquals(count, index.size());
+		for (int i = 0; i < count; i += 2) {
+			assertEquals(i, index.remove("+35850" + i, "110101120000"));
+		}
+		for (int i = 0; i < count; i++) {
+			long expected = i % 2 == 0 ? MessageCorrelationIndex.NOT_FOUND : i;
+			assertEquals(expected, index.get("+35850" + i, "110101120000"));
+		}
+		assertEquals(count / 2, index.size());
+	}
+
+}
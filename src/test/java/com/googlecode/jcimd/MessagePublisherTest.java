@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessagePublisherTest {
+
+	private MessagePublisher publisher;
+	private RecordingSubscriber subscriber;
+
+	@Before
+	public void setUp() throws Exception {
+		publisher = new MessagePublisher();
+		publisher.setMaxWait(50);
+		subscriber = new RecordingSubscriber();
+	}
+
+	private static Packet deliverMessage(String userData) {
+		return new Packet(Packet.OP_DELIVER_MESSAGE, 0,
+				new Parameter(Parameter.USER_DATA, userData));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void doesNotAcceptMessagesWithoutDemand() throws Exception {
+		publisher.subscribe(subscriber);
+		publisher.messageReceived(deliverMessage("one"));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void doesNotAcceptMessagesWithoutSubscriber() throws Exception {
+		publisher.messageReceived(deliverMessage("one"));
+	}
+
+	@Test
+	public void publishesRequestedMessages() throws Exception {
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(2);
+		publisher.messageReceived(deliverMessage("one"));
+		publisher.messageReceived(deliverMessage("two"));
+		assertEquals(0, publisher.getDemand());
+		assertEquals(2, subscriber.messages.size());
+		assertEquals("two", subscriber.messages.get(1).getParameter(Parameter.USER_DATA).getValue());
+		try {
+			publisher.messageReceived(deliverMessage("three"));
+			fail("Expecting no demand");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		publisher.close();
+		assertTrue(subscriber.completed);
+	}
+
+	@Test
+	public void waitsForDemand() throws Exception {
+		publisher.setMaxWait(5000);
+		publisher.subscribe(subscriber);
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+				subscriber.subscription.request(1);
+			}
+		}.start();
+		long start = System.nanoTime();
+		publisher.messageReceived(deliverMessage("one"));
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Expecting to wait for demand, but waited " + elapsedMillis,
+				elapsedMillis >= 150);
+		assertEquals(1, subscriber.messages.size());
+	}
+
+	@Test
+	public void cancelledSubscriptionReceivesNoMoreMessages() throws Exception {
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		publisher.messageReceived(deliverMessage("one"));
+		subscriber.subscription.cancel();
+		try {
+			publisher.messageReceived(deliverMessage("two"));
+			fail("Expecting no subscriber");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, subscriber.messages.size());
+	}
+
+	@Test
+	public void signalsErrorToSecondSubscriber() throws Exception {
+		publisher.subscribe(subscriber);
+		RecordingSubscriber second = new RecordingSubscriber();
+		publisher.subscribe(second);
+		assertTrue(second.error instanceof IllegalStateException);
+		assertNull(subscriber.error);
+	}
+
+	@Test
+	public void signalsErrorOnNonPositiveRequest() throws Exception {
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(0);
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+	}
+
+	private static class RecordingSubscriber implements MessagePublisher.Subscriber {
+		private final List<Packet> messages = new CopyOnWriteArrayList<Packet>();
+		private volatile MessagePublisher.Subscription subscription;
+		private volatile Throwable error;
+		private volatile boolean completed;
+
+		@Override
+		public void onSubscribe(MessagePublisher.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(Packet message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			this.error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			this.completed = true;
+		}
+	}
+
+}
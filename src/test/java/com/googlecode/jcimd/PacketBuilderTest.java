@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class PacketBuilderTest {
+
+	@Test
+	public void buildsPacketEqualToOneWithParameters() throws Exception {
+		byte[] binary = new byte[] { 0x00, 0x7f, (byte) 0x80, (byte) 0xff };
+		Packet packet = new PacketBuilder(Packet.OP_SUBMIT_MESSAGE)
+				.add(Parameter.DESTINATION_ADDRESS, "+358501234567")
+				.add(Parameter.MORE_MESSAGES_TO_SEND, true)
+				.add(Parameter.PRIORITY, 1)
+				.add(Parameter.VALIDITY_PERIOD_RELATIVE, -167)
+				.addHex(Parameter.USER_DATA_BINARY, binary)
+				.build();
+
+		Packet expected = new Packet(Packet.OP_SUBMIT_MESSAGE,
+				new Parameter(Parameter.DESTINATION_ADDRESS, "+358501234567"),
+				new Parameter(Parameter.MORE_MESSAGES_TO_SEND, true),
+				new Parameter(Parameter.PRIORITY, 1),
+				new Parameter(Parameter.VALIDITY_PERIOD_RELATIVE, -167),
+				new Parameter(Parameter.USER_DATA_BINARY, binary));
+		assertEquals(expected, packet);
+		assertEquals(expected.hashCode(), packet.hashCode());
+		assertEquals("007f80ff",
+				packet.getParameter(Parameter.USER_DATA_BINARY).getValue());
+	}
+
+	@Test
+	public void serializesLikePacketWithParameters() throws Exception {
+		PacketSerializer serializer = new PacketSerializer();
+		Packet packet = new PacketBuilder(Packet.OP_SUBMIT_MESSAGE)
+				.add(Parameter.DESTINATION_ADDRESS, "+358501234567")
+				.add(Parameter.USER_DATA, "Hello")
+				.build().withSequenceNumber(7);
+		Packet expected = new Packet(Packet.OP_SUBMIT_MESSAGE, 7,
+				new Parameter(Parameter.DESTINATION_ADDRESS, "+358501234567"),
+				new Parameter(Parameter.USER_DATA, "Hello"));
+
+		ByteArrayOutputStream actualBytes = new ByteArrayOutputStream();
+		serializer.serialize(packet, actualBytes);
+		ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+		serializer.serialize(expected, expectedBytes);
+		assertArrayEquals(expectedBytes.toByteArray(), actualBytes.toByteArray());
+		assertEquals(expected, serializer.deserialize(
+				new ByteArrayInputStream(actualBytes.toByteArray())));
+	}
+
+	@Test
+	public void reusesBuilderWithoutAffectingBuiltPackets() throws Exception {
+		PacketBuilder builder = new PacketBuilder(Packet.OP_SUBMIT_MESSAGE);
+		Packet first = builder.add(Parameter.DESTINATION_ADDRESS, "111").build();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			text.append("0123456789");
+		}
+		Packet second = builder.reset(Packet.OP_ENQUIRE_MESSAGE_STATUS)
+				.add(Parameter.DESTINATION_ADDRESS, "222")
+				.add(Parameter.USER_DATA, text)
+				.build();
+
+		assertEquals(1, first.getParameters().length);
+		assertEquals("111", first.getParameter(Parameter.DESTINATION_ADDRESS).getValue());
+		assertEquals(Packet.OP_ENQUIRE_MESSAGE_STATUS, second.getOperationCode());
+		assertEquals("222", second.getParameter(Parameter.DESTINATION_ADDRESS).getValue());
+		assertEquals(1000, second.getParameter(Parameter.USER_DATA).getValue().length());
+	}
+
+	@Test
+	public void addsAbsoluteTime() throws Exception {
+		long time = 1293964200000L;
+		Packet packet = new PacketBuilder(Packet.OP_SUBMIT_MESSAGE)
+				.addTime(Parameter.VALIDITY_PERIOD_ABSOLUTE, time)
+				.build();
+		assertEquals(CimdTime.format(time),
+				packet.getParameter(Parameter.VALIDITY_PERIOD_ABSOLUTE).getValue());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidParameterNumber() throws Exception {
+		new PacketBuilder(Packet.OP_SUBMIT_MESSAGE).add(1000, 1);
+	}
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PacketPoolTest {
+
+	@Test
+	public void reusesReleasedPacketWithoutItsParameters() throws Exception {
+		PacketPool pool = PacketPool.get();
+		Packet packet = pool.acquire(Packet.OP_SUBMIT_MESSAGE);
+		packet.addParameter(new Parameter(Parameter.DESTINATION_ADDRESS, "+35850123"));
+		pool.release(packet);
+
+		Packet reused = pool.acquire(Packet.OP_ENQUIRE_MESSAGE_STATUS);
+		assertSame(packet, reused);
+		assertEquals(Packet.OP_ENQUIRE_MESSAGE_STATUS, reused.getOperationCode());
+		assertNull(reused.getSequenceNumber());
+		assertEquals(0, reused.getParameters().length);
+		assertNull(reused.getParameter(Parameter.DESTINATION_ADDRESS));
+	}
+
+	@Test
+	public void builtPacketEqualsConstructedPacket() throws Exception {
+		Packet packet = PacketPool.get().acquire(Packet.OP_SUBMIT_MESSAGE);
+		Parameter[] parameters = new Parameter[20];
+		for (int i = 0; i < parameters.length; i++) {
+			parameters[i] = new Parameter(Parameter.USER_DATA, "part " + i);
+			packet.addParameter(parameters[i]);
+		}
+		Packet expected = new Packet(Packet.OP_SUBMIT_MESSAGE, parameters);
+		assertEquals(expected, packet);
+		assertEquals(expected.hashCode(), packet.hashCode());
+		assertArrayEquals(parameters, packet.getParameters());
+		assertEquals(new Packet(Packet.OP_SUBMIT_MESSAGE, 3, parameters),
+				packet.withSequenceNumber(3));
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+public class PacketReaderTest {
+
+	private static final int MAX_MESSAGE_SIZE = 4096;
+
+	private PacketReader reader(InputStream inputStream, int bufferSize) {
+		return new PacketReader(inputStream, bufferSize, MAX_MESSAGE_SIZE, true,
+				LogFactory.getLog(PacketReaderTest.class));
+	}
+
+	private byte[] statusReports(int count) throws Exception {
+		PacketSerializer serializer = new PacketSerializer();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			serializer.serialize(new Packet(Packet.OP_DELIVER_STATUS_REPORT, i * 2 + 1,
+					new Parameter(Parameter.DESTINATION_ADDRESS, "+3585012345" + i),
+					new Parameter(Parameter.STATUS_CODE, "4")), out);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns at most the given number of bytes per read.
+	 */
+	private static InputStream chunked(byte[] bytes, final int chunkSize) {
+		return new ByteArrayInputStream(bytes) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, chunkSize));
+			}
+		};
+	}
+
+	@Test
+	public void decodesAllFramesOfChunkInOneRead() throws Exception {
+		PacketReader reader = reader(new ByteArrayInputStream(statusReports(50)), 8192);
+		List<Packet> batch = new ArrayList<Packet>();
+		assertEquals(50, reader.read(batch));
+		for (int i = 0; i < 50; i++) {
+			assertEquals(Integer.valueOf(i * 2 + 1), batch.get(i).getSequenceNumber());
+			assertEquals("+3585012345" + i, batch.get(i)
+					.getParameter(Parameter.DESTINATION_ADDRESS).getValue());
+		}
+	}
+
+	@Test
+	public void keepsPartlyReadFrameForNextRead() throws Exception {
+		byte[] bytes = statusReports(20);
+		for (int chunkSize = 1; chunkSize < 64; chunkSize += 7) {
+			PacketReader reader = reader(chunked(bytes, chunkSize), 100);
+			List<Packet> batch = new ArrayList<Packet>();
+			while (batch.size() < 20) {
+				assertTrue(reader.read(batch) > 0);
+			}
+			for (int i = 0; i < 20; i++) {
+				assertEquals(Integer.valueOf(i * 2 + 1), batch.get(i).getSequenceNumber());
+			}
+		}
+	}
+
+	@Test
+	public void ignoresBytesBetweenFrames() throws Exception {
+		byte[] frame = statusReports(1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("noise".getBytes("US-ASCII"));
+		out.write(frame);
+		out.write("\r\n".getBytes("US-ASCII"));
+		out.write(frame);
+		List<Packet> batch = new ArrayList<Packet>();
+		assertEquals(2, reader(new ByteArrayInputStream(out.toByteArray()), 1024).read(batch));
+	}
+
+	@Test
+	public void passesPacketsBeforeBadFrameThenFails() throws Exception {
+		byte[] bytes = statusReports(3);
+		// corrupts the checksum of the last frame
+		bytes[bytes.length - 2] = (byte) (bytes[bytes.length - 2] == '0' ? '1' : '0');
+		PacketReader reader = reader(new ByteArrayInputStream(bytes), 8192);
+		List<Packet> batch = new ArrayList<Packet>();
+		assertEquals(2, reader.read(batch));
+		try {
+			reader.read(batch);
+			fail("Expecting checksum error");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum error"));
+		}
+	}
+
+	@Test
+	public void failsWhenFrameExceedsMaxMessageSize() throws Exception {
+		byte[] bytes = new byte[MAX_MESSAGE_SIZE + 10];
+		bytes[0] = PacketSerializer.STX;
+		for (int i = 1; i < bytes.length; i++) {
+			bytes[i] = 'x';
+		}
+		try {
+			reader(chunked(bytes, 1000), 1024).read(new ArrayList<Packet>());
+			fail("Expecting buffer overflow");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Buffer overflow"));
+		}
+	}
+
+	@Test
+	public void failsAtEndOfStream() throws Exception {
+		byte[] bytes = statusReports(1);
+		PacketReader reader = reader(
+				new ByteArrayInputStream(bytes, 0, bytes.length - 1), 1024);
+		try {
+			reader.read(new ArrayList<Packet>());
+			fail("Expecting end of stream");
+		} catch (IOException e) {
+			assertEquals("End of stream reached and still no <ETX> byte", e.getMessage());
+		}
+	}
+
+}
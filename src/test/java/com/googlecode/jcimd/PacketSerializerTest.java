@@ -234,4 +234,50 @@ public class PacketSerializerTest {
 		assertEquals(command, actual);
 	}
 
+	@Test
+	public void deserializesLongHexParameters() throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (int i = 0; i < 140; i++) {
+			hex.append(String.format("%02x", i));
+		}
+		for (int length = 0; length <= hex.length(); length += 7) {
+			Packet packet = new Packet(Packet.OP_SUBMIT_MESSAGE, 3,
+					new Parameter(Parameter.DESTINATION_ADDRESS, "+358501234567"),
+					new Parameter(Parameter.USER_DATA_BINARY, hex.substring(0, length)),
+					new Parameter(Parameter.PRIORITY, 1));
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			serializer.serialize(packet, outputStream);
+			assertEquals(packet, serializer.deserialize(
+					new ByteArrayInputStream(outputStream.toByteArray())));
+		}
+	}
+
+	@Test
+	public void findsReservedCharactersInAnyPosition() throws Exception {
+		byte[] bytes = new byte[40];
+		byte[] others = new byte[] { 0x01, 0x04, 0x0A, 0x7F, (byte) 0x80, (byte) 0xFF };
+		for (int i = 0; i < bytes.length; i++) {
+			// bytes below, and with the high bit, are not reserved
+			bytes[i] = others[i % others.length];
+		}
+		assertEquals(bytes.length, PacketSerializer.indexOfReserved(bytes, 0, bytes.length));
+		for (byte reserved : new byte[] { 0x00, 0x02, 0x03, 0x09 }) {
+			for (int i = 0; i < bytes.length; i++) {
+				byte original = bytes[i];
+				bytes[i] = reserved;
+				assertEquals(i, PacketSerializer.indexOfReserved(bytes, 0, bytes.length));
+				assertEquals(i >= 5 ? i : bytes.length,
+						PacketSerializer.indexOfReserved(bytes, 5, bytes.length));
+				bytes[i] = original;
+			}
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void rejectsReservedCharacterInParameterValue() throws Exception {
+		byte[] bytes = ("" + STX + "03" + COLON + "001" + TAB
+				+ "033" + COLON + "Hel" + (char) 0x00 + "lo" + TAB + ETX).getBytes("US-ASCII");
+		new PacketSerializer("test", false).deserialize(new ByteArrayInputStream(bytes));
+	}
+
 }
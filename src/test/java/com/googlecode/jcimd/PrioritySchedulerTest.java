@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrioritySchedulerTest {
+
+	private final List<String> sent = new CopyOnWriteArrayList<String>();
+	private final CountDownLatch firstSent = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private PriorityScheduler scheduler;
+
+	@Before
+	public void setUp() throws Exception {
+		scheduler = new PriorityScheduler(new BlockingConnectionFactory());
+		scheduler.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		scheduler.stop();
+	}
+
+	private static Packet submitMessage(String destinationAddress) {
+		return new Packet(Packet.OP_SUBMIT_MESSAGE,
+				new Parameter(Parameter.DESTINATION_ADDRESS, destinationAddress));
+	}
+
+	/**
+	 * Submits a message that blocks the connection, until released, so
+	 * that the following messages are queued.
+	 */
+	private void blockConnection() throws Exception {
+		assertTrue(scheduler.submit(PriorityScheduler.Lane.BULK,
+				submitMessage("first"), new Callback(null)));
+		assertTrue(firstSent.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void sendsInteractiveBeforeQueuedBulk() throws Exception {
+		blockConnection();
+		CountDownLatch done = new CountDownLatch(6);
+		for (int i = 0; i < 5; i++) {
+			scheduler.submit(PriorityScheduler.Lane.BULK, submitMessage("bulk"), new Callback(done));
+		}
+		scheduler.submit(PriorityScheduler.Lane.INTERACTIVE, submitMessage("otp"), new Callback(done));
+		assertEquals(5, scheduler.getQueueSize(PriorityScheduler.Lane.BULK));
+		release.countDown();
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("first", sent.get(0));
+		assertEquals("otp", sent.get(1));
+	}
+
+	@Test
+	public void sharesSlotsByWeight() throws Exception {
+		scheduler.setWeight(PriorityScheduler.Lane.INTERACTIVE, 3);
+		blockConnection();
+		CountDownLatch done = new CountDownLatch(40);
+		for (int i = 0; i < 20; i++) {
+			scheduler.submit(PriorityScheduler.Lane.BULK, submitMessage("bulk"), new Callback(done));
+			scheduler.submit(PriorityScheduler.Lane.INTERACTIVE, submitMessage("otp"), new Callback(done));
+		}
+		release.countDown();
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		// bulk gets one in four slots, while both lanes have requests
+		List<String> shared = sent.subList(1, 17);
+		int bulk = 0;
+		for (String destinationAddress : shared) {
+			if ("bulk".equals(destinationAddress)) {
+				bulk++;
+			}
+		}
+		assertEquals(4, bulk);
+		// and the rest, once interactive requests are done
+		assertEquals(41, sent.size());
+	}
+
+	@Test
+	public void rejectsRequestsWhenLaneIsFull() throws Exception {
+		scheduler.setMaxQueueSize(2);
+		blockConnection();
+		assertTrue(scheduler.submit(PriorityScheduler.Lane.BULK, submitMessage("bulk"), new Callback(null)));
+		assertTrue(scheduler.submit(PriorityScheduler.Lane.BULK, submitMessage("bulk"), new Callback(null)));
+		assertFalse(scheduler.submit(PriorityScheduler.Lane.BULK, submitMessage("bulk"), new Callback(null)));
+		assertTrue(scheduler.submit(PriorityScheduler.Lane.INTERACTIVE, submitMessage("otp"), new Callback(null)));
+	}
+
+	@Test
+	public void keepsDispatchingWhenCallbackThrows() throws Exception {
+		release.countDown();
+		scheduler.submit(PriorityScheduler.Lane.NORMAL, submitMessage("first"),
+				new PipelinedConnection.ReplyCallback() {
+			@Override
+			public void replied(Packet request, Packet reply) {
+				throw new IllegalStateException("Listener bug");
+			}
+
+			@Override
+			public void failed(Packet request, Exception e) {
+			}
+		});
+		CountDownLatch done = new CountDownLatch(1);
+		scheduler.submit(PriorityScheduler.Lane.NORMAL, submitMessage("second"), new Callback(done));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void backsOffWhenConnectionCannotBeObtained() throws Exception {
+		PriorityScheduler failing = new PriorityScheduler(new ConnectionFactory() {
+			@Override
+			public Connection getConnection() throws Exception {
+				throw new IOException("Connection refused");
+			}
+		});
+		failing.setInitialBackoff(1000);
+		failing.start();
+		try {
+			final AtomicInteger failures = new AtomicInteger();
+			PipelinedConnection.ReplyCallback callback = new PipelinedConnection.ReplyCallback() {
+				@Override
+				public void replied(Packet request, Packet reply) {
+				}
+
+				@Override
+				public void failed(Packet request, Exception e) {
+					failures.incrementAndGet();
+				}
+			};
+			for (int i = 0; i < 3; i++) {
+				failing.submit(PriorityScheduler.Lane.BULK, submitMessage("bulk"), callback);
+			}
+			Thread.sleep(200);
+			assertEquals(1, failures.get());
+			assertEquals(2, failing.getQueueSize(PriorityScheduler.Lane.BULK));
+		} finally {
+			failing.stop();
+		}
+	}
+
+	private class Callback implements PipelinedConnection.ReplyCallback {
+		private final CountDownLatch done;
+
+		Callback(CountDownLatch done) {
+			this.done = done;
+		}
+
+		@Override
+		public void replied(Packet request, Packet reply) {
+			if (this.done != null) {
+				this.done.countDown();
+			}
+		}
+
+		@Override
+		public void failed(Packet request, Exception e) {
+		}
+	}
+
+	private class BlockingConnectionFactory implements ConnectionFactory {
+
+		@Override
+		public Connection getConnection() throws Exception {
+			return new Connection() {
+				private boolean closed;
+
+				@Override
+				public Packet send(Packet request) throws Exception {
+					sent.add(request.getParameter(Parameter.DESTINATION_ADDRESS).getValue());
+					firstSent.countDown();
+					release.await();
+					return new Packet(request.getOperationCode() + 50, 1,
+							new Parameter(Parameter.MC_TIMESTAMP, "110101120000"));
+				}
+
+				@Override
+				public boolean isOpen() {
+					return !closed;
+				}
+
+				@Override
+				public boolean isClosed() {
+					return closed;
+				}
+
+				@Override
+				public void close() {
+					closed = true;
+				}
+			};
+		}
+	}
+
+}
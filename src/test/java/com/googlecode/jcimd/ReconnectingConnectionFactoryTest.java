@@ -0,0 +1,213 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconnectingConnectionFactoryTest {
+
+	private StubConnectionFactory stubConnectionFactory;
+	private ReconnectingConnectionFactory connectionFactory;
+
+	@Before
+	public void setUp() throws Exception {
+		stubConnectionFactory = new StubConnectionFactory();
+		connectionFactory = new ReconnectingConnectionFactory(stubConnectionFactory);
+		connectionFactory.setInitialBackoff(10);
+		connectionFactory.setMaxWait(2000);
+	}
+
+	@Test
+	public void replaysOutstandingRequestAfterConnectionIsLost() throws Exception {
+		stubConnectionFactory.failuresBeforeReply.add(1);
+		stubConnectionFactory.failuresBeforeReply.add(0);
+		Connection connection = connectionFactory.getConnection();
+
+		Packet reply = connection.send(new Packet(Packet.OP_ENQUIRE_MESSAGE_STATUS));
+
+		assertTrue(reply.isPositiveResponse());
+		assertEquals(2, stubConnectionFactory.connections.get());
+		assertTrue(connection.isOpen());
+		connection.close();
+		assertTrue(connection.isClosed());
+	}
+
+	@Test(expected=ConnectionLostException.class)
+	public void failsOutstandingRequestWhenReplayIsDisabled() throws Exception {
+		connectionFactory.setReplayOutstandingRequests(false);
+		stubConnectionFactory.failuresBeforeReply.add(1);
+		Connection connection = connectionFactory.getConnection();
+		connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE));
+	}
+
+	@Test
+	public void replaysSubmittedMessagesOnlyWhenEnabled() throws Exception {
+		stubConnectionFactory.failuresBeforeReply.add(1);
+		stubConnectionFactory.failuresBeforeReply.add(0);
+		Connection connection = connectionFactory.getConnection();
+		try {
+			connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE));
+			fail("Expecting ConnectionLostException");
+		} catch (ConnectionLostException e) {
+			// expected, the message may have been accepted already
+		}
+		assertEquals(1, stubConnectionFactory.requests.get());
+
+		connectionFactory.setReplaySubmittedMessages(true);
+		stubConnectionFactory.failuresBeforeReply.add(1);
+		stubConnectionFactory.failuresBeforeReply.add(0);
+		connection = connectionFactory.getConnection();
+		assertTrue(connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE)).isPositiveResponse());
+	}
+
+	@Test
+	public void keepsConnectionWhenCallerIsInterrupted() throws Exception {
+		Connection connection = connectionFactory.getConnection();
+		stubConnectionFactory.interruptions = 1;
+		try {
+			connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE));
+			fail("Expecting InterruptedIOException");
+		} catch (InterruptedIOException e) {
+			assertTrue(Thread.interrupted());
+		}
+		assertTrue(connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE)).isPositiveResponse());
+		assertEquals(1, stubConnectionFactory.connections.get());
+	}
+
+	@Test
+	public void reconnectsOnlyAfterConsecutiveTimeouts() throws Exception {
+		connectionFactory.setMaxConsecutiveTimeouts(2);
+		Connection connection = connectionFactory.getConnection();
+		stubConnectionFactory.timeouts = 1;
+		assertNull(connection.send(new Packet(Packet.OP_ENQUIRE_MESSAGE_STATUS)));
+		assertNotNull(connection.send(new Packet(Packet.OP_ENQUIRE_MESSAGE_STATUS)));
+		assertEquals(1, stubConnectionFactory.connections.get());
+
+		stubConnectionFactory.timeouts = 2;
+		assertNull(connection.send(new Packet(Packet.OP_ENQUIRE_MESSAGE_STATUS)));
+		// the second one in a row replaces the connection, and is replayed
+		assertNotNull(connection.send(new Packet(Packet.OP_ENQUIRE_MESSAGE_STATUS)));
+		assertEquals(2, stubConnectionFactory.connections.get());
+	}
+
+	@Test
+	public void failsWhenNotReconnectedWithinMaxWait() throws Exception {
+		connectionFactory.setMaxWait(0);
+		stubConnectionFactory.failuresBeforeReply.add(1);
+		Connection connection = connectionFactory.getConnection();
+		stubConnectionFactory.failing = true;
+		try {
+			connection.send(new Packet(Packet.OP_ENQUIRE_MESSAGE_STATUS));
+			fail("Expecting ConnectionLostException");
+		} catch (ConnectionLostException e) {
+			// expected
+		}
+		// once the SMS Center is back, the connection is re-established
+		stubConnectionFactory.failing = false;
+		connectionFactory.setMaxWait(2000);
+		Connection other = connectionFactory.getConnection();
+		assertTrue(other.send(new Packet(Packet.OP_SUBMIT_MESSAGE)).isPositiveResponse());
+	}
+
+	@Test
+	public void retransmitsAfterNack() throws Exception {
+		stubConnectionFactory.nacksBeforeReply = 2;
+		Connection connection = connectionFactory.getConnection();
+		Packet reply = connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE));
+		assertTrue(reply.isPositiveResponse());
+		assertEquals(3, stubConnectionFactory.requests.get());
+	}
+
+	@Test
+	public void returnsNackAfterMaxRetransmissions() throws Exception {
+		connectionFactory.setMaxNackRetransmissions(1);
+		stubConnectionFactory.nacksBeforeReply = 5;
+		Connection connection = connectionFactory.getConnection();
+		Packet reply = connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE));
+		assertTrue(reply.isNack());
+		assertEquals(2, stubConnectionFactory.requests.get());
+	}
+
+	private static class StubConnectionFactory implements ConnectionFactory {
+		final LinkedList<Integer> failuresBeforeReply = new LinkedList<Integer>();
+		final AtomicInteger connections = new AtomicInteger();
+		final AtomicInteger requests = new AtomicInteger();
+		volatile boolean failing;
+		volatile int nacksBeforeReply;
+		volatile int interruptions;
+		volatile int timeouts;
+
+		@Override
+		public Connection getConnection() throws Exception {
+			if (failing) {
+				throw new IOException("Connection refused");
+			}
+			connections.incrementAndGet();
+			final int failures;
+			synchronized (failuresBeforeReply) {
+				failures = failuresBeforeReply.isEmpty() ? 0 : failuresBeforeReply.removeFirst();
+			}
+			return new Connection() {
+				private volatile boolean closed;
+				@Override
+				public Packet send(Packet request) throws Exception {
+					requests.incrementAndGet();
+					if (failures > 0) {
+						closed = true;
+						throw new IOException("Connection reset");
+					}
+					if (interruptions > 0) {
+						interruptions--;
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the window");
+					}
+					if (timeouts > 0) {
+						timeouts--;
+						return null;
+					}
+					if (nacksBeforeReply > 0) {
+						nacksBeforeReply--;
+						return new Packet(Packet.OP_NACK, 3);
+					}
+					return new Packet(request.getOperationCode() + 50, 1,
+							new Parameter(Parameter.MC_TIMESTAMP, "110101120000"));
+				}
+				@Override
+				public boolean isOpen() {
+					return !closed;
+				}
+				@Override
+				public boolean isClosed() {
+					return closed;
+				}
+				@Override
+				public void close() {
+					closed = true;
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StoreAndForwardSubmitterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sendsJournaledMessagesAndRecordsTimestamps() throws Exception {
+		File directory = folder.newFolder("journal");
+		SubmitJournal journal = new SubmitJournal(directory, 4096);
+		StubConnectionFactory connectionFactory = new StubConnectionFactory();
+		connectionFactory.failures.set(1);
+		StoreAndForwardSubmitter submitter =
+				new StoreAndForwardSubmitter(journal, connectionFactory);
+		submitter.setRetryInterval(10);
+		RecordingListener listener = new RecordingListener(3);
+		submitter.setListener(listener);
+		submitter.start();
+
+		long first = submitter.submitMessage("+358501111111", null, null,
+				new StringUserData("Hello"), null, null, null, null,
+				null, null, null, null, null, null);
+		long second = submitter.submitMessage("+358502222222", null, null,
+				new StringUserData("Hello"), null, null, null, null,
+				null, null, null, null, null, null);
+		long rejected = submitter.submitMessage("reject", null, null,
+				new StringUserData("Hello"), null, null, null, null,
+				null, null, null, null, null, null);
+
+		assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+		assertEquals("110101120000", listener.timestamps.get(first));
+		assertEquals("110101120000", listener.timestamps.get(second));
+		assertEquals(Integer.valueOf(11), listener.errorCodes.get(rejected));
+		assertEquals("110101120000", journal.getMessageCenterTimestamp(first));
+		assertEquals(0, journal.getPendingCount());
+		submitter.stop();
+	}
+
+	@Test
+	public void resendsPendingEntriesAfterRestart() throws Exception {
+		File directory = folder.newFolder("journal");
+		SubmitJournal journal = new SubmitJournal(directory, 4096);
+		journal.open();
+		long id = journal.append(DefaultSession.createSubmitMessage("+358501111111",
+				null, null, new StringUserData("Hello"), null, null, null, null,
+				null, null, null, null, null, null));
+		journal.close();
+
+		journal = new SubmitJournal(directory, 4096);
+		StoreAndForwardSubmitter submitter = new StoreAndForwardSubmitter(
+				journal, new StubConnectionFactory());
+		RecordingListener listener = new RecordingListener(1);
+		submitter.setListener(listener);
+		submitter.start();
+
+		assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+		assertEquals("110101120000", listener.timestamps.get(id));
+		submitter.stop();
+	}
+
+	@Test
+	public void keepsSendingWhenListenerThrows() throws Exception {
+		SubmitJournal journal = new SubmitJournal(folder.newFolder("journal"), 4096);
+		StoreAndForwardSubmitter submitter =
+				new StoreAndForwardSubmitter(journal, new StubConnectionFactory());
+		final AtomicInteger failures = new AtomicInteger(2);
+		final RecordingListener recorder = new RecordingListener(1);
+		submitter.setListener(new StoreAndForwardSubmitter.Listener() {
+			@Override
+			public void submitted(long id, String messageCenterTimestamp) {
+				if (failures.getAndDecrement() > 0) {
+					throw new IllegalStateException("Listener failure");
+				}
+				recorder.submitted(id, messageCenterTimestamp);
+			}
+			@Override
+			public void rejected(long id, NegativeResponseException e) {
+				recorder.rejected(id, e);
+			}
+		});
+		submitter.start();
+
+		for (int i = 0; i < 2; i++) {
+			submitter.submitMessage("+358501111111", null, null,
+					new StringUserData("Hello"), null, null, null, null,
+					null, null, null, null, null, null);
+		}
+		long last = submitter.submitMessage("+358502222222", null, null,
+				new StringUserData("Hello"), null, null, null, null,
+				null, null, null, null, null, null);
+
+		assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+		assertEquals("110101120000", recorder.timestamps.get(last));
+		assertEquals("Entries reported to a failing listener are not resent",
+				0, journal.getPendingCount());
+		submitter.stop();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNonPositiveRetryInterval() throws Exception {
+		new StoreAndForwardSubmitter(new SubmitJournal(folder.newFolder("journal"), 4096),
+				new StubConnectionFactory()).setRetryInterval(-1);
+	}
+
+	private static class RecordingListener implements StoreAndForwardSubmitter.Listener {
+		private final Map<Long, String> timestamps = new ConcurrentHashMap<Long, String>();
+		private final Map<Long, Integer> errorCodes = new ConcurrentHashMap<Long, Integer>();
+		private final CountDownLatch done;
+
+		public RecordingListener(int count) {
+			this.done = new CountDownLatch(count);
+		}
+
+		@Override
+		public void submitted(long id, String messageCenterTimestamp) {
+			timestamps.put(id, messageCenterTimestamp);
+			done.countDown();
+		}
+
+		@Override
+		public void rejected(long id, NegativeResponseException e) {
+			errorCodes.put(id, e.getErrorCode());
+			done.countDown();
+		}
+	}
+
+	private static class StubConnectionFactory implements ConnectionFactory {
+		private final AtomicInteger failures = new AtomicInteger();
+
+		@Override
+		public Connection getConnection() throws Exception {
+			return new Connection() {
+				private boolean closed;
+
+				@Override
+				public Packet send(Packet request) throws Exception {
+					if (failures.getAndDecrement() > 0) {
+						closed = true;
+						throw new IOException("Connection reset");
+					}
+					String destinationAddress = request.getParameter(
+							Parameter.DESTINATION_ADDRESS).getValue();
+					if ("reject".equals(destinationAddress)) {
+						return new Packet(request.getOperationCode() + 50, 1,
+								new Parameter(900, 11),
+								new Parameter(901, "Invalid destination"));
+					}
+					return new Packet(request.getOperationCode() + 50, 1,
+							new Parameter(Parameter.MC_TIMESTAMP, "110101120000"));
+				}
+
+				@Override
+				public boolean isOpen() {
+					return !closed;
+				}
+
+				@Override
+				public boolean isClosed() {
+					return closed;
+				}
+
+				@Override
+				public void close() {
+					closed = true;
+				}
+			};
+		}
+	}
+
+}
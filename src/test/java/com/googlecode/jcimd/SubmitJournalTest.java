@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SubmitJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Packet submitMessage(String destinationAddress) {
+		return new Packet(Packet.OP_SUBMIT_MESSAGE,
+				new Parameter(Parameter.DESTINATION_ADDRESS, destinationAddress),
+				new Parameter(Parameter.USER_DATA, "Hello"));
+	}
+
+	@Test
+	public void recoversPendingEntriesAfterReopening() throws Exception {
+		File directory = folder.newFolder("journal");
+		SubmitJournal journal = new SubmitJournal(directory, 4096);
+		assertTrue(journal.open().isEmpty());
+		long first = journal.append(submitMessage("+358501111111"));
+		long second = journal.append(submitMessage("+358502222222"));
+		long third = journal.append(submitMessage("+358503333333"));
+		journal.acknowledge(first, "110101120000");
+		journal.reject(third);
+		assertEquals("110101120000", journal.getMessageCenterTimestamp(first));
+		assertNull(journal.getMessageCenterTimestamp(second));
+		assertEquals(1, journal.getPendingCount());
+		journal.close();
+
+		journal = new SubmitJournal(directory, 4096);
+		List<SubmitJournal.Entry> entries = journal.open();
+		assertEquals(1, entries.size());
+		assertEquals(second, entries.get(0).getId());
+		Packet packet = entries.get(0).getPacket();
+		assertEquals(Packet.OP_SUBMIT_MESSAGE, packet.getOperationCode());
+		assertNull(packet.getSequenceNumber());
+		assertEquals("+358502222222",
+				packet.getParameter(Parameter.DESTINATION_ADDRESS).getValue());
+		assertEquals("Hello", packet.getParameter(Parameter.USER_DATA).getValue());
+		assertEquals("110101120000", journal.getMessageCenterTimestamp(first));
+		journal.close();
+	}
+
+	@Test
+	public void deletesSegmentsOnceAllEntriesAreDone() throws Exception {
+		File directory = folder.newFolder("journal");
+		SubmitJournal journal = new SubmitJournal(directory, 128);
+		journal.open();
+		long[] ids = new long[10];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = journal.append(submitMessage("+35850" + i));
+		}
+		assertTrue(directory.list().length > 1);
+		for (long id : ids) {
+			journal.acknowledge(id, "110101120000");
+		}
+		assertEquals(1, directory.list().length);
+		assertEquals(0, journal.getPendingCount());
+		journal.close();
+	}
+
+	@Test
+	public void ignoresTornRecord() throws Exception {
+		File directory = folder.newFolder("journal");
+		SubmitJournal journal = new SubmitJournal(directory, 4096);
+		journal.open();
+		journal.append(submitMessage("+358501111111"));
+		long second = journal.append(submitMessage("+358502222222"));
+		journal.close();
+
+		// Corrupt the payload of the second record
+		RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+		try {
+			file.seek((int) second + 30);
+			file.write('X');
+		} finally {
+			file.close();
+		}
+
+		journal = new SubmitJournal(directory, 4096);
+		List<SubmitJournal.Entry> entries = journal.open();
+		assertEquals(1, entries.size());
+		long third = journal.append(submitMessage("+358503333333"));
+		assertEquals(second, third);
+		journal.close();
+	}
+
+	@Test
+	public void groupCommitsConcurrentAppends() throws Exception {
+		final SubmitJournal journal = new SubmitJournal(folder.newFolder("journal"));
+		journal.open();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							journal.append(submitMessage("+358501234567"));
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(400, journal.getPendingCount());
+		journal.close();
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TcpNetConnectionFactoryTest {
+
+	private static DummyCimdServer server;
+	private static int port = 9973;
+
+	private TcpNetConnectionFactory connectionFactory;
+
+	@BeforeClass
+	public static void setUpCimd2Server() throws Exception {
+		server = new DummyCimdServer(port);
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDownCimd2Server() throws Exception {
+		server.stop();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		connectionFactory = new TcpNetConnectionFactory(
+				"localhost", port, "user01", "seCreT");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connectionFactory.close();
+		server.getReceivedCommands().clear();
+	}
+
+	@Test
+	public void closeLogsOutAndStopsReaders() throws Exception {
+		final List<Thread> readers = new ArrayList<Thread>();
+		connectionFactory.setThreadFactory(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "test-reader");
+				thread.setDaemon(true);
+				readers.add(thread);
+				return thread;
+			}
+		});
+		Connection connection1 = connectionFactory.getConnection();
+		Connection connection2 = connectionFactory.getConnection();
+		assertEquals(2, readers.size());
+
+		connectionFactory.close();
+
+		assertTrue(connectionFactory.isClosed());
+		assertTrue(connection1.isClosed());
+		assertTrue(connection2.isClosed());
+		for (Thread reader : readers) {
+			// the reader has finished, its thread is about to terminate
+			reader.join(1000);
+			assertFalse(reader.isAlive());
+		}
+		int logouts = 0;
+		for (Packet command : server.getReceivedCommands()) {
+			if (command.getOperationCode() == Packet.OP_LOGOUT) {
+				logouts++;
+			}
+		}
+		assertEquals(2, logouts);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void doesNotCreateConnectionsAfterClose() throws Exception {
+		connectionFactory.close();
+		connectionFactory.getConnection();
+	}
+
+	@Test
+	public void appliesSocketOptions() throws Exception {
+		connectionFactory.setConnectTimeout(500);
+		connectionFactory.setTcpNoDelay(true);
+		connectionFactory.setKeepAlive(true);
+		connectionFactory.setReceiveBufferSize(32 * 1024);
+		Connection connection = connectionFactory.getConnection();
+		Packet response = connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE,
+				new Parameter(Parameter.DESTINATION_ADDRESS, "+19098858888")));
+		assertTrue(response.isPositiveResponse());
+	}
+
+	@Test
+	public void socketProfileSetsOptions() throws Exception {
+		connectionFactory.setSocketProfile(
+				TcpNetConnectionFactory.SocketProfile.HIGH_THROUGHPUT);
+		assertTrue(connectionFactory.isTcpNoDelay());
+		assertTrue(connectionFactory.isKeepAlive());
+		assertEquals(262144, connectionFactory.getSendBufferSize());
+		assertEquals(262144, connectionFactory.getReceiveBufferSize());
+		Connection connection = connectionFactory.getConnection();
+		assertTrue(connection.isOpen());
+	}
+
+}
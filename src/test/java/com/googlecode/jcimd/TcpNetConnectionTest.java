@@ -0,0 +1,342 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TcpNetConnectionTest {
+
+	private ServerSocket serverSocket;
+	private Socket smscSocket;
+	private InputStream smscIn;
+	private OutputStream smscOut;
+	private PacketSerializer smscSerializer;
+	private TcpNetConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		serverSocket = new ServerSocket(0);
+		Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+		smscSocket = serverSocket.accept();
+		smscSocket.setSoTimeout(5000);
+		smscIn = smscSocket.getInputStream();
+		smscOut = smscSocket.getOutputStream();
+		smscSerializer = new PacketSerializer("smsc");
+		smscSerializer.setSequenceNumberGenerator(
+				new SmsCenterPacketSequenceNumberGenerator());
+
+		PacketSerializer serializer = new PacketSerializer();
+		serializer.setSequenceNumberGenerator(
+				new ApplicationPacketSequenceNumberGenerator());
+		connection = new TcpNetConnection(socket, serializer, "user01", "seCreT");
+		new Thread(connection).start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		smscSocket.close();
+		serverSocket.close();
+	}
+
+	@Test
+	public void answersAliveFromSmsCenter() throws Exception {
+		smscSerializer.serialize(new Packet(Packet.OP_ALIVE), smscOut);
+		Packet response = smscSerializer.deserialize(smscIn);
+		assertEquals(Packet.OP_ALIVE + 50, response.getOperationCode());
+		assertEquals(Integer.valueOf(0), response.getSequenceNumber());
+	}
+
+	@Test
+	public void sendsAliveWhenIdleAndTracksRoundTripTime() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			connection.startKeepAlive(scheduler, 200);
+			assertEquals(-1, connection.getAliveRoundTripTime());
+
+			Packet alive = smscSerializer.deserialize(smscIn);
+			assertEquals(Packet.OP_ALIVE, alive.getOperationCode());
+			smscSerializer.serialize(new Packet(
+					Packet.OP_ALIVE + 50, alive.getSequenceNumber()), smscOut);
+
+			// and again, after being idle
+			alive = smscSerializer.deserialize(smscIn);
+			assertEquals(Packet.OP_ALIVE, alive.getOperationCode());
+			assertTrue(connection.getAliveRoundTripTime() >= 0);
+			assertTrue(connection.isOpen());
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void pipelinesRequestsWithinWindow() throws Exception {
+		connection.setWindowSize(3);
+		final Map<String, Packet> replies = new ConcurrentHashMap<String, Packet>();
+		final CountDownLatch latch = new CountDownLatch(3);
+		PipelinedConnection.ReplyCallback callback = new PipelinedConnection.ReplyCallback() {
+			@Override
+			public void replied(Packet request, Packet reply) {
+				replies.put(request.getParameter(Parameter.DESTINATION_ADDRESS).getValue(), reply);
+				latch.countDown();
+			}
+
+			@Override
+			public void failed(Packet request, Exception e) {
+				fail("Unexpected failure " + e);
+			}
+		};
+		for (int i = 0; i < 3; i++) {
+			connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE,
+					new Parameter(Parameter.DESTINATION_ADDRESS, "+35850" + i)), callback);
+		}
+
+		// All three are sent before any reply, and answered in reverse order
+		Packet[] requests = new Packet[3];
+		for (int i = 0; i < 3; i++) {
+			requests[i] = smscSerializer.deserialize(smscIn);
+		}
+		for (int i = 2; i >= 0; i--) {
+			smscSerializer.serialize(new Packet(Packet.OP_SUBMIT_MESSAGE + 50,
+					requests[i].getSequenceNumber(),
+					new Parameter(Parameter.MC_TIMESTAMP, "11010212000" + i)), smscOut);
+		}
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 3; i++) {
+			assertEquals("11010212000" + i,
+					replies.get("+35850" + i).getParameter(Parameter.MC_TIMESTAMP).getValue());
+		}
+	}
+
+	@Test
+	public void returnsCreditsOnReplyOrRelease() throws Exception {
+		connection.setWindowSize(2);
+		final CountDownLatch replied = new CountDownLatch(1);
+		PipelinedConnection.ReplyCallback callback = new PipelinedConnection.ReplyCallback() {
+			@Override
+			public void replied(Packet request, Packet reply) {
+				replied.countDown();
+			}
+
+			@Override
+			public void failed(Packet request, Exception e) {
+				fail("Unexpected failure " + e);
+			}
+		};
+		PipelinedConnection.Credit first = connection.acquireCredit();
+		PipelinedConnection.Credit second = connection.tryAcquireCredit(1, TimeUnit.SECONDS);
+		assertNotNull(second);
+		assertEquals(0, connection.getAvailableCredits());
+		assertNull(connection.tryAcquireCredit());
+		assertNull(connection.tryAcquireCredit(50, TimeUnit.MILLISECONDS));
+
+		connection.send(first, new Packet(Packet.OP_SUBMIT_MESSAGE), callback);
+		try {
+			connection.send(first, new Packet(Packet.OP_SUBMIT_MESSAGE), callback);
+			fail("Expecting a used credit to be rejected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		second.release();
+		second.release();
+		assertEquals(1, connection.getAvailableCredits());
+
+		Packet request = smscSerializer.deserialize(smscIn);
+		smscSerializer.serialize(new Packet(Packet.OP_SUBMIT_MESSAGE + 50,
+				request.getSequenceNumber()), smscOut);
+		assertTrue(replied.await(5, TimeUnit.SECONDS));
+		assertEquals(2, connection.getAvailableCredits());
+	}
+
+	@Test
+	public void correlatesNackBySequenceNumber() throws Exception {
+		connection.setWindowSize(2);
+		final Map<Integer, Packet> replies = new ConcurrentHashMap<Integer, Packet>();
+		final CountDownLatch latch = new CountDownLatch(2);
+		PipelinedConnection.ReplyCallback callback = new PipelinedConnection.ReplyCallback() {
+			@Override
+			public void replied(Packet request, Packet reply) {
+				replies.put(request.getSequenceNumber(), reply);
+				latch.countDown();
+			}
+
+			@Override
+			public void failed(Packet request, Exception e) {
+				fail("Unexpected failure " + e);
+			}
+		};
+		connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE), callback);
+		connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE), callback);
+		Packet first = smscSerializer.deserialize(smscIn);
+		Packet second = smscSerializer.deserialize(smscIn);
+
+		// matches neither request, so it is not handed to either
+		smscSerializer.serialize(new Packet(Packet.OP_NACK, 0), smscOut);
+		smscSerializer.serialize(new Packet(Packet.OP_NACK,
+				second.getSequenceNumber()), smscOut);
+		smscSerializer.serialize(new Packet(Packet.OP_SUBMIT_MESSAGE + 50,
+				first.getSequenceNumber()), smscOut);
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Packet.OP_SUBMIT_MESSAGE + 50,
+				replies.get(first.getSequenceNumber()).getOperationCode());
+		assertTrue(replies.get(second.getSequenceNumber()).isNack());
+	}
+
+	@Test
+	public void keepsReadingWhenReplyCallbackThrows() throws Exception {
+		connection.setWindowSize(2);
+		connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE),
+				new PipelinedConnection.ReplyCallback() {
+			@Override
+			public void replied(Packet request, Packet reply) {
+				throw new IllegalStateException("Listener bug");
+			}
+
+			@Override
+			public void failed(Packet request, Exception e) {
+			}
+		});
+		Packet request = smscSerializer.deserialize(smscIn);
+		smscSerializer.serialize(new Packet(Packet.OP_SUBMIT_MESSAGE + 50,
+				request.getSequenceNumber()), smscOut);
+
+		final Packet[] reply = new Packet[1];
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					reply[0] = connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE));
+				} catch (Exception e) {
+					// leaves reply null
+				}
+			}
+		};
+		sender.start();
+		request = smscSerializer.deserialize(smscIn);
+		smscSerializer.serialize(new Packet(Packet.OP_SUBMIT_MESSAGE + 50,
+				request.getSequenceNumber()), smscOut);
+		sender.join(5000);
+		assertNotNull("Reader should survive a failing callback", reply[0]);
+		assertTrue(connection.isOpen());
+	}
+
+	@Test
+	public void failsPipelinedRequestsWhenConnectionIsLost() throws Exception {
+		connection.setWindowSize(2);
+		final CountDownLatch latch = new CountDownLatch(2);
+		PipelinedConnection.ReplyCallback callback = new PipelinedConnection.ReplyCallback() {
+			@Override
+			public void replied(Packet request, Packet reply) {
+				fail("Unexpected reply " + reply);
+			}
+
+			@Override
+			public void failed(Packet request, Exception e) {
+				latch.countDown();
+			}
+		};
+		connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE), callback);
+		connection.send(new Packet(Packet.OP_SUBMIT_MESSAGE), callback);
+		smscSocket.close();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void acknowledgesDeliveredMessageOnlyWhenRequested() throws Exception {
+		MessagePublisher publisher = new MessagePublisher();
+		final MessagePublisher.Subscription[] subscription = new MessagePublisher.Subscription[1];
+		publisher.subscribe(new MessagePublisher.Subscriber() {
+			@Override
+			public void onSubscribe(MessagePublisher.Subscription s) {
+				subscription[0] = s;
+			}
+
+			@Override
+			public void onNext(Packet message) {
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+		connection.setMessageReceiver(publisher);
+
+		smscSerializer.serialize(new Packet(Packet.OP_DELIVER_MESSAGE,
+				new Parameter(Parameter.USER_DATA, "Hello")), smscOut);
+		smscSocket.setSoTimeout(300);
+		try {
+			smscSerializer.deserialize(smscIn);
+			fail("Expecting no acknowledgement without demand");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+
+		smscSocket.setSoTimeout(5000);
+		subscription[0].request(1);
+		Packet response = smscSerializer.deserialize(smscIn);
+		assertEquals(Packet.OP_DELIVER_MESSAGE + 50, response.getOperationCode());
+	}
+
+	@Test
+	public void acknowledgesDeliveredMessageBeforeProcessingWhenConfigured() throws Exception {
+		final CountDownLatch received = new CountDownLatch(1);
+		final CountDownLatch processed = new CountDownLatch(1);
+		connection.setAcknowledgeMode(TcpNetConnection.AcknowledgeMode.BEFORE_PROCESSING);
+		connection.setMessageReceiver(new MessageReceiver() {
+			@Override
+			public void messageReceived(Packet message) throws Exception {
+				received.countDown();
+				// a slow downstream call
+				processed.await(5, TimeUnit.SECONDS);
+			}
+		});
+		try {
+			smscSerializer.serialize(new Packet(Packet.OP_DELIVER_STATUS_REPORT,
+					new Parameter(Parameter.STATUS_CODE, "4")), smscOut);
+			// well before the receiver returns
+			smscSocket.setSoTimeout(1000);
+			Packet response = smscSerializer.deserialize(smscIn);
+			assertEquals(Packet.OP_DELIVER_STATUS_REPORT + 50, response.getOperationCode());
+			assertTrue(received.await(5, TimeUnit.SECONDS));
+			assertEquals(1, processed.getCount());
+		} finally {
+			processed.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void allowsBurstThenRejects() throws Exception {
+		TokenBucket bucket = new TokenBucket(1, 5);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(bucket.tryAcquire());
+		}
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void waitsForRefill() throws Exception {
+		TokenBucket bucket = new TokenBucket(100, 1);
+		assertTrue(bucket.tryAcquire());
+		long start = System.nanoTime();
+		assertTrue(bucket.tryAcquire(1, TimeUnit.SECONDS));
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Expecting to wait about 10 ms, but waited " + elapsedMillis,
+				elapsedMillis >= 5 && elapsedMillis < 500);
+	}
+
+	@Test
+	public void doesNotWaitWhenTokenWouldNotBeAvailableInTime() throws Exception {
+		TokenBucket bucket = new TokenBucket(1, 1);
+		assertTrue(bucket.tryAcquire());
+		long start = System.nanoTime();
+		assertFalse(bucket.tryAcquire(100, TimeUnit.MILLISECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50);
+	}
+
+	@Test
+	public void sustainedRateDoesNotExceedLimit() throws Exception {
+		TokenBucket bucket = new TokenBucket(200, 1);
+		long start = System.nanoTime();
+		for (int i = 0; i < 41; i++) {
+			bucket.acquire();
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		// 40 tokens after the first, at 5 ms each
+		assertTrue("Expecting at least 200 ms, but took " + elapsedMillis,
+				elapsedMillis >= 195);
+	}
+
+}
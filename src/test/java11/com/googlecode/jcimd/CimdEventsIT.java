@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+/**
+ * Runs against the multi-release JAR, so that the Java 11 version of
+ * {@link CimdEvents} is used.
+ */
+public class CimdEventsIT {
+
+	@Test
+	public void createsNoEventsWhenNotRecording() throws Exception {
+		assertNull(CimdEvents.beginRequest());
+	}
+
+	@Test
+	public void recordsRequestAndNackEvents() throws Exception {
+		Path file = Files.createTempFile("cimd", ".jfr");
+		try {
+			Recording recording = new Recording();
+			try {
+				recording.enable("com.googlecode.jcimd.Request");
+				recording.enable("com.googlecode.jcimd.Nack");
+				recording.start();
+
+				Packet request = new Packet(Packet.OP_SUBMIT_MESSAGE, 3);
+				Object event = CimdEvents.beginRequest();
+				assertNotNull(event);
+				CimdEvents.endRequest(event, request,
+						new Packet(Packet.OP_SUBMIT_MESSAGE + 50, 3));
+				CimdEvents.nack(request, new Packet(Packet.OP_NACK, 5));
+
+				recording.stop();
+				recording.dump(file);
+			} finally {
+				recording.close();
+			}
+
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+			assertEquals(2, events.size());
+			for (RecordedEvent event : events) {
+				assertEquals(Packet.OP_SUBMIT_MESSAGE, event.getInt("operationCode"));
+				assertEquals(3, event.getInt("sequenceNumber"));
+				if ("com.googlecode.jcimd.Request".equals(event.getEventType().getName())) {
+					assertEquals(Packet.OP_SUBMIT_MESSAGE + 50,
+							event.getInt("responseOperationCode"));
+				} else {
+					assertEquals("com.googlecode.jcimd.Nack", event.getEventType().getName());
+					assertEquals(5, event.getInt("expectedSequenceNumber"));
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+
+/**
+ * Runs against the multi-release JAR, so that the Java 11 version of
+ * {@link FlowPublishers} is used.
+ */
+public class FlowPublisherIT {
+
+	@Test
+	public void publishesRequestedMessagesToFlowSubscriber() throws Exception {
+		MessagePublisher publisher = new MessagePublisher();
+		publisher.setMaxWait(50);
+		@SuppressWarnings("unchecked")
+		Flow.Publisher<Packet> flowPublisher =
+				(Flow.Publisher<Packet>) publisher.toFlowPublisher();
+		final List<Packet> messages = new CopyOnWriteArrayList<Packet>();
+		final boolean[] completed = new boolean[1];
+		flowPublisher.subscribe(new Flow.Subscriber<Packet>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(Packet message) {
+				messages.add(message);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				fail("Unexpected error " + throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				completed[0] = true;
+			}
+		});
+
+		publisher.messageReceived(new Packet(Packet.OP_DELIVER_MESSAGE, 0,
+				new Parameter(Parameter.USER_DATA, "one")));
+		assertEquals(1, messages.size());
+		try {
+			publisher.messageReceived(new Packet(Packet.OP_DELIVER_MESSAGE, 2));
+			fail("Expecting no demand");
+		} catch (IllegalStateException e) {
+			// expected, left unacknowledged
+		}
+		publisher.close();
+		assertTrue(completed[0]);
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.googlecode.jcimd;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Runs against the multi-release JAR, so that the Java 21 version of
+ * {@link Threads} is used.
+ */
+public class ThreadsIT {
+
+	@Test
+	public void createsNamedVirtualThreads() throws Exception {
+		Thread thread = Threads.newThreadFactory("jcimd-test").newThread(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+		assertTrue(thread.isVirtual());
+		assertTrue(thread.isDaemon());
+		assertEquals("jcimd-test-1", thread.getName());
+	}
+
+	@Test
+	public void runsTasksOnVirtualThreads() throws Exception {
+		final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		Threads.newExecutor("jcimd-test").execute(new Runnable() {
+			@Override
+			public void run() {
+				thread.set(Thread.currentThread());
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(thread.get().isVirtual());
+	}
+
+}